@@ -0,0 +1,129 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+/**
+ * Compresses or decompresses every matching file under a directory tree.
+ * Up to {@code concurrency} files are processed at once, each on a single
+ * codec thread, so the file-level parallelism is what fills the cores.
+ * Compressed files get the EXTENSION suffix; decompression strips it, and
+ * leaves a file that already has the stripped name alone unless forced.
+ */
+class BatchRunner {
+    static final String EXTENSION = ".huf";
+
+    private final boolean decompress;
+    private final boolean force;
+    private final int concurrency;
+    private final PathMatcher matcher;
+    private final CodecOptions options;
+
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicInteger files = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+
+    BatchRunner(boolean decompress, int concurrency, String glob, boolean force) {
+        this(decompress, concurrency, glob, force, CodecOptions.DEFAULT);
+    }
+
+    BatchRunner(boolean decompress, int concurrency, String glob, CodecOptions options) {
+        this(decompress, concurrency, glob, false, options);
+    }
+
+    BatchRunner(boolean decompress, int concurrency, String glob, boolean force, CodecOptions options) {
+        if (concurrency < 1) throw new IllegalArgumentException("Concurrency must be at least 1.");
+        this.decompress = decompress;
+        this.force = force;
+        this.concurrency = concurrency;
+        this.matcher = glob == null ? null : FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        this.options = options;
+    }
+
+    private boolean matches(Path p) {
+        if (!Files.isRegularFile(p)) return false;
+        String name = p.getFileName().toString();
+        if (decompress != name.endsWith(EXTENSION)) return false;
+        return matcher == null || matcher.matches(p.getFileName());
+    }
+
+    /** @return true if every file was processed */
+    boolean run(Path root) throws IOException {
+        List<Path> inputs;
+        try (Stream<Path> walk = Files.walk(root)) {
+            inputs = walk.filter(this::matches).collect(Collectors.toList());
+        }
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        try {
+            List<Future<?>> results = new ArrayList<>(inputs.size());
+            for (Path input : inputs) {
+                results.add(pool.submit(() -> process(input)));
+            }
+            for (Future<?> result : results) {
+                try {
+                    result.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted during batch run.");
+                } catch (ExecutionException e) {
+                    failures.incrementAndGet();
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        report(System.nanoTime() - start);
+        return failures.get() == 0;
+    }
+
+    private void process(Path input) {
+        String name = input.getFileName().toString();
+        Path output = decompress
+            ? input.resolveSibling(name.substring(0, name.length() - EXTENSION.length()))
+            : input.resolveSibling(name + EXTENSION);
+        FileEvent job = CodecMetrics.startFile(decompress ? "decompress" : "compress", input.toString(), output.toString());
+        IOException failure = null;
+        try {
+            if (decompress) {
+                if (!force && Files.exists(output)) {
+                    throw new FileAlreadyExistsException(output.toString(), null, "not overwritten without --force");
+                }
+                new BlockDecompressor(1).decompress(input, output);
+            } else {
+                try (MappedInputStream in = new MappedInputStream(input);
+                     ChannelOutputStream out = new ChannelOutputStream(output)) {
+                    new BlockCompressor(BlockFormat.DEFAULT_BLOCK_SIZE, 1, options).compress(in, out);
+                }
+            }
+            bytesIn.addAndGet(Files.size(input));
+            bytesOut.addAndGet(Files.size(output));
+            files.incrementAndGet();
+        } catch (IOException e) {
+            failure = e;
+            failures.incrementAndGet();
+            System.out.println("Error: " + input + ": " + e.getMessage());
+        }
+        CodecMetrics.endFile(job, failure);
+    }
+
+    private void report(long nanos) {
+        double seconds = nanos / 1e9;
+        long raw = decompress ? bytesOut.get() : bytesIn.get();
+        long packed = decompress ? bytesIn.get() : bytesOut.get();
+        System.out.println("Files:       " + files.get() + " done, " + failures.get() + " failed");
+        System.out.println("Bytes in:    " + bytesIn.get());
+        System.out.println("Bytes out:   " + bytesOut.get());
+        if (raw > 0) {
+            System.out.printf("Ratio:       %.2f%%%n", 100.0 * packed / raw);
+        }
+        System.out.printf("Time:        %.3f s%n", seconds);
+        if (seconds > 0) {
+            System.out.printf("Throughput:  %.1f MB/s, %.1f files/s%n", raw / 1e6 / seconds, files.get() / seconds);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+import java.io.*;
+import java.lang.management.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Micro-benchmarks for each stage of the codec on deterministic synthetic
+ * corpora: histogram, tree build, code generation, encode, and decode of a
+ * single bitstream and of four interleaved ones, a whole block decoded into
+ * a heap array and copied to a direct buffer or decoded into the direct
+ * buffer itself, then the same table build, encode and decode for the FSE
+ * coder, and whole frames: LZ77 compression and decompression, and blocks
+ * coded one after another onto a chained stream.
+ *
+ * Usage: {@code java Benchmark [results.csv] [baseline.csv] [tolerance%]}
+ *
+ * Every stage is warmed up, then timed over WINDOWS slices of the measuring
+ * time, and the fastest slice is kept so that other work on the machine
+ * does not show up as a regression. Stages are reported in MB/s of raw
+ * input, time per operation (the useful figure for the table-building
+ * stages, whose cost does not depend on input size) and bytes allocated
+ * per operation.
+ * Runs with whichever loops Simd picked. When the Simd kernels are loaded,
+ * encode-scalar and encode-simd time each encode path on its own, so one
+ * run shows where the kernel gains over the scalar loop and whether
+ * Simd.encoder() picked the faster one.
+ * With a baseline file, any stage that got slower than the tolerance (10%
+ * by default) is listed and the exit status is 1, so the run can gate
+ * upgrades.
+ * The Maven module in jmh/ runs the same stages under JMH, with forks,
+ * per-iteration statistics and the gc profiler's allocation counts; this
+ * class stays as the quick gate that needs nothing but the JDK.
+ */
+public class Benchmark {
+    static final long SEED = 0x5EED;
+    static final int WARMUP_MILLIS = 500;
+    static final int MEASURE_MILLIS = 1000;
+    static final int WINDOWS = 10;
+    static final int[] SIZES = {4 << 10, 1 << 20, 16 << 20};
+
+    interface Stage {
+        void run() throws IOException;
+    }
+
+    static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /** Uniform random bytes: about 8 bits of entropy per byte. */
+    static byte[] uniform(int size, Random rnd) {
+        byte[] data = new byte[size];
+        rnd.nextBytes(data);
+        return data;
+    }
+
+    /** Geometric distribution over 64 symbols: about 2 bits per byte. */
+    static byte[] skewed(int size, Random rnd) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            int s = 0;
+            while (s < 63 && rnd.nextBoolean()) s++;
+            data[i] = (byte) ('0' + s);
+        }
+        return data;
+    }
+
+    /** Words drawn from a small Zipf-like vocabulary: English-like text, about 4.5 bits per byte. */
+    static byte[] text(int size, Random rnd) {
+        String[] words = {"the", "of", "and", "to", "in", "is", "that", "for", "it", "as", "was", "with",
+            "be", "by", "on", "not", "he", "this", "are", "or", "his", "from", "at", "which", "but",
+            "have", "an", "had", "they", "you", "were", "their", "one", "all", "we", "can", "her",
+            "has", "there", "been", "compression", "Huffman", "block", "ERROR", "INFO", "request"};
+        byte[] data = new byte[size];
+        int pos = 0;
+        while (pos < size) {
+            int w = (int) (words.length * Math.pow(rnd.nextDouble(), 2));
+            byte[] word = (words[w] + (rnd.nextInt(12) == 0 ? ".\n" : " ")).getBytes();
+            int n = Math.min(word.length, size - pos);
+            System.arraycopy(word, 0, data, pos, n);
+            pos += n;
+        }
+        return data;
+    }
+
+    static double[] measure(Stage stage) throws IOException {
+        long end = System.nanoTime() + WARMUP_MILLIS * 1_000_000L;
+        while (System.nanoTime() < end) stage.run();
+
+        long thread = Thread.currentThread().getId();
+        long ops = 0;
+        long allocated = THREADS.getThreadAllocatedBytes(thread);
+        double best = Double.MAX_VALUE;
+        for (int window = 0; window < WINDOWS; window++) {
+            long windowOps = 0;
+            long start = System.nanoTime();
+            end = start + MEASURE_MILLIS * 1_000_000L / WINDOWS;
+            long now;
+            do {
+                stage.run();
+                windowOps++;
+                now = System.nanoTime();
+            } while (now < end);
+            best = Math.min(best, (now - start) / (double) windowOps);
+            ops += windowOps;
+        }
+        allocated = THREADS.getThreadAllocatedBytes(thread) - allocated;
+        return new double[] {best, allocated / (double) ops};
+    }
+
+    /**
+     * The stages for one corpus and size, in the order they are reported.
+     * Each stage reuses the same buffers on every run.
+     */
+    static Map<String, Stage> stages(String corpus, int size) throws IOException {
+        Random rnd = new Random(SEED);
+        byte[] data = corpus.equals("uniform") ? uniform(size, rnd)
+            : corpus.equals("skewed") ? skewed(size, rnd) : text(size, rnd);
+
+        Histogram histogram = new Histogram();
+        histogram.add(data, 0, size);
+        long[] counts = histogram.counts.clone();
+        HuffmanCode huffmanCode = new HuffmanCode();
+        huffmanCode.build(counts);
+        HuffmanDecoder decoder = new HuffmanDecoder(huffmanCode);
+        HuffmanCoder coder = new HuffmanCoder(huffmanCode);
+        ByteBuffer encoded = ByteBuffer.allocate(HuffmanCodec.maxCompressedLength(size));
+        byte[] decoded = new byte[size];
+
+        Map<String, Stage> stages = new LinkedHashMap<>();
+        stages.put("histogram", () -> {
+            histogram.reset();
+            histogram.add(data, 0, size);
+        });
+        stages.put("tree", () -> huffmanCode.build(counts));
+        stages.put("codes", huffmanCode::assignCodes);
+        stages.put("encode", () -> {
+            encoded.clear();
+            coder.encode(data, 0, size, encoded);
+        });
+        Simd.Kernels simd = Simd.KERNELS;
+        if (simd != null) {
+            BitWriter bits = new BitWriter();
+            stages.put("encode-simd", () -> {
+                encoded.clear();
+                bits.reset(encoded);
+                simd.encode(data, 0, size, huffmanCode, bits);
+                bits.flush();
+            });
+            stages.put("encode-scalar", () -> {
+                encoded.clear();
+                bits.reset(encoded);
+                for (int i = 0; i < size; i++) {
+                    int ch = data[i] & 0xFF;
+                    bits.write(huffmanCode.code[ch], huffmanCode.len[ch]);
+                }
+                bits.flush();
+            });
+        }
+        stages.get("encode").run();
+        int encodedSize = encoded.position();
+        stages.put("decode", () -> decoder.decode(encoded.array(), 0, encodedSize, decoded, 0, size));
+
+        HuffmanCodec codec = new HuffmanCodec();
+        ByteBuffer interleaved = ByteBuffer.allocate(HuffmanCodec.maxCompressedLength(size));
+        codec.writeBits(ByteBuffer.wrap(data), interleaved, huffmanCode, true);
+        int interleavedSize = interleaved.position();
+        stages.put("decode4", () -> decoder.decode4(interleaved.array(), 0, interleavedSize, decoded, 0, size));
+
+        // A whole frame decoded the way BlockDecompressor fills its output
+        // mapping (a direct buffer here): into a heap array and copied over,
+        // against decoding straight into the direct buffer.
+        ByteBuffer frame = ByteBuffer.allocate(HuffmanCodec.maxCompressedLength(size));
+        codec.compress(ByteBuffer.wrap(data), frame, new CodecOptions());
+        int checksum = frame.getInt(8);
+        ByteBuffer payload = ByteBuffer.wrap(frame.array(), BlockFormat.FRAME_HEADER_SIZE,
+            frame.position() - BlockFormat.FRAME_HEADER_SIZE).slice();
+        ByteBuffer mapping = ByteBuffer.allocateDirect(size);
+        stages.put("block-copy", () -> {
+            codec.decodePayload(payload.duplicate(), ByteBuffer.wrap(decoded), size, checksum);
+            mapping.clear();
+            mapping.put(decoded, 0, size);
+        });
+        stages.put("block-direct", () -> {
+            mapping.clear();
+            codec.decodePayload(payload.duplicate(), mapping, size, checksum);
+        });
+
+        CodecOptions lzOptions = new CodecOptions();
+        lzOptions.lz = true;
+        ByteBuffer lzSrc = ByteBuffer.wrap(data);
+        ByteBuffer lzFrame = ByteBuffer.allocate(HuffmanCodec.maxCompressedLength(size));
+        ByteBuffer lzOut = ByteBuffer.wrap(decoded);
+        stages.put("lz-compress", () -> {
+            lzFrame.clear();
+            codec.compress(lzSrc.clear(), lzFrame, lzOptions);
+        });
+        stages.get("lz-compress").run();
+        int lzSize = lzFrame.position();
+        stages.put("lz-decompress", () -> codec.decompress(lzFrame.clear().limit(lzSize), lzOut.clear()));
+
+        // One block per run, alternately the data and the data with its
+        // top bits flipped, so most blocks turn down the table before them.
+        byte[] flipped = data.clone();
+        for (int i = 0; i < size; i++) flipped[i] ^= (byte) 0x80;
+        ByteBuffer[] blocks = {ByteBuffer.wrap(data), ByteBuffer.wrap(flipped)};
+        ByteBuffer chained = ByteBuffer.allocate(HuffmanCodec.maxCompressedLength(size));
+        TableLink[] link = {TableLink.first()};
+        stages.put("chain", () -> {
+            chained.clear();
+            codec.compress(blocks[link[0].block & 1].clear(), chained, CodecOptions.DEFAULT, link[0]);
+            link[0] = link[0].next();
+        });
+
+        EntropyCoder fse = new FseCoder();
+        fse.build(counts);
+        ByteBuffer fseEncoded = ByteBuffer.allocate(HuffmanCodec.maxCompressedLength(size));
+        stages.put("fse-table", () -> fse.build(counts));
+        stages.put("fse-encode", () -> {
+            fseEncoded.clear();
+            fse.encode(data, 0, size, fseEncoded);
+        });
+        stages.get("fse-encode").run();
+        int fseSize = fseEncoded.position();
+        stages.put("fse-decode", () -> fse.decode(fseEncoded.array(), 0, fseSize, decoded, 0, size));
+        return stages;
+    }
+
+    /** One stage as a Callable, for the JMH benchmarks in jmh/, which cannot name this package's types. */
+    static Callable<Void> stage(String name, String corpus, int size) throws IOException {
+        Stage stage = stages(corpus, size).get(name);
+        if (stage == null) throw new IllegalArgumentException("No stage " + name + ".");
+        return () -> {
+            stage.run();
+            return null;
+        };
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, Double> results = new LinkedHashMap<>();
+        System.out.println(Simd.KERNELS == null ? "Scalar loops (no Simd kernels)"
+            : "Simd kernels on " + Simd.KERNELS.vectorBits() + "-bit vectors");
+        System.out.printf("%-28s %12s %12s %14s%n", "benchmark", "MB/s", "us/op", "alloc B/op");
+
+        for (String corpus : new String[] {"uniform", "skewed", "text"}) {
+            for (int size : SIZES) {
+                for (Map.Entry<String, Stage> stage : stages(corpus, size).entrySet()) {
+                    double[] r = measure(stage.getValue());
+                    double mbs = size / 1e6 / (r[0] / 1e9);
+                    String name = stage.getKey() + "/" + corpus + "/" + size;
+                    results.put(name, mbs);
+                    System.out.printf("%-28s %12.1f %12.2f %14.0f%n", name, mbs, r[0] / 1e3, r[1]);
+                }
+            }
+        }
+
+        if (args.length > 0) {
+            try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(args[0])))) {
+                for (Map.Entry<String, Double> r : results.entrySet()) {
+                    out.printf(Locale.ROOT, "%s,%.1f%n", r.getKey(), r.getValue());
+                }
+            }
+        }
+        if (args.length > 1) {
+            double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+            boolean regressed = false;
+            for (String line : Files.readAllLines(Paths.get(args[1]))) {
+                String[] parts = line.split(",");
+                Double now = results.get(parts[0]);
+                double before = Double.parseDouble(parts[1]);
+                if (now != null && now < before * (1 - tolerance / 100)) {
+                    System.out.printf("Regression: %s %.1f -> %.1f MB/s%n", parts[0], before, now);
+                    regressed = true;
+                }
+            }
+            if (regressed) System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+import java.nio.*;
+
+/**
+ * MSB-first bit writer. Whole codes are shifted into a 64-bit accumulator and
+ * stored into the destination buffer 32 bits at a time. A writer can be
+ * pointed at a new buffer with reset(), so it is never reallocated.
+ */
+class BitWriter {
+    private long acc = 0;
+    private int bitCount = 0;
+    private ByteBuffer dst;
+
+    BitWriter() {
+    }
+
+    BitWriter(ByteBuffer dst) {
+        reset(dst);
+    }
+
+    void reset(ByteBuffer dst) {
+        this.dst = dst;
+        acc = 0;
+        bitCount = 0;
+    }
+
+    /** Writes the low {@code length} bits of {@code code}; length must be at most 32. */
+    void write(int code, int length) {
+        acc = (acc << length) | (code & 0xFFFFFFFFL);
+        bitCount += length;
+        if (bitCount >= 32) {
+            bitCount -= 32;
+            dst.putInt((int) (acc >>> bitCount));
+        }
+    }
+
+    /**
+     * Writes words[0, count) as whole 32-bit codes, the same bits as
+     * write(words[i], 32) for each in turn, but stored straight from the
+     * array when no partial code is pending.
+     */
+    void writeWords(int[] words, int count) {
+        if (bitCount != 0) {
+            for (int i = 0; i < count; i++) write(words[i], 32);
+            return;
+        }
+        for (int i = 0; i < count; i++) dst.putInt(words[i]);
+    }
+
+    /** Pads the last partial byte with zero bits and stores the remaining bytes. */
+    void flush() {
+        if (bitCount % 8 != 0) {
+            write(0, 8 - bitCount % 8);
+        }
+        while (bitCount > 0) {
+            bitCount -= 8;
+            dst.put((byte) (acc >>> bitCount));
+        }
+        acc = 0;
+    }
+}
@@ -0,0 +1,199 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Splits the input into fixed-size blocks and Huffman codes each one with
+ * its own table on a thread pool, with reading and writing on their own
+ * threads (see BlockPipeline). Finished blocks are written strictly in
+ * input order, so the output is the same for any number of threads.
+ * Blocks are chained with TableLinks so a block can reuse the previous
+ * block's table when its statistics barely change.
+ *
+ * The first block is read on the calling thread. When it is all there is,
+ * it is coded and written right there, without starting the pipeline, so
+ * small files cost one block-sized pass and no threads. Block buffers start
+ * at the input's size, or FIRST_CAPACITY when that is unknown, and grow up
+ * to blockSize only as the input fills them.
+ */
+class BlockCompressor {
+    static final int FIRST_CAPACITY = 1 << 16;
+
+    private final int blockSize;
+    private final int threads;
+    private final CodecOptions options;
+
+    BlockCompressor() {
+        this(CodecOptions.DEFAULT);
+    }
+
+    BlockCompressor(CodecOptions options) {
+        this(BlockFormat.DEFAULT_BLOCK_SIZE, Runtime.getRuntime().availableProcessors(), options);
+    }
+
+    BlockCompressor(int blockSize, int threads) {
+        this(blockSize, threads, CodecOptions.DEFAULT);
+    }
+
+    BlockCompressor(int blockSize, int threads, CodecOptions options) {
+        if (blockSize <= 0 || blockSize > BlockFormat.MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size must be between 1 and " + BlockFormat.MAX_BLOCK_SIZE + ".");
+        }
+        this.blockSize = blockSize;
+        this.threads = threads;
+        this.options = options;
+    }
+
+    /** Compresses a file-sized input and appends a block index for random access. */
+    void compress(InputStream in, OutputStream out) throws IOException {
+        compress(in, out, true, BlockFormat.UNKNOWN_LENGTH);
+    }
+
+    /** Same as compress(InputStream, OutputStream), recording the file's size in the header. */
+    void compress(MappedInputStream in, OutputStream out) throws IOException {
+        compress(in, out, true, in.size());
+    }
+
+    /**
+     * Compresses a stream of unknown length, such as stdin or a pipe, in a
+     * single pass. No index is kept, so memory stays bounded by the blocks in
+     * flight however long the stream runs, and each finished block is flushed
+     * as soon as it is written. Readers rebuild the index from the frame
+     * headers when they need one.
+     */
+    void compressStream(InputStream in, OutputStream out) throws IOException {
+        compress(in, out, false, BlockFormat.UNKNOWN_LENGTH);
+    }
+
+    void compress(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        OutputStream stream = Channels.newOutputStream(out);
+        compressStream(Channels.newInputStream(in), stream);
+        stream.flush();
+    }
+
+    private void compress(InputStream in, OutputStream out, boolean indexed, long length) throws IOException {
+        DataOutputStream dout = new DataOutputStream(out);
+        dout.writeInt(BlockFormat.MAGIC);
+        dout.writeByte(BlockFormat.VERSION);
+        boolean filtered = indexed && options.searchFilter;
+        dout.writeByte(!indexed ? BlockFormat.FLAG_NO_INDEX : filtered ? BlockFormat.FLAG_SEARCH_FILTER : 0);
+        dout.writeInt(blockSize);
+        dout.writeLong(length);
+
+        long expected = length == BlockFormat.UNKNOWN_LENGTH ? FIRST_CAPACITY : Math.max(length, 1);
+        BlockIndex index = indexed ? new BlockIndex() : null;
+        if (filtered) index.filterSize = BlockFilter.size(blockSize);
+        Job job = new Job(in, dout, index, (int) Math.min(expected, blockSize));
+        Chunk first = new Chunk();
+        if (job.read(first)) {
+            if (first.length < blockSize) {
+                // A short read means the input has ended: this is the only block.
+                job.code(first);
+                job.write(first);
+            } else {
+                job.pending = first;
+                new BlockPipeline<>("compression", threads, Chunk::new).run(job);
+            }
+        }
+
+        if (length != BlockFormat.UNKNOWN_LENGTH && job.total != length) {
+            throw new IOException("Input changed size while compressing.");
+        }
+        dout.writeInt(BlockFormat.END_OF_BLOCKS);
+        if (indexed) {
+            long indexOffset = job.position + 4;
+            job.index.write(dout);
+            dout.writeLong(indexOffset);
+            dout.writeInt(BlockFormat.MAGIC);
+        }
+        dout.flush();
+    }
+
+    /**
+     * One block's input and the frame it codes to, reused from block to
+     * block. Both buffers are allocated by the first block that needs them
+     * and only ever grow.
+     */
+    private static final class Chunk extends BlockPipeline.Chunk {
+        byte[] block;
+        ByteBuffer frame;
+        int length;
+        TableLink link;
+        /** The block's search filter, when the index keeps them. */
+        BlockFilter filter;
+    }
+
+    /**
+     * The pipeline stages for one input. Only the reader touches total and
+     * link, and only the writer touches position and index.
+     */
+    private final class Job implements BlockPipeline.Stages<Chunk> {
+        private final InputStream in;
+        private final DataOutputStream out;
+        private final int capacity;
+        final BlockIndex index;
+        long total;
+        long position = BlockFormat.HEADER_SIZE;
+        private TableLink link = TableLink.first();
+        /** A block read before the pipeline started, handed to the first chunk it reads into. */
+        Chunk pending;
+
+        Job(InputStream in, DataOutputStream out, BlockIndex index, int capacity) {
+            this.in = in;
+            this.out = out;
+            this.index = index;
+            this.capacity = capacity;
+        }
+
+        @Override
+        public boolean read(Chunk chunk) throws IOException {
+            if (pending != null) {
+                chunk.block = pending.block;
+                chunk.length = pending.length;
+                chunk.link = pending.link;
+                pending = null;
+                return true;
+            }
+            if (chunk.block == null) chunk.block = new byte[capacity];
+            int n = in.readNBytes(chunk.block, 0, chunk.block.length);
+            while (n == chunk.block.length && n < blockSize) {
+                chunk.block = Arrays.copyOf(chunk.block, Math.min(blockSize, 2 * n));
+                n += in.readNBytes(chunk.block, n, chunk.block.length - n);
+            }
+            if (n == 0) return false;
+            total += n;
+            chunk.length = n;
+            chunk.link = link;
+            link = link.next();
+            return true;
+        }
+
+        @Override
+        public void code(Chunk chunk) {
+            int size = HuffmanCodec.maxCompressedLength(chunk.length);
+            if (chunk.frame == null || chunk.frame.capacity() < size) chunk.frame = ByteBuffer.allocate(size);
+            chunk.frame.clear();
+            HuffmanCodec.get().compress(ByteBuffer.wrap(chunk.block, 0, chunk.length), chunk.frame, options, chunk.link);
+            chunk.frame.flip();
+            if (index != null && index.filterSize > 0) {
+                if (chunk.filter == null) chunk.filter = new BlockFilter(blockSize);
+                chunk.filter.build(chunk.block, chunk.length);
+            }
+        }
+
+        @Override
+        public void write(Chunk chunk) throws IOException {
+            ByteBuffer frame = chunk.frame;
+            if (index != null && index.filterSize > 0) {
+                index.add(position, frame.getInt(4), frame.getInt(0), chunk.filter.bytes);
+            } else if (index != null) {
+                index.add(position, frame.getInt(4), frame.getInt(0));
+            }
+            out.write(frame.array(), 0, frame.limit());
+            position += frame.limit();
+            // Streams are flushed block by block so readers see each block as soon as it is coded.
+            if (index == null) out.flush();
+        }
+    }
+}
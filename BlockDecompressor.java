@@ -0,0 +1,382 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Reads the block format written by BlockCompressor. Files are decoded in
+ * parallel: the block index gives every block's position in both files, so
+ * the output is sized and memory-mapped up front and each block is copied
+ * into its own slice of the mapping.
+ * Coded blocks are decoded into a per-thread heap array and then copied to
+ * the mapping in one bulk put, on purpose: the decoders run on arrays, and
+ * against a direct buffer they fall back to a get and put per byte, which
+ * Benchmark's block-copy and block-direct stages show is slower than the
+ * extra copy. Stored blocks have nothing to decode and go straight from the
+ * read buffer to the mapping.
+ * Streams without random access are read front to back and decoded in
+ * parallel behind the reader. Every block is checked against the CRC32C in
+ * its frame header.
+ */
+class BlockDecompressor {
+    // Block type byte plus the largest code length table.
+    static final int MAX_TABLE_PREFIX = 1 + 2 + HuffmanCode.SYMBOLS / 2;
+
+    // Per-thread buffer that coded blocks are decoded into before being copied out.
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[0]);
+
+    /** The fields of a file header. */
+    static final class Header {
+        final int flags;
+        final int blockSize;
+        final long length;
+
+        Header(int flags, int blockSize, long length) {
+            this.flags = flags;
+            this.blockSize = blockSize;
+            this.length = length;
+        }
+    }
+
+    private final int threads;
+
+    BlockDecompressor() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    BlockDecompressor(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Decodes a compressed file into output. The output is sized in full
+     * before any block is decoded, so if decoding fails it is deleted rather
+     * than left behind partly filled with zeros.
+     */
+    void decompress(Path input, Path output) throws IOException {
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ)) {
+            FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING);
+            try (out) {
+                decodeBlocks(in, out);
+            } catch (IOException | RuntimeException e) {
+                deleteOutput(output, e);
+                throw e;
+            }
+        }
+    }
+
+    /** Deletes the output of a failed decode, adding any error in doing so to the failure. */
+    static void deleteOutput(Path output, Exception failure) {
+        try {
+            Files.deleteIfExists(output);
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Decodes every block of a compressed file and checks its checksum, in
+     * parallel, without writing the output anywhere.
+     *
+     * @return the file's block index
+     */
+    BlockIndex test(Path input) throws IOException {
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ)) {
+            return decodeBlocks(in, null);
+        }
+    }
+
+    /** Decodes all blocks of {@code in} into {@code out}, or only checks them if out is null. */
+    private BlockIndex decodeBlocks(FileChannel in, FileChannel out) throws IOException {
+        BlockIndex index = readIndex(in);
+
+        // Map the output at its final size so every block is copied straight to its own offset.
+        ByteBuffer[] regions = out == null ? null : mapOutput(out, index);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> results = new ArrayList<>(index.count);
+            for (int i = 0; i < index.count; i++) {
+                int b = i;
+                results.add(pool.submit(() -> {
+                    decodeBlockAt(in, regions == null ? null : regions[b], index, b);
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                await(result);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return index;
+    }
+
+    /**
+     * Reads a compressed file's header and block index, rebuilding the index
+     * if the file has none, and checks that they agree. No block is empty,
+     * every block but the last is a whole block, no payload is larger than
+     * the compressor ever writes, and the last block's frame header must
+     * match its entry, so a damaged index cannot size the output wrong.
+     */
+    static BlockIndex readIndex(FileChannel in) throws IOException {
+        ByteBuffer bytes = BlockIndex.readFully(in, 0, BlockFormat.HEADER_SIZE);
+        Header header = readHeader(new DataInputStream(new ByteArrayInputStream(bytes.array())));
+        boolean indexed = (header.flags & BlockFormat.FLAG_NO_INDEX) == 0;
+        BlockIndex index = indexed
+            ? BlockIndex.read(in, (header.flags & BlockFormat.FLAG_SEARCH_FILTER) != 0)
+            : BlockIndex.scan(in);
+        for (int b = 0; b < index.count; b++) {
+            int raw = index.rawSize[b];
+            if (raw <= 0 || raw > header.blockSize || (raw != header.blockSize && b < index.count - 1)
+                    || index.payloadSize[b] < 0 || index.payloadSize[b] > maxPayloadSize(raw)) {
+                throw new IOException("Corrupt block index.");
+            }
+        }
+        if (indexed && index.count > 0) {
+            int last = index.count - 1;
+            ByteBuffer frame = BlockIndex.readFully(in, index.offset[last], 8);
+            if (frame.getInt() != index.rawSize[last] || frame.getInt() != index.payloadSize[last]) {
+                throw new IOException("Block " + last + " does not match the block index.");
+            }
+        }
+        if (header.length != BlockFormat.UNKNOWN_LENGTH && header.length != index.totalRawSize) {
+            throw new IOException("Block index does not match the length in the header.");
+        }
+        return index;
+    }
+
+    /**
+     * Maps the output file at its final size and returns each block's slice
+     * of it. Each mapping covers whole blocks and, unless a single block is
+     * larger, at most MappedInputStream.WINDOW bytes.
+     */
+    private static ByteBuffer[] mapOutput(FileChannel out, BlockIndex index) throws IOException {
+        ByteBuffer[] regions = new ByteBuffer[index.count];
+        int first = 0;
+        while (first < index.count) {
+            long start = index.rawOffset[first];
+            int last = first + 1;
+            while (last < index.count
+                    && index.rawOffset[last] + index.rawSize[last] - start <= MappedInputStream.WINDOW) {
+                last++;
+            }
+            long size = index.rawOffset[last - 1] + index.rawSize[last - 1] - start;
+            MappedByteBuffer map = out.map(FileChannel.MapMode.READ_WRITE, start, size);
+            for (int b = first; b < last; b++) {
+                regions[b] = map.slice((int) (index.rawOffset[b] - start), index.rawSize[b]);
+            }
+            first = last;
+        }
+        return regions;
+    }
+
+    /** Decodes block b into {@code dst}, or only checks it if dst is null. */
+    static void decodeBlockAt(FileChannel in, ByteBuffer dst, BlockIndex index, int b) throws IOException {
+        int raw = index.rawSize[b];
+        int payloadSize = index.payloadSize[b];
+        ByteBuffer frame = BlockIndex.readFully(in, index.offset[b], BlockFormat.FRAME_HEADER_SIZE + payloadSize);
+        if (frame.getInt(0) != raw || frame.getInt(4) != payloadSize) {
+            throw new IOException("Block " + b + " does not match the block index.");
+        }
+        int checksum = frame.getInt(8);
+        ByteBuffer payload = frame.position(BlockFormat.FRAME_HEADER_SIZE).slice();
+        try {
+            decodeBlockPayload(in, index, b, payload, dst, raw, checksum);
+        } catch (IOException e) {
+            throw new IOException("Block " + b + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static void decodeBlockPayload(FileChannel in, BlockIndex index, int b, ByteBuffer payload,
+            ByteBuffer dst, int raw, int checksum) throws IOException {
+        int payloadSize = payload.remaining();
+        int type = payloadSize > 0 ? HuffmanCodec.blockType(payload.get(0)) : -1;
+        if (type == HuffmanCodec.TYPE_RAW) {
+            // Stored blocks go straight from the read buffer to the output.
+            if (payloadSize != 1 + raw) throw new IOException("Corrupt stored block.");
+            payload.position(1);
+            HuffmanCodec.get().verify(payload, checksum);
+            if (dst != null) dst.put(payload);
+            return;
+        }
+
+        byte[] block = SCRATCH.get();
+        if (block.length < raw) {
+            block = new byte[raw];
+            SCRATCH.set(block);
+        }
+        if (type == HuffmanCodec.TYPE_REPEAT) {
+            int distance = payloadSize >= 5 ? payload.getInt(1) : 0;
+            if (distance <= 0 || distance > b) throw new IOException("Corrupt block reference.");
+            int t = b - distance;
+            ByteBuffer table = BlockIndex.readFully(in, index.offset[t] + BlockFormat.FRAME_HEADER_SIZE,
+                Math.min(index.payloadSize[t], MAX_TABLE_PREFIX));
+            HuffmanCodec.get().decodeRepeat(table, payload, ByteBuffer.wrap(block, 0, raw), raw, checksum);
+        } else {
+            decodeBlock(payload.array(), payload.arrayOffset(), payloadSize, block, 0, raw, checksum);
+        }
+        if (dst != null) dst.put(block, 0, raw);
+    }
+
+    private static void await(Future<?> result) throws IOException {
+        try {
+            result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decompressing.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("Block decompression failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /** Reads and checks the file header. */
+    static Header readHeader(DataInputStream din) throws IOException {
+        if (din.readInt() != BlockFormat.MAGIC) {
+            throw new IOException("Not a compressed file.");
+        }
+        int version = din.readUnsignedByte();
+        if (version != BlockFormat.VERSION) {
+            throw new IOException("Unsupported format version " + version + ".");
+        }
+        int flags = din.readUnsignedByte();
+        int blockSize = din.readInt();
+        long length = din.readLong();
+        if (blockSize <= 0 || blockSize > BlockFormat.MAX_BLOCK_SIZE
+                || (length < 0 && length != BlockFormat.UNKNOWN_LENGTH)) {
+            throw new IOException("Corrupt file header.");
+        }
+        return new Header(flags, blockSize, length);
+    }
+
+    /**
+     * Decodes a compressed stream front to back, such as stdin or a pipe,
+     * reading frames, decoding blocks and writing them out on separate
+     * threads (see BlockPipeline). Each block is flushed to the output as
+     * soon as it is decoded. If the header records the length, a stream that
+     * decodes to any other length is rejected.
+     */
+    void decompress(InputStream in, OutputStream out) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        Header header = readHeader(din);
+        new BlockPipeline<>("decompression", threads, StreamChunk::new).run(new StreamJob(din, out, header));
+    }
+
+    /** One frame of a stream and the block it decodes to, reused from frame to frame. */
+    private static final class StreamChunk extends BlockPipeline.Chunk {
+        byte[] payload = new byte[0];
+        byte[] block = new byte[0];
+        // The TYPE_HUFFMAN payload prefix a TYPE_REPEAT block refers to.
+        final byte[] table = new byte[MAX_TABLE_PREFIX];
+        int payloadSize;
+        int type;
+        int raw;
+        int checksum;
+    }
+
+    /** The pipeline stages for one stream; the reader checks the frames and resolves table references. */
+    private static final class StreamJob implements BlockPipeline.Stages<StreamChunk> {
+        private final DataInputStream in;
+        private final OutputStream out;
+        private final Header header;
+        private int b;
+        private long total;
+        private boolean ended;
+        // The last TYPE_HUFFMAN payload's type byte and table, for TYPE_REPEAT blocks.
+        private final byte[] table = new byte[MAX_TABLE_PREFIX];
+        private int tableBlock = -1;
+
+        StreamJob(DataInputStream in, OutputStream out, Header header) {
+            this.in = in;
+            this.out = out;
+            this.header = header;
+        }
+
+        @Override
+        public boolean read(StreamChunk chunk) throws IOException {
+            int raw = in.readInt();
+            if (raw == BlockFormat.END_OF_BLOCKS) {
+                if (header.length != BlockFormat.UNKNOWN_LENGTH && total != header.length) {
+                    throw new IOException("Stream is shorter than the length in its header.");
+                }
+                return false;
+            }
+            int payloadSize = in.readInt();
+            int checksum = in.readInt();
+            // Only the last block may be short.
+            if (raw <= 0 || raw > header.blockSize || payloadSize < 0 || payloadSize > maxPayloadSize(raw) || ended) {
+                throw new IOException("Corrupt block header.");
+            }
+            ended = raw < header.blockSize;
+            total += raw;
+            if (header.length != BlockFormat.UNKNOWN_LENGTH && total > header.length) {
+                throw new IOException("Stream is longer than the length in its header.");
+            }
+            if (chunk.payload.length < payloadSize) chunk.payload = new byte[payloadSize];
+            byte[] payload = chunk.payload;
+            in.readFully(payload, 0, payloadSize);
+            int type = payloadSize > 0 ? HuffmanCodec.blockType(payload[0]) : -1;
+            if (type == HuffmanCodec.TYPE_REPEAT) {
+                int distance = payloadSize >= 5 ? ByteBuffer.wrap(payload).getInt(1) : 0;
+                if (distance <= 0 || b - distance != tableBlock) throw new IOException("Corrupt block reference.");
+                System.arraycopy(table, 0, chunk.table, 0, MAX_TABLE_PREFIX);
+            } else if (type == HuffmanCodec.TYPE_HUFFMAN) {
+                System.arraycopy(payload, 0, table, 0, Math.min(payloadSize, MAX_TABLE_PREFIX));
+                tableBlock = b;
+            }
+            chunk.payloadSize = payloadSize;
+            chunk.type = type;
+            chunk.raw = raw;
+            chunk.checksum = checksum;
+            b++;
+            return true;
+        }
+
+        @Override
+        public void code(StreamChunk chunk) throws IOException {
+            int raw = chunk.raw;
+            if (chunk.type == HuffmanCodec.TYPE_RAW) {
+                if (chunk.payloadSize != 1 + raw) throw new IOException("Corrupt stored block.");
+                HuffmanCodec.get().verify(ByteBuffer.wrap(chunk.payload, 1, raw), chunk.checksum);
+                return;
+            }
+            if (chunk.block.length < raw) chunk.block = new byte[raw];
+            if (chunk.type == HuffmanCodec.TYPE_REPEAT) {
+                HuffmanCodec.get().decodeRepeat(ByteBuffer.wrap(chunk.table),
+                    ByteBuffer.wrap(chunk.payload, 0, chunk.payloadSize), ByteBuffer.wrap(chunk.block, 0, raw), raw,
+                    chunk.checksum);
+            } else {
+                decodeBlock(chunk.payload, 0, chunk.payloadSize, chunk.block, 0, raw, chunk.checksum);
+            }
+        }
+
+        @Override
+        public void write(StreamChunk chunk) throws IOException {
+            if (chunk.type == HuffmanCodec.TYPE_RAW) {
+                out.write(chunk.payload, 1, chunk.raw);
+            } else {
+                out.write(chunk.block, 0, chunk.raw);
+            }
+            out.flush();
+        }
+    }
+
+    void decompress(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        decompress(Channels.newInputStream(in), Channels.newOutputStream(out));
+    }
+
+    /** The largest payload the compressor writes for a block of {@code raw} bytes. */
+    static int maxPayloadSize(int raw) {
+        return HuffmanCodec.maxCompressedLength(raw) - BlockFormat.FRAME_HEADER_SIZE;
+    }
+
+    static void decodeBlock(byte[] src, int off, int length, byte[] dst, int dstOff, int raw, int checksum)
+            throws IOException {
+        HuffmanCodec.get().decodePayload(ByteBuffer.wrap(src, off, length), ByteBuffer.wrap(dst, dstOff, raw), raw,
+            checksum);
+    }
+}
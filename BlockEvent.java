@@ -0,0 +1,58 @@
+import jdk.jfr.*;
+
+/** JFR event for one block coded by HuffmanCodec, with the time spent in each phase. */
+@Name("huffman.Block")
+@Label("Huffman Block")
+@Category("Huffman")
+@StackTrace(false)
+class BlockEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Block Type")
+    String blockType;
+
+    @Label("Raw Size")
+    @DataAmount
+    long rawSize;
+
+    @Label("Frame Size")
+    @DataAmount
+    long frameSize;
+
+    @Label("Histogram")
+    @Timespan
+    long histogram;
+
+    @Label("Tree Build")
+    @Timespan
+    long treeBuild;
+
+    @Label("Header Write")
+    @Timespan
+    long headerWrite;
+
+    @Label("Encode")
+    @Timespan
+    long encode;
+
+    @Label("Tree Read")
+    @Timespan
+    long treeRead;
+
+    @Label("Decode")
+    @Timespan
+    long decode;
+
+    @Label("LZ77 Parse")
+    @Timespan
+    long lzParse;
+
+    @Label("LZ77 Execute")
+    @Timespan
+    long lzExecute;
+
+    @Label("Tokenize")
+    @Timespan
+    long tokenize;
+}
@@ -0,0 +1,113 @@
+import java.util.*;
+
+/**
+ * A block's search filter, kept in the block index so BlockSearcher can
+ * rule blocks out without reading them: a bitmap of the byte values the
+ * block contains, its first and last EDGE_SIZE bytes, and a bitmap of its
+ * byte trigrams, each hashed to one bit. A clear bit proves the byte or
+ * trigram absent; a set trigram bit may be a collision. The edges decide
+ * exactly whether a match can straddle the boundary of two blocks, as far
+ * as it reaches into them.
+ *
+ * The trigram bitmap has one bit per 16 bytes of block, so a megabyte of
+ * text, with some 30,000 distinct trigrams, sets about 40% of it and a
+ * word that is not in the block usually has a trigram whose bit is clear.
+ * Single bytes alone cannot do that: every block of text holds every
+ * letter.
+ */
+class BlockFilter {
+    static final int BYTES_SIZE = 32;
+    static final int EDGE_SIZE = 16;
+    static final int MIN_TRIGRAM_SIZE = 32;
+
+    private static final int HEAD = BYTES_SIZE;
+    private static final int TAIL = HEAD + EDGE_SIZE;
+    private static final int TRIGRAMS = TAIL + EDGE_SIZE;
+    private static final int HASH = 0x9E3779B1;
+
+    /** The filter, laid out as described above. */
+    final byte[] bytes;
+    // One flag per byte value and per trigram bit. Plain stores into these
+    // are much faster than or-ing bits into place, and are packed at the end.
+    private final boolean[] seen = new boolean[256];
+    private final boolean[] trigrams;
+
+    /** A filter for blocks of up to {@code blockSize} bytes, reused from block to block. */
+    BlockFilter(int blockSize) {
+        bytes = new byte[size(blockSize)];
+        trigrams = new boolean[(bytes.length - TRIGRAMS) << 3];
+    }
+
+    /** Filter size in bytes for blocks of {@code blockSize}; trigram bitmaps are a power of two. */
+    static int size(int blockSize) {
+        return TRIGRAMS + Math.max(MIN_TRIGRAM_SIZE, Integer.highestOneBit(blockSize >>> 7));
+    }
+
+    /** Whether {@code size} is one that size() returns. */
+    static boolean isValidSize(int size) {
+        int trigrams = size - TRIGRAMS;
+        return trigrams >= MIN_TRIGRAM_SIZE && trigrams == Integer.highestOneBit(trigrams)
+            && size <= size(BlockFormat.MAX_BLOCK_SIZE);
+    }
+
+    /** Rebuilds the filter from block[0, length). */
+    void build(byte[] block, int length) {
+        boolean[] seen = this.seen;
+        boolean[] trigrams = this.trigrams;
+        int shift = shift(bytes);
+        int trigram = 0;
+        for (int i = 0; i < length; i++) {
+            int c = block[i] & 0xFF;
+            seen[c] = true;
+            trigram = trigram << 8 | c;
+            if (i >= 2) trigrams[(trigram & 0xFFFFFF) * HASH >>> shift] = true;
+        }
+        Arrays.fill(bytes, (byte) 0);
+        pack(seen, bytes, 0);
+        pack(trigrams, bytes, TRIGRAMS);
+        int edge = Math.min(EDGE_SIZE, length);
+        System.arraycopy(block, 0, bytes, HEAD, edge);
+        System.arraycopy(block, length - edge, bytes, TAIL + EDGE_SIZE - edge, edge);
+    }
+
+    /** Sets bit i of dst from flags[i], starting at byte {@code at}, and clears the flags. */
+    private static void pack(boolean[] flags, byte[] dst, int at) {
+        for (int i = 0; i < flags.length; i++) {
+            if (flags[i]) {
+                dst[at + (i >>> 3)] |= 1 << (i & 7);
+                flags[i] = false;
+            }
+        }
+    }
+
+    static boolean hasByte(byte[] filter, byte c) {
+        return (filter[(c & 0xFF) >>> 3] & 1 << (c & 7)) != 0;
+    }
+
+    /** Whether the block may contain pattern[at, at + 3). */
+    static boolean hasTrigram(byte[] filter, byte[] pattern, int at) {
+        int trigram = (pattern[at] & 0xFF) << 16 | (pattern[at + 1] & 0xFF) << 8 | pattern[at + 2] & 0xFF;
+        int bit = trigram * HASH >>> shift(filter);
+        return (filter[TRIGRAMS + (bit >>> 3)] & 1 << (bit & 7)) != 0;
+    }
+
+    /**
+     * Whether a block of {@code raw} bytes may start with pattern[from, to):
+     * compares as much of it as the recorded first bytes cover.
+     */
+    static boolean startsWith(byte[] filter, int raw, byte[] pattern, int from, int to) {
+        int k = Math.min(Math.min(to - from, EDGE_SIZE), raw);
+        return Arrays.equals(filter, HEAD, HEAD + k, pattern, from, from + k);
+    }
+
+    /** Whether a block of {@code raw} bytes may end with pattern[from, to), as startsWith(). */
+    static boolean endsWith(byte[] filter, int raw, byte[] pattern, int from, int to) {
+        int k = Math.min(Math.min(to - from, EDGE_SIZE), raw);
+        return Arrays.equals(filter, TRIGRAMS - k, TRIGRAMS, pattern, to - k, to);
+    }
+
+    /** Hashes take the top bits of trigram * HASH, as many as index the trigram bitmap. */
+    private static int shift(byte[] filter) {
+        return Integer.numberOfLeadingZeros((filter.length - TRIGRAMS) << 3) + 1;
+    }
+}
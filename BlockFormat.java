@@ -0,0 +1,43 @@
+/**
+ * Layout of a compressed file:
+ *
+ *   header   MAGIC (int), VERSION (byte), flags (byte), block size (int),
+ *            raw length (long, UNKNOWN_LENGTH if not known up front)
+ *   blocks   raw size (int), payload size (int), CRC32C of the raw bytes
+ *            (int), payload
+ *   end      END_OF_BLOCKS (int)
+ *   index    block count (int), then per block: offset (long),
+ *            payload size (int), raw size (int); with FLAG_SEARCH_FILTER,
+ *            then filter size (int) and each block's BlockFilter
+ *   trailer  index offset (long), MAGIC (int)
+ *
+ * Streams compressed in a single pass set FLAG_NO_INDEX and stop after the
+ * end marker; their index is rebuilt by walking the frame headers. Files
+ * compressed from a file of known size record it in the header, so readers
+ * can size their output before decoding anything. Readers that do not
+ * search skip the filters, which sit between the index entries and the
+ * trailer.
+ *
+ * Each block payload starts with a block type byte (see HuffmanCodec):
+ * either a code length table and the Huffman bitstream for that block
+ * alone, or the block's LZ77 sequence streams, each Huffman coded. The
+ * checksum lets a reader verify every block, in parallel, without writing
+ * the output anywhere (Decompress --test).
+ */
+class BlockFormat {
+    static final int MAGIC = 0x48554642; // "HUFB"
+    static final int VERSION = 4;
+    static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+    /** Larger block sizes in a header are taken as damage rather than allocated. */
+    static final int MAX_BLOCK_SIZE = 64 << 20;
+    static final int END_OF_BLOCKS = -1;
+    static final long UNKNOWN_LENGTH = -1;
+
+    static final int FLAG_NO_INDEX = 1;
+    static final int FLAG_SEARCH_FILTER = 2;
+
+    static final int HEADER_SIZE = 18;
+    static final int FRAME_HEADER_SIZE = 12;
+    static final int INDEX_ENTRY_SIZE = 16;
+    static final int TRAILER_SIZE = 12;
+}
@@ -0,0 +1,143 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/** Offsets and sizes of every block in a compressed file. */
+class BlockIndex {
+    int count = 0;
+    long[] offset = new long[16];
+    int[] payloadSize = new int[16];
+    int[] rawSize = new int[16];
+    long[] rawOffset = new long[16];
+    long totalRawSize = 0;
+    /** Size of each block's BlockFilter, or 0 if the index has none. */
+    int filterSize;
+    /** Where the filters start in a file that was read, or -1. */
+    long filterOffset = -1;
+    /** Filters collected for write(), one per block. */
+    byte[][] filters = new byte[0][];
+
+    void add(long blockOffset, int payload, int raw) {
+        if (count == offset.length) {
+            offset = Arrays.copyOf(offset, count * 2);
+            payloadSize = Arrays.copyOf(payloadSize, count * 2);
+            rawSize = Arrays.copyOf(rawSize, count * 2);
+            rawOffset = Arrays.copyOf(rawOffset, count * 2);
+        }
+        offset[count] = blockOffset;
+        payloadSize[count] = payload;
+        rawSize[count] = raw;
+        rawOffset[count] = totalRawSize;
+        totalRawSize += raw;
+        count++;
+    }
+
+    /** Adds a block with a copy of its search filter, which must be filterSize bytes. */
+    void add(long blockOffset, int payload, int raw, byte[] filter) {
+        add(blockOffset, payload, raw);
+        if (filters.length < offset.length) filters = Arrays.copyOf(filters, offset.length);
+        filters[count - 1] = filter.clone();
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeLong(offset[i]);
+            out.writeInt(payloadSize[i]);
+            out.writeInt(rawSize[i]);
+        }
+        if (filterSize > 0) {
+            out.writeInt(filterSize);
+            for (int i = 0; i < count; i++) out.write(filters[i]);
+        }
+    }
+
+    /** Block b's search filter, read from the file. */
+    byte[] filter(FileChannel channel, int b) throws IOException {
+        return readFully(channel, filterOffset + (long) b * filterSize, filterSize).array();
+    }
+
+    static BlockIndex read(FileChannel channel) throws IOException {
+        return read(channel, false);
+    }
+
+    /**
+     * Locates the index through the trailer at the end of the file, and
+     * checks that its blocks follow one another from the header to the
+     * end-of-blocks marker just before it. With {@code filtered}, the block
+     * filters must fill the rest of the index exactly.
+     */
+    static BlockIndex read(FileChannel channel, boolean filtered) throws IOException {
+        long size = channel.size();
+        if (size < BlockFormat.HEADER_SIZE + 4 + 4 + BlockFormat.TRAILER_SIZE) {
+            throw new IOException("File too short to be a compressed file.");
+        }
+        ByteBuffer trailer = readFully(channel, size - BlockFormat.TRAILER_SIZE, BlockFormat.TRAILER_SIZE);
+        long indexOffset = trailer.getLong();
+        if (trailer.getInt() != BlockFormat.MAGIC) {
+            throw new IOException("Missing block index trailer.");
+        }
+        if (indexOffset < BlockFormat.HEADER_SIZE + 4 || indexOffset > size - BlockFormat.TRAILER_SIZE - 4) {
+            throw new IOException("Corrupt block index.");
+        }
+
+        ByteBuffer head = readFully(channel, indexOffset, 4);
+        int n = head.getInt();
+        if (n < 0 || indexOffset + 4 + (long) n * BlockFormat.INDEX_ENTRY_SIZE > size - BlockFormat.TRAILER_SIZE) {
+            throw new IOException("Corrupt block index.");
+        }
+        ByteBuffer entries = readFully(channel, indexOffset + 4, n * BlockFormat.INDEX_ENTRY_SIZE);
+        BlockIndex index = new BlockIndex();
+        long position = BlockFormat.HEADER_SIZE;
+        for (int i = 0; i < n; i++) {
+            long offset = entries.getLong();
+            int payload = entries.getInt();
+            if (offset != position || payload < 0) throw new IOException("Corrupt block index.");
+            index.add(offset, payload, entries.getInt());
+            position += BlockFormat.FRAME_HEADER_SIZE + payload;
+        }
+        if (position + 4 != indexOffset) throw new IOException("Corrupt block index.");
+        if (filtered) {
+            long filters = indexOffset + 4 + (long) n * BlockFormat.INDEX_ENTRY_SIZE;
+            if (filters + 4 > size - BlockFormat.TRAILER_SIZE) throw new IOException("Corrupt block index.");
+            int filterSize = readFully(channel, filters, 4).getInt();
+            if (!BlockFilter.isValidSize(filterSize)
+                    || filters + 4 + (long) n * filterSize != size - BlockFormat.TRAILER_SIZE) {
+                throw new IOException("Corrupt block filters.");
+            }
+            index.filterOffset = filters + 4;
+            index.filterSize = filterSize;
+        }
+        return index;
+    }
+
+    /** Rebuilds the index of a file written without one by walking its frame headers. */
+    static BlockIndex scan(FileChannel channel) throws IOException {
+        BlockIndex index = new BlockIndex();
+        long position = BlockFormat.HEADER_SIZE;
+        while (true) {
+            ByteBuffer frame = readFully(channel, position, 4);
+            int raw = frame.getInt();
+            if (raw == BlockFormat.END_OF_BLOCKS) break;
+            int payload = readFully(channel, position + 4, 4).getInt();
+            if (raw < 0 || payload < 0 || position + BlockFormat.FRAME_HEADER_SIZE + payload > channel.size()) {
+                throw new IOException("Corrupt block header.");
+            }
+            index.add(position, payload, raw);
+            position += BlockFormat.FRAME_HEADER_SIZE + payload;
+        }
+        return index;
+    }
+
+    static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new EOFException("Unexpected end of file.");
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+}
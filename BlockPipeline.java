@@ -0,0 +1,140 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Three-stage pipeline for block streams: a reader thread fills chunks from
+ * the input, a pool of workers codes them, and the calling thread writes
+ * them out in the order they were read. Reading, coding and writing all
+ * overlap, so a run takes about as long as its slowest stage rather than
+ * the sum of all three.
+ *
+ * The stages are connected by bounded ring buffers (ArrayBlockingQueue)
+ * over a fixed number of chunks, created only as the reader needs them, so
+ * a short input never pays for a full set. A chunk goes back to the reader
+ * only after it has been written, so memory stays flat however long the
+ * input runs, and a slow writer stalls the reader instead of letting
+ * blocks pile up.
+ */
+class BlockPipeline<C extends BlockPipeline.Chunk> {
+    /** Base class for the reusable units of work passed between the stages. */
+    static class Chunk {
+        final Semaphore coded = new Semaphore(0);
+        boolean end;
+        Throwable failure;
+    }
+
+    /** What each stage does with a chunk. */
+    interface Stages<C extends Chunk> {
+        /** Reader thread: fills the next chunk, or returns false at the end of the input. */
+        boolean read(C chunk) throws IOException;
+
+        /** Worker threads: codes a filled chunk. */
+        void code(C chunk) throws IOException;
+
+        /** Calling thread: writes a coded chunk. Chunks arrive in the order they were read. */
+        void write(C chunk) throws IOException;
+    }
+
+    private final String operation;
+    private final int threads;
+    private final int maxChunks;
+    private final Supplier<C> newChunk;
+    private final List<C> chunks = new ArrayList<>();
+
+    /**
+     * A pipeline with {@code threads} workers and up to enough chunks to keep
+     * them busy while one chunk is read ahead and one is written behind.
+     */
+    BlockPipeline(String operation, int threads, Supplier<C> newChunk) {
+        this.operation = operation;
+        this.threads = threads;
+        this.maxChunks = 2 * threads + 2;
+        this.newChunk = newChunk;
+    }
+
+    /** Runs the stages until the reader reaches the end of its input or any stage fails. */
+    void run(Stages<C> stages) throws IOException {
+        ArrayBlockingQueue<C> free = new ArrayBlockingQueue<>(maxChunks, false, chunks);
+        ArrayBlockingQueue<C> filled = new ArrayBlockingQueue<>(maxChunks);
+        ArrayBlockingQueue<C> ordered = new ArrayBlockingQueue<>(maxChunks);
+        for (C chunk : chunks) {
+            chunk.coded.drainPermits();
+            chunk.end = false;
+            chunk.failure = null;
+        }
+
+        // Neither of the later queues can fill up: there are at most maxChunks chunks.
+        Thread reader = new Thread(() -> {
+            try {
+                while (true) {
+                    C chunk = free.poll();
+                    if (chunk == null && chunks.size() < maxChunks) {
+                        chunk = newChunk.get();
+                        chunks.add(chunk);
+                    } else if (chunk == null) {
+                        chunk = free.take();
+                    }
+                    boolean more;
+                    try {
+                        more = stages.read(chunk);
+                    } catch (Throwable e) {
+                        chunk.failure = e;
+                        more = false;
+                    }
+                    ordered.put(chunk);
+                    if (!more) {
+                        chunk.end = true;
+                        chunk.coded.release();
+                        return;
+                    }
+                    filled.put(chunk);
+                }
+            } catch (InterruptedException e) {
+                // The writer gave up.
+            }
+        }, operation + "-reader");
+        reader.setDaemon(true);
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            workers.execute(() -> {
+                try {
+                    while (true) {
+                        C chunk = filled.take();
+                        try {
+                            stages.code(chunk);
+                        } catch (Throwable e) {
+                            chunk.failure = e;
+                        }
+                        chunk.coded.release();
+                    }
+                } catch (InterruptedException e) {
+                    // Shut down by the writer.
+                }
+            });
+        }
+
+        reader.start();
+        try {
+            while (true) {
+                C chunk = ordered.take();
+                chunk.coded.acquire();
+                if (chunk.failure instanceof IOException) throw (IOException) chunk.failure;
+                if (chunk.failure != null) {
+                    throw new IOException("Block " + operation + " failed: " + chunk.failure.getMessage(), chunk.failure);
+                }
+                if (chunk.end) return;
+                stages.write(chunk);
+                free.put(chunk);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during block " + operation + ".");
+        } finally {
+            reader.interrupt();
+            workers.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,430 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Finds the lines of a compressed file that contain a literal pattern,
+ * without writing the decompressed file anywhere.
+ *
+ * Before anything is decoded, each block is judged from what the file
+ * records about it, and a block that cannot hold any part of a match is
+ * skipped: a match starting in a block needs a prefix of the pattern that
+ * the block could contain, a match ending in it a suffix, and a match
+ * across the boundary of two blocks a prefix in the first and the rest in
+ * the second. Files compressed with search filters (see BlockFilter) say
+ * which bytes and, up to hash collisions, which trigrams every block
+ * holds, which rules out most blocks of text for a word they lack. Other
+ * files fall back on the code tables, which only say which bytes a block
+ * holds, and only for blocks whose type has a table; LZ77, dictionary,
+ * stored and token blocks are then always searched. Every block of text
+ * holds every letter, so without filters the tables only help on binary
+ * and skewed data.
+ *
+ * The remaining blocks are decoded one at a time on a BlockPipeline and
+ * searched with Boyer-Moore-Horspool; matches across block boundaries and
+ * lines spanning blocks are stitched together in file order. Lines longer
+ * than MAX_LINE are reported by their first MAX_LINE bytes.
+ */
+class BlockSearcher {
+    static final int MAX_LINE = 1 << 16;
+
+    /** Receives each matching line once, in file order. */
+    interface Sink {
+        void line(long offset, byte[] line, int off, int len) throws IOException;
+    }
+
+    private final int threads;
+
+    BlockSearcher() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    BlockSearcher(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Reports every line of {@code input}'s original bytes that contains
+     * {@code pattern}, which may not contain a newline.
+     *
+     * @return the number of matching lines
+     */
+    long search(Path input, byte[] pattern, Sink sink) throws IOException {
+        if (pattern.length == 0) throw new IllegalArgumentException("Empty search pattern.");
+        for (byte c : pattern) {
+            if (c == '\n') throw new IllegalArgumentException("Search pattern spans lines.");
+        }
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ)) {
+            BlockIndex index = BlockDecompressor.readIndex(in);
+            boolean[] needed = candidates(in, index, pattern);
+            Job job = new Job(input, in, index, needed, pattern, sink);
+            try {
+                new BlockPipeline<>("search", threads, () -> new Chunk()).run(job);
+                job.finish();
+            } finally {
+                if (job.lines != null) job.lines.close();
+            }
+            return job.count;
+        }
+    }
+
+    /** Which blocks could take part in a match, judged from their filters or code tables alone. */
+    private static boolean[] candidates(FileChannel in, BlockIndex index, byte[] pattern) throws IOException {
+        int n = index.count;
+        int m = pattern.length;
+        boolean[] needed = new boolean[n];
+        // A block shorter than the pattern could lie inside a match; only the last one may be.
+        for (int b = 0; b < n - 1; b++) {
+            if (index.rawSize[b] < m) {
+                Arrays.fill(needed, true);
+                return needed;
+            }
+        }
+        if (index.filterOffset >= 0) return filtered(in, index, pattern, needed);
+        // Longest prefix and suffix of the pattern made only of bytes each block can contain.
+        int[] prefix = new int[n];
+        int[] suffix = new int[n];
+        boolean[][] present = new boolean[n][];
+        HuffmanCode code = new HuffmanCode();
+        for (int b = 0; b < n; b++) {
+            try {
+                present[b] = symbolsIn(in, index, b, present, code);
+            } catch (IOException e) {
+                throw new IOException("Block " + b + ": " + e.getMessage(), e);
+            }
+            if (present[b] == null) {
+                prefix[b] = m;
+                suffix[b] = m;
+                continue;
+            }
+            while (prefix[b] < m && present[b][pattern[prefix[b]] & 0xFF]) prefix[b]++;
+            while (suffix[b] < m && present[b][pattern[m - 1 - suffix[b]] & 0xFF]) suffix[b]++;
+        }
+        for (int b = 0; b < n; b++) {
+            if (prefix[b] == m) needed[b] = true;
+            if (b + 1 < n && prefix[b] > 0 && suffix[b + 1] > 0 && prefix[b] + suffix[b + 1] >= m) {
+                needed[b] = true;
+                needed[b + 1] = true;
+            }
+        }
+        return needed;
+    }
+
+    /**
+     * candidates() for a file with BlockFilters. A match across the boundary
+     * of blocks b - 1 and b, split after s bytes of the pattern, must agree
+     * with the recorded edges of both and be plausible in each.
+     */
+    private static boolean[] filtered(FileChannel in, BlockIndex index, byte[] pattern, boolean[] needed)
+            throws IOException {
+        int m = pattern.length;
+        byte[] last = null;
+        int lastPrefix = 0;
+        for (int b = 0; b < index.count; b++) {
+            byte[] filter = index.filter(in, b);
+            // Longest prefix and suffix of the pattern whose bytes and trigrams the block may hold.
+            int prefix = 0;
+            while (prefix < m && BlockFilter.hasByte(filter, pattern[prefix])
+                    && (prefix < 2 || BlockFilter.hasTrigram(filter, pattern, prefix - 2))) {
+                prefix++;
+            }
+            int suffix = 0;
+            while (suffix < m && BlockFilter.hasByte(filter, pattern[m - 1 - suffix])
+                    && (suffix < 2 || BlockFilter.hasTrigram(filter, pattern, m - 1 - suffix))) {
+                suffix++;
+            }
+            if (prefix == m) needed[b] = true;
+            for (int s = Math.max(1, m - suffix); b > 0 && s < m && s <= lastPrefix; s++) {
+                if (BlockFilter.endsWith(last, index.rawSize[b - 1], pattern, 0, s)
+                        && BlockFilter.startsWith(filter, index.rawSize[b], pattern, s, m)) {
+                    needed[b - 1] = true;
+                    needed[b] = true;
+                    break;
+                }
+            }
+            last = filter;
+            lastPrefix = prefix;
+        }
+        return needed;
+    }
+
+    /**
+     * The bytes block b can contain according to its code table, or null if
+     * its type does not say. TYPE_REPEAT blocks use the table they share.
+     */
+    private static boolean[] symbolsIn(FileChannel in, BlockIndex index, int b, boolean[][] earlier,
+            HuffmanCode code) throws IOException {
+        int size = Math.min(index.payloadSize[b], BlockDecompressor.MAX_TABLE_PREFIX);
+        if (size == 0) return null;
+        ByteBuffer prefix = BlockIndex.readFully(in, index.offset[b] + BlockFormat.FRAME_HEADER_SIZE, size);
+        int type = HuffmanCodec.blockType(prefix.get());
+        if (type == HuffmanCodec.TYPE_REPEAT) {
+            int distance = prefix.remaining() >= 4 ? prefix.getInt() : 0;
+            if (distance <= 0 || distance > b) throw new IOException("Corrupt block reference.");
+            return earlier[b - distance];
+        }
+        if (type != HuffmanCodec.TYPE_HUFFMAN) return null;
+        if (prefix.remaining() < 2) throw new EOFException("Truncated block payload.");
+        code.readLengths(prefix);
+        boolean[] present = new boolean[HuffmanCode.SYMBOLS];
+        for (int s = 0; s < HuffmanCode.SYMBOLS; s++) present[s] = code.len[s] != 0;
+        return present;
+    }
+
+    /** One decoded block and where the pattern occurs in it. */
+    private static final class Chunk extends BlockPipeline.Chunk {
+        int b;
+        byte[] block = new byte[0];
+        // Start of the first match in each line of the block that has one.
+        int[] matches = new int[16];
+        int matchCount;
+    }
+
+    /**
+     * The pipeline stages for one file. The reader hands out the candidate
+     * blocks, workers decode and scan them, and the writer turns matches
+     * into lines, carrying the last partial line of each block over to the
+     * next.
+     */
+    private static final class Job implements BlockPipeline.Stages<Chunk> {
+        private final Path path;
+        private final FileChannel in;
+        private final BlockIndex index;
+        private final boolean[] needed;
+        private final byte[] pattern;
+        private final int[] shift = new int[256];
+        private final Sink sink;
+        long count;
+        // Opened on the first line that runs into a skipped block.
+        SeekableBlockChannel lines;
+
+        private int next;
+
+        // Writer state: the last block written, its last m - 1 bytes, and
+        // the line still open at its end.
+        private int previous = -1;
+        private final byte[] tail;
+        private byte[] carry = new byte[256];
+        private int carryLength;
+        private long carryStart;
+        private boolean carryKnown = true;
+        private boolean pending;
+        private long pendingAt;
+
+        Job(Path path, FileChannel in, BlockIndex index, boolean[] needed, byte[] pattern, Sink sink) {
+            this.path = path;
+            this.in = in;
+            this.index = index;
+            this.needed = needed;
+            this.pattern = pattern;
+            this.sink = sink;
+            tail = new byte[pattern.length - 1];
+            int m = pattern.length;
+            Arrays.fill(shift, m);
+            for (int i = 0; i < m - 1; i++) shift[pattern[i] & 0xFF] = m - 1 - i;
+        }
+
+        @Override
+        public boolean read(Chunk chunk) {
+            while (next < index.count && !needed[next]) next++;
+            if (next == index.count) return false;
+            chunk.b = next++;
+            return true;
+        }
+
+        @Override
+        public void code(Chunk chunk) throws IOException {
+            int raw = index.rawSize[chunk.b];
+            if (chunk.block.length < raw) chunk.block = new byte[raw];
+            BlockDecompressor.decodeBlockAt(in, ByteBuffer.wrap(chunk.block, 0, raw), index, chunk.b);
+            chunk.matchCount = 0;
+            byte[] block = chunk.block;
+            int m = pattern.length;
+            int last = pattern[m - 1];
+            int i = m - 1;
+            // Horspool: compare from the end of the window, then shift by the byte under it.
+            while (i < raw) {
+                int c = block[i];
+                if (c == last && matchesAt(block, i - m + 1)) {
+                    if (chunk.matchCount == chunk.matches.length) {
+                        chunk.matches = Arrays.copyOf(chunk.matches, chunk.matchCount * 2);
+                    }
+                    chunk.matches[chunk.matchCount++] = i - m + 1;
+                    // Only the first match of a line matters.
+                    int end = indexOf(block, (byte) '\n', i + 1, raw);
+                    if (end < 0) break;
+                    i = end + m;
+                } else {
+                    i += shift[c & 0xFF];
+                }
+            }
+        }
+
+        private boolean matchesAt(byte[] a, int at) {
+            for (int k = pattern.length - 2; k >= 0; k--) {
+                if (a[at + k] != pattern[k]) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void write(Chunk chunk) throws IOException {
+            int b = chunk.b;
+            byte[] block = chunk.block;
+            int raw = index.rawSize[b];
+            long offset = index.rawOffset[b];
+            if (b != previous + 1) {
+                // Skipped blocks hold no part of a match, but may hold part of a line.
+                if (pending) emitAround(pendingAt);
+                pending = false;
+                carryKnown = false;
+                carryLength = 0;
+            } else if (previous >= 0 && crossesInto(block, raw)) {
+                pending = true;
+                pendingAt = offset - 1;
+            }
+
+            int i = 0;
+            int firstNewline = indexOf(block, (byte) '\n', 0, raw);
+            while (i < chunk.matchCount && (firstNewline < 0 || chunk.matches[i] < firstNewline)) {
+                if (!pending) pendingAt = offset + chunk.matches[i];
+                pending = true;
+                i++;
+            }
+            if (firstNewline < 0) {
+                // The open line runs through the whole block.
+                appendCarry(block, 0, raw);
+            } else {
+                if (pending) emitOpenLine(block, firstNewline);
+                pending = false;
+                int scanned = firstNewline + 1;
+                for (; i < chunk.matchCount; i++) {
+                    int q = chunk.matches[i];
+                    if (q < scanned) continue;
+                    int start = lastIndexOf(block, (byte) '\n', scanned, q) + 1;
+                    int end = indexOf(block, (byte) '\n', q, raw);
+                    if (end < 0) {
+                        pending = true;
+                        pendingAt = offset + q;
+                        break;
+                    }
+                    emit(offset + start, block, start, end - start);
+                    scanned = end + 1;
+                }
+                int lastNewline = lastIndexOf(block, (byte) '\n', firstNewline, raw);
+                carryLength = 0;
+                carryStart = offset + lastNewline + 1;
+                carryKnown = true;
+                appendCarry(block, lastNewline + 1, raw - lastNewline - 1);
+            }
+
+            int keep = Math.min(tail.length, raw);
+            System.arraycopy(block, raw - keep, tail, tail.length - keep, keep);
+            previous = b;
+        }
+
+        /** Whether a match starts in the previous block's tail and ends in this block. */
+        private boolean crossesInto(byte[] block, int raw) {
+            int m = pattern.length;
+            int head = Math.min(m - 1, raw);
+            byte[] joined = new byte[tail.length + head];
+            System.arraycopy(tail, 0, joined, 0, tail.length);
+            System.arraycopy(block, 0, joined, tail.length, head);
+            for (int at = 0; at < tail.length && at + m <= joined.length; at++) {
+                if (joined[at + m - 1] == pattern[m - 1] && matchesAt(joined, at)) return true;
+            }
+            return false;
+        }
+
+        /** Called after the last block: reports the line still open at the end. */
+        void finish() throws IOException {
+            if (!pending) return;
+            if (previous == index.count - 1 && carryKnown) {
+                sink.line(carryStart, carry, 0, carryLength);
+                count++;
+            } else {
+                emitAround(pendingAt);
+            }
+        }
+
+        /** Reports the open line, which ends at {@code end} in this block. */
+        private void emitOpenLine(byte[] block, int end) throws IOException {
+            if (!carryKnown) {
+                emitAround(pendingAt);
+                return;
+            }
+            appendCarry(block, 0, end);
+            sink.line(carryStart, carry, 0, carryLength);
+            count++;
+        }
+
+        private void emit(long offset, byte[] block, int start, int len) throws IOException {
+            sink.line(offset, block, start, Math.min(len, MAX_LINE));
+            count++;
+        }
+
+        private void appendCarry(byte[] src, int off, int len) {
+            len = Math.min(len, MAX_LINE - carryLength);
+            if (len <= 0) return;
+            if (carry.length < carryLength + len) {
+                carry = Arrays.copyOf(carry, Math.max(carry.length * 2, carryLength + len));
+            }
+            System.arraycopy(src, off, carry, carryLength, len);
+            carryLength += len;
+        }
+
+        /**
+         * Reports the line holding {@code pos} by reading around it with a
+         * SeekableBlockChannel, for lines that run into skipped blocks.
+         */
+        private void emitAround(long pos) throws IOException {
+            if (lines == null) lines = new SeekableBlockChannel(path);
+            ByteBuffer buf = ByteBuffer.allocate(4096);
+            long start = pos;
+            search:
+            while (start > 0 && pos - start < MAX_LINE) {
+                long from = Math.max(0, start - buf.capacity());
+                buf.clear().limit((int) (start - from));
+                lines.position(from);
+                readFully(buf);
+                for (int k = buf.limit() - 1; k >= 0; k--) {
+                    if (buf.get(k) == '\n') {
+                        start = from + k + 1;
+                        break search;
+                    }
+                }
+                start = from;
+            }
+            ByteBuffer line = ByteBuffer.allocate(MAX_LINE);
+            line.limit((int) Math.min(MAX_LINE, lines.size() - start));
+            lines.position(start);
+            readFully(line);
+            int len = indexOf(line.array(), (byte) '\n', 0, line.limit());
+            sink.line(start, line.array(), 0, len < 0 ? line.limit() : len);
+            count++;
+        }
+
+        private void readFully(ByteBuffer buf) throws IOException {
+            while (buf.hasRemaining()) {
+                if (lines.read(buf) < 0) throw new EOFException("Unexpected end of file.");
+            }
+        }
+    }
+
+    private static int indexOf(byte[] a, byte c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (a[i] == c) return i;
+        }
+        return -1;
+    }
+
+    /** Last index of c in a[from, to), or from - 1 if there is none. */
+    private static int lastIndexOf(byte[] a, byte c, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (a[i] == c) return i;
+        }
+        return from - 1;
+    }
+}
@@ -0,0 +1,158 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Blocking client for CodecServer. One client holds one connection and can
+ * send any number of requests over it, one at a time.
+ *
+ *   java CodecClient [--port=N | --socket=path] compress|decompress <input> <output>
+ *
+ * A "-" means stdin or stdout; stdin is read fully first, since a request
+ * starts with its length.
+ */
+public class CodecClient implements Closeable {
+    // Larger inputs are sent from a second thread while the response is read.
+    private static final int INLINE_LIMIT = 1 << 16;
+
+    private final SocketChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+
+    CodecClient(SocketAddress address) throws IOException {
+        channel = SocketChannel.open(address);
+        if (!(address instanceof UnixDomainSocketAddress)) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+    }
+
+    /**
+     * Sends {@code length} bytes of input as one request and writes the
+     * response body to output.
+     */
+    void request(byte op, InputStream input, long length, OutputStream output) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(CodecServer.REQUEST_HEADER_SIZE);
+        head.put(op).putLong(length).flip();
+        writeFully(head);
+
+        if (length <= INLINE_LIMIT) {
+            send(input, length);
+            receive(output);
+            return;
+        }
+        // The server stops reading while its replies are unread, so a large
+        // input has to be sent and received at the same time.
+        FutureTask<Void> sender = new FutureTask<>(() -> {
+            send(input, length);
+            return null;
+        });
+        new Thread(sender, "codec-client-send").start();
+        receive(output);
+        try {
+            sender.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while sending.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("Sending failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /** Sends a whole byte array as one request and returns the response body. */
+    byte[] request(byte op, byte[] input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        request(op, new ByteArrayInputStream(input), input.length, output);
+        return output.toByteArray();
+    }
+
+    private void send(InputStream input, long length) throws IOException {
+        byte[] chunk = new byte[(int) Math.min(length, 1 << 16)];
+        long left = length;
+        while (left > 0) {
+            int n = input.readNBytes(chunk, 0, (int) Math.min(chunk.length, left));
+            if (n == 0) throw new EOFException("Input ended before its length.");
+            writeFully(ByteBuffer.wrap(chunk, 0, n));
+            left -= n;
+        }
+    }
+
+    private void receive(OutputStream output) throws IOException {
+        while (true) {
+            int n = readInt();
+            if (n == CodecServer.END_OF_RESPONSE) return;
+            if (n == CodecServer.ERROR) {
+                readFully(2);
+                int length = buffer.getShort() & 0xFFFF;
+                readFully(length);
+                throw new IOException(new String(buffer.array(), 0, length, StandardCharsets.UTF_8));
+            }
+            if (n < 0) throw new IOException("Corrupt response.");
+            while (n > 0) {
+                int part = Math.min(n, buffer.capacity());
+                readFully(part);
+                output.write(buffer.array(), 0, part);
+                n -= part;
+            }
+        }
+    }
+
+    private int readInt() throws IOException {
+        readFully(4);
+        return buffer.getInt();
+    }
+
+    /** Reads exactly n bytes into the start of buffer and flips it for reading. */
+    private void readFully(int n) throws IOException {
+        buffer.clear().limit(n);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) throw new EOFException("Server closed the connection.");
+        }
+        buffer.flip();
+    }
+
+    private void writeFully(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public static void main(String[] args) {
+        List<String> positional = new ArrayList<>(Arrays.asList(args));
+        try {
+            SocketAddress address = CodecServer.address(positional);
+            if (positional.size() != 3
+                    || !(positional.get(0).equals("compress") || positional.get(0).equals("decompress"))) {
+                System.out.println("Usage: java CodecClient [--port=N | --socket=path] compress|decompress <input> <output>");
+                return;
+            }
+            byte op = positional.get(0).equals("compress") ? CodecServer.COMPRESS : CodecServer.DECOMPRESS;
+            String input = positional.get(1);
+            String output = positional.get(2);
+            try (CodecClient client = new CodecClient(address);
+                 OutputStream out = output.equals("-")
+                     ? new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16)
+                     : new ChannelOutputStream(Paths.get(output))) {
+                if (input.equals("-")) {
+                    byte[] all = System.in.readAllBytes();
+                    client.request(op, new ByteArrayInputStream(all), all.length, out);
+                } else {
+                    try (MappedInputStream in = new MappedInputStream(Paths.get(input))) {
+                        client.request(op, in, in.size(), out);
+                    }
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,260 @@
+import java.io.*;
+import java.lang.management.*;
+import java.nio.file.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+import jdk.jfr.*;
+
+/**
+ * Process-wide counters for every block HuffmanCodec codes and every file
+ * the command line tools process. They are registered as the MBean
+ * OBJECT_NAME on first use, and each block and file is also reported as a
+ * JFR event (BlockEvent, FileEvent) while a recording has them enabled:
+ *
+ *   java -XX:StartFlightRecording=filename=run.jfr Compress in out
+ *   jfr print --events huffman.File run.jfr
+ */
+class CodecMetrics implements CodecMetricsMBean {
+    static final String OBJECT_NAME = "HuffmanCodec:type=Metrics";
+
+    // Phases timed by HuffmanCodec.
+    static final int HISTOGRAM = 0;
+    static final int TREE_BUILD = 1;
+    static final int HEADER_WRITE = 2;
+    static final int ENCODE = 3;
+    static final int TREE_READ = 4;
+    static final int DECODE = 5;
+    static final int LZ_PARSE = 6;
+    static final int LZ_EXECUTE = 7;
+    static final int TOKENIZE = 8;
+    static final int PHASES = 9;
+
+    static final String[] BLOCK_TYPES = {"huffman", "lz77", "dictionary", "raw", "repeat", "tokens", "fse"};
+
+    static final CodecMetrics INSTANCE = new CodecMetrics();
+
+    private static final EventType BLOCK_EVENT = EventType.getEventType(BlockEvent.class);
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new StandardMBean(INSTANCE, CodecMetricsMBean.class), new ObjectName(OBJECT_NAME));
+        } catch (JMException | SecurityException e) {
+            // Another copy of the classes already registered, or JMX is locked down; JFR still works.
+        }
+    }
+
+    private final LongAdder[] phaseNanos = new LongAdder[PHASES];
+    private final LongAdder[] blocksByType = new LongAdder[BLOCK_TYPES.length];
+    private final LongAdder blocksCompressed = new LongAdder();
+    private final LongAdder blocksDecompressed = new LongAdder();
+    private final LongAdder compressIn = new LongAdder();
+    private final LongAdder compressOut = new LongAdder();
+    private final LongAdder decompressIn = new LongAdder();
+    private final LongAdder decompressOut = new LongAdder();
+    private final LongAdder files = new LongAdder();
+    private final LongAdder fileFailures = new LongAdder();
+
+    private CodecMetrics() {
+        for (int i = 0; i < PHASES; i++) phaseNanos[i] = new LongAdder();
+        for (int i = 0; i < BLOCK_TYPES.length; i++) blocksByType[i] = new LongAdder();
+    }
+
+    /** Records one top-level block; {@code phases} holds the nanoseconds spent in each phase. */
+    static void recordBlock(boolean compress, int type, int raw, int frame, long[] phases) {
+        CodecMetrics m = INSTANCE;
+        if (compress) {
+            m.blocksCompressed.increment();
+            m.compressIn.add(raw);
+            m.compressOut.add(frame);
+            if (type < BLOCK_TYPES.length) m.blocksByType[type].increment();
+        } else {
+            m.blocksDecompressed.increment();
+            m.decompressIn.add(frame);
+            m.decompressOut.add(raw);
+        }
+        for (int i = 0; i < PHASES; i++) {
+            if (phases[i] != 0) m.phaseNanos[i].add(phases[i]);
+        }
+
+        if (BLOCK_EVENT.isEnabled()) {
+            BlockEvent event = new BlockEvent();
+            event.operation = compress ? "compress" : "decompress";
+            event.blockType = type < BLOCK_TYPES.length ? BLOCK_TYPES[type] : Integer.toString(type);
+            event.rawSize = raw;
+            event.frameSize = frame;
+            event.histogram = phases[HISTOGRAM];
+            event.treeBuild = phases[TREE_BUILD];
+            event.headerWrite = phases[HEADER_WRITE];
+            event.encode = phases[ENCODE];
+            event.treeRead = phases[TREE_READ];
+            event.decode = phases[DECODE];
+            event.lzParse = phases[LZ_PARSE];
+            event.lzExecute = phases[LZ_EXECUTE];
+            event.tokenize = phases[TOKENIZE];
+            event.commit();
+        }
+    }
+
+    /** Starts timing a file job; finish it with endFile(). */
+    static FileEvent startFile(String operation, String input, String output) {
+        FileEvent event = new FileEvent();
+        event.operation = operation;
+        event.input = input;
+        event.output = output;
+        event.startNanos = System.nanoTime();
+        event.begin();
+        return event;
+    }
+
+    /** Ends a file job started with startFile(); {@code failure} is null on success. */
+    static void endFile(FileEvent event, Exception failure) {
+        event.end();
+        INSTANCE.files.increment();
+        if (failure != null) INSTANCE.fileFailures.increment();
+        if (!event.shouldCommit()) return;
+
+        event.bytesIn = sizeOf(event.input);
+        event.bytesOut = sizeOf(event.output);
+        long raw = event.operation.equals("compress") ? event.bytesIn : event.bytesOut;
+        long packed = event.operation.equals("compress") ? event.bytesOut : event.bytesIn;
+        if (raw > 0) event.ratio = (double) packed / raw;
+        event.megabytesPerSecond = megabytesPerSecond(raw, System.nanoTime() - event.startNanos);
+        if (failure != null) event.error = failure.getMessage();
+        event.commit();
+    }
+
+    /** Size of a file argument, or 0 for stdin/stdout ("-") and missing files. */
+    private static long sizeOf(String name) {
+        if (name == null || name.equals("-")) return 0;
+        try {
+            return Files.size(Paths.get(name));
+        } catch (IOException | InvalidPathException e) {
+            return 0;
+        }
+    }
+
+    private static double megabytesPerSecond(long bytes, long nanos) {
+        return nanos == 0 ? 0 : bytes / 1e6 / (nanos / 1e9);
+    }
+
+    public long getBlocksCompressed() {
+        return blocksCompressed.sum();
+    }
+
+    public long getBlocksDecompressed() {
+        return blocksDecompressed.sum();
+    }
+
+    public long getStoredBlocks() {
+        return blocksByType[HuffmanCodec.TYPE_RAW].sum();
+    }
+
+    public long getRepeatedTableBlocks() {
+        return blocksByType[HuffmanCodec.TYPE_REPEAT].sum();
+    }
+
+    public long getLz77Blocks() {
+        return blocksByType[HuffmanCodec.TYPE_LZ77].sum();
+    }
+
+    public long getDictionaryBlocks() {
+        return blocksByType[HuffmanCodec.TYPE_DICTIONARY].sum();
+    }
+
+    public long getTokenBlocks() {
+        return blocksByType[HuffmanCodec.TYPE_TOKENS].sum();
+    }
+
+    public long getFseBlocks() {
+        return blocksByType[HuffmanCodec.TYPE_FSE].sum();
+    }
+
+    public long getCompressInputBytes() {
+        return compressIn.sum();
+    }
+
+    public long getCompressOutputBytes() {
+        return compressOut.sum();
+    }
+
+    public long getDecompressInputBytes() {
+        return decompressIn.sum();
+    }
+
+    public long getDecompressOutputBytes() {
+        return decompressOut.sum();
+    }
+
+    public double getCompressionRatio() {
+        long in = compressIn.sum();
+        return in == 0 ? 0 : (double) compressOut.sum() / in;
+    }
+
+    public double getCompressMBPerSecond() {
+        long nanos = getHistogramNanos() + getTreeBuildNanos() + getHeaderWriteNanos() + getEncodeNanos()
+            + getLz77ParseNanos() + getTokenizeNanos();
+        return megabytesPerSecond(compressIn.sum(), nanos);
+    }
+
+    public double getDecompressMBPerSecond() {
+        return megabytesPerSecond(decompressOut.sum(), getTreeReadNanos() + getDecodeNanos() + getLz77ExecuteNanos());
+    }
+
+    public long getHistogramNanos() {
+        return phaseNanos[HISTOGRAM].sum();
+    }
+
+    public long getTreeBuildNanos() {
+        return phaseNanos[TREE_BUILD].sum();
+    }
+
+    public long getHeaderWriteNanos() {
+        return phaseNanos[HEADER_WRITE].sum();
+    }
+
+    public long getEncodeNanos() {
+        return phaseNanos[ENCODE].sum();
+    }
+
+    public long getTreeReadNanos() {
+        return phaseNanos[TREE_READ].sum();
+    }
+
+    public long getDecodeNanos() {
+        return phaseNanos[DECODE].sum();
+    }
+
+    public long getLz77ParseNanos() {
+        return phaseNanos[LZ_PARSE].sum();
+    }
+
+    public long getLz77ExecuteNanos() {
+        return phaseNanos[LZ_EXECUTE].sum();
+    }
+
+    public long getTokenizeNanos() {
+        return phaseNanos[TOKENIZE].sum();
+    }
+
+    public long getFilesProcessed() {
+        return files.sum();
+    }
+
+    public long getFileFailures() {
+        return fileFailures.sum();
+    }
+
+    public void reset() {
+        for (LongAdder a : phaseNanos) a.reset();
+        for (LongAdder a : blocksByType) a.reset();
+        blocksCompressed.reset();
+        blocksDecompressed.reset();
+        compressIn.reset();
+        compressOut.reset();
+        decompressIn.reset();
+        decompressOut.reset();
+        files.reset();
+        fileFailures.reset();
+    }
+}
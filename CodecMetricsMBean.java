@@ -0,0 +1,37 @@
+/**
+ * JMX view of CodecMetrics. Times are summed over all threads, so the
+ * MB/s figures are per-thread coding speeds, not wall-clock throughput.
+ */
+public interface CodecMetricsMBean {
+    long getBlocksCompressed();
+    long getBlocksDecompressed();
+    long getStoredBlocks();
+    long getRepeatedTableBlocks();
+    long getLz77Blocks();
+    long getDictionaryBlocks();
+    long getTokenBlocks();
+    long getFseBlocks();
+
+    long getCompressInputBytes();
+    long getCompressOutputBytes();
+    long getDecompressInputBytes();
+    long getDecompressOutputBytes();
+    double getCompressionRatio();
+    double getCompressMBPerSecond();
+    double getDecompressMBPerSecond();
+
+    long getHistogramNanos();
+    long getTreeBuildNanos();
+    long getHeaderWriteNanos();
+    long getEncodeNanos();
+    long getTreeReadNanos();
+    long getDecodeNanos();
+    long getLz77ParseNanos();
+    long getLz77ExecuteNanos();
+    long getTokenizeNanos();
+
+    long getFilesProcessed();
+    long getFileFailures();
+
+    void reset();
+}
@@ -0,0 +1,89 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Encoder settings shared by the command line entry points. Only the
+ * encoder reads them; every choice is recorded in the block it affects, so
+ * decoding needs no options beyond loading any dictionary the blocks name.
+ */
+class CodecOptions {
+    static final CodecOptions DEFAULT = new CodecOptions();
+
+    static final int DEFAULT_WINDOW = 1 << 18;
+
+    // Entropy coders for plain blocks.
+    static final int ENTROPY_HUFFMAN = 0;
+    static final int ENTROPY_FSE = 1;
+    static final int ENTROPY_AUTO = 2;
+
+    /** Run the LZ77 match finder before entropy coding. */
+    boolean lz = false;
+    /**
+     * LZ77 window in bytes; rounded up to a power of two, at most
+     * Lz77.MAX_WINDOW and at most the block size rounded up.
+     */
+    int window = DEFAULT_WINDOW;
+    /** Try coding whole words as symbols (see Tokenizer) on text blocks. */
+    boolean tokens = false;
+    /**
+     * Entropy coder for blocks that get neither a dictionary nor tokens:
+     * Huffman, FSE (see FseCoder), or whichever codes each block smaller.
+     */
+    int entropy = ENTROPY_HUFFMAN;
+    /** Split large bitstreams in four for faster decoding. */
+    boolean interleave = true;
+    /** Shared code to use instead of a per-block table, or null. */
+    HuffmanDictionary dictionary;
+    /**
+     * Keep a BlockFilter per block in the index of indexed files, so
+     * Decompress --search can skip blocks of text. Building one costs about
+     * as much as a quarter of the coding, so it is left to files that will
+     * be searched.
+     */
+    boolean searchFilter = false;
+
+    /**
+     * Parses "--name" / "--name=value" options and returns them; everything
+     * else is left in {@code positional} in order. "--dict=file" loads the
+     * dictionary, which also makes it available to the decoder, and
+     * "--entropy=huffman|fse|auto" picks the entropy coder.
+     */
+    static CodecOptions parse(String[] args, List<String> positional) throws IOException {
+        CodecOptions options = new CodecOptions();
+        for (String arg : args) {
+            if (arg.equals("--lz")) {
+                options.lz = true;
+            } else if (arg.startsWith("--window=")) {
+                options.lz = true;
+                options.window = Integer.parseInt(arg.substring("--window=".length()));
+            } else if (arg.equals("--tokens")) {
+                options.tokens = true;
+            } else if (arg.startsWith("--entropy=")) {
+                options.entropy = entropy(arg.substring("--entropy=".length()));
+            } else if (arg.equals("--single-stream")) {
+                options.interleave = false;
+            } else if (arg.equals("--search-filter")) {
+                options.searchFilter = true;
+            } else if (arg.startsWith("--dict=")) {
+                options.dictionary = HuffmanDictionary.load(Paths.get(arg.substring("--dict=".length())));
+            } else {
+                positional.add(arg);
+            }
+        }
+        return options;
+    }
+
+    private static int entropy(String name) throws IOException {
+        switch (name) {
+            case "huffman":
+                return ENTROPY_HUFFMAN;
+            case "fse":
+                return ENTROPY_FSE;
+            case "auto":
+                return ENTROPY_AUTO;
+            default:
+                throw new IOException("Unknown entropy coder \"" + name + "\"; use huffman, fse or auto.");
+        }
+    }
+}
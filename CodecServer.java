@@ -0,0 +1,658 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Long-running compression service, so a job does not pay JVM startup the
+ * way the command line tools do. One selector thread does all socket I/O
+ * without blocking; blocks are coded on a worker pool whose threads keep
+ * their HuffmanCodec state from one connection to the next.
+ *
+ * A connection carries any number of requests, one after another:
+ *
+ *   request   COMPRESS or DECOMPRESS (byte), input length (long), input
+ *   response  chunks of length (int, > 0) and bytes, then END_OF_RESPONSE
+ *             (int); or ERROR (int), message length (short) and UTF-8
+ *             message, after which the server closes the connection
+ *
+ * Compressing returns a single-pass stream (FLAG_NO_INDEX) whose header
+ * records the input length; decompressing accepts any compressed file.
+ * Input is cut into blocks as it arrives, and each block's output is sent
+ * as soon as it and the blocks before it are done. A connection stops
+ * taking input, even in the middle of a read, while its share of coded
+ * blocks is waiting to be sent, so a client that reads slowly holds back
+ * its own requests instead of filling the server; and no connection takes
+ * input while maxInFlight blocks are waiting across all of them, which
+ * bounds the blocks held in memory however many clients connect. A share
+ * is MAX_IN_FLIGHT blocks but at most half of maxInFlight, so one client
+ * that stops reading cannot hold every slot. Headers and end markers are
+ * small and do not count, though a connection stops at MAX_QUEUED queued
+ * outputs of any kind. Compressed input may not declare blocks larger
+ * than maxBlockSize, by default the size the codec itself writes, and must
+ * follow the block rules BlockDecompressor applies to streams.
+ *
+ *   java CodecServer [--port=N | --socket=path] [--threads=N] [--max-in-flight=N]
+ *       [--max-block-size=N] [--lz] [--dict=file] ...
+ */
+public class CodecServer implements Closeable {
+    static final int DEFAULT_PORT = 7341;
+
+    static final byte COMPRESS = 'C';
+    static final byte DECOMPRESS = 'D';
+    static final int END_OF_RESPONSE = 0;
+    static final int ERROR = -1;
+
+    static final int REQUEST_HEADER_SIZE = 9;
+    // Coded blocks one connection may have waiting before it takes no more input.
+    static final int MAX_IN_FLIGHT = 4;
+    // Outputs of any kind one connection may have waiting before it takes no more input.
+    static final int MAX_QUEUED = 64;
+
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+
+    private final SocketAddress address;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final CodecOptions options;
+    private final int blockSize = BlockFormat.DEFAULT_BLOCK_SIZE;
+    // Largest block size a compressed input may declare.
+    private final int maxBlockSize;
+    // Blocks waiting across all connections before none takes input; only the selector thread counts them.
+    private final int maxInFlight;
+    private int inFlight;
+    // Blocks one connection may have waiting: MAX_IN_FLIGHT, but at most half of maxInFlight.
+    private final int share;
+
+    // Connections with finished work, handed over from the workers.
+    private final Queue<Connection> ready = new ConcurrentLinkedQueue<>();
+    // Connections not read because maxInFlight was reached.
+    private final Set<Connection> waiting = new LinkedHashSet<>();
+    private volatile boolean running = true;
+
+    CodecServer(SocketAddress address, int threads, CodecOptions options) throws IOException {
+        this(address, threads, options, defaultMaxInFlight(threads), BlockFormat.DEFAULT_BLOCK_SIZE);
+    }
+
+    CodecServer(SocketAddress address, int threads, CodecOptions options, int maxInFlight, int maxBlockSize)
+            throws IOException {
+        this.address = address;
+        this.options = options;
+        this.maxInFlight = maxInFlight;
+        this.share = Math.max(1, Math.min(MAX_IN_FLIGHT, maxInFlight / 2));
+        this.maxBlockSize = maxBlockSize;
+        server = address instanceof UnixDomainSocketAddress
+            ? ServerSocketChannel.open(StandardProtocolFamily.UNIX)
+            : ServerSocketChannel.open();
+        server.bind(address, 1024);
+        server.configureBlocking(false);
+        selector = Selector.open();
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        workers = Executors.newFixedThreadPool(threads);
+    }
+
+    /** Enough blocks in flight to keep the workers busy and give four connections their full share. */
+    static int defaultMaxInFlight(int threads) {
+        return Math.max(2 * threads + 2, 4 * MAX_IN_FLIGHT);
+    }
+
+    /** The address the server is listening on, with the real port if it was 0. */
+    SocketAddress address() throws IOException {
+        return server.getLocalAddress();
+    }
+
+    /** Serves connections until close() is called, then releases the sockets and workers. */
+    void run() throws IOException {
+        try {
+            serve();
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void serve() throws IOException {
+        while (running) {
+            selector.select();
+            for (Connection c; (c = ready.poll()) != null; ) {
+                c.pump();
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) continue;
+                if (key.isAcceptable()) {
+                    accept();
+                } else {
+                    ((Connection) key.attachment()).handle(key);
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            if (!(address instanceof UnixDomainSocketAddress)) {
+                // Responses are several small writes; don't let Nagle hold them back.
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            }
+            Connection c = new Connection(channel);
+            c.key = channel.register(selector, SelectionKey.OP_READ, c);
+        }
+    }
+
+    /** Stops run() from another thread. */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void shutdown() throws IOException {
+        workers.shutdownNow();
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+        server.close();
+        if (address instanceof UnixDomainSocketAddress) {
+            Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+        }
+    }
+
+    /** Counts blocks taken off a connection and wakes the connections that were waiting for room. */
+    private void release(int blocks) {
+        inFlight -= blocks;
+        if (inFlight < maxInFlight && !waiting.isEmpty()) {
+            ready.addAll(waiting);
+            waiting.clear();
+            selector.wakeup();
+        }
+    }
+
+    /** A buffer for one response chunk of {@code size} bytes, positioned after its length. */
+    static ByteBuffer chunk(int size) {
+        ByteBuffer chunk = ByteBuffer.allocate(4 + size);
+        chunk.putInt(size);
+        return chunk;
+    }
+
+    private static ByteBuffer marker(int value) {
+        ByteBuffer marker = ByteBuffer.allocate(4);
+        marker.putInt(value).flip();
+        return marker;
+    }
+
+    private static ByteBuffer error(String message) {
+        byte[] text = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(text.length, Short.MAX_VALUE);
+        ByteBuffer error = ByteBuffer.allocate(4 + 2 + length);
+        error.putInt(ERROR).putShort((short) length).put(text, 0, length).flip();
+        return error;
+    }
+
+    /** A queued response part; only coded blocks count toward the in-flight limits. */
+    private static final class Output {
+        final CompletableFuture<ByteBuffer> result;
+        final boolean block;
+
+        Output(CompletableFuture<ByteBuffer> result, boolean block) {
+            this.result = result;
+            this.block = block;
+        }
+    }
+
+    /** One client connection and the request it is working on. */
+    private final class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+
+        // Received bytes not yet consumed, kept ready for reading into.
+        final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        Job job;
+        long remaining;
+        boolean endOfInput;
+        boolean closing;
+
+        // Outputs in request order; only the head is ever written.
+        final Deque<Output> output = new ArrayDeque<>();
+        // Coded blocks among them.
+        int blocks;
+        ByteBuffer sending;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void handle(SelectionKey key) {
+            try {
+                if (key.isReadable() && channel.read(in) < 0) endOfInput = true;
+                pump();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /** Moves data as far as it will go: output to the socket, then input into jobs. */
+        void pump() {
+            if (!channel.isOpen()) return;
+            try {
+                while (flushOutput() | processInput()) {
+                    // Keep going while either side makes progress.
+                }
+                if (endOfInput && !closing) {
+                    // Buffered input may still be waiting for output room; only give up when it cannot finish.
+                    int buffered = in.position();
+                    if (job == null && buffered == 0) {
+                        closing = true;
+                    } else if (job == null ? buffered < REQUEST_HEADER_SIZE : remaining > buffered) {
+                        fail("Connection closed in the middle of a request.");
+                        flushOutput();
+                    }
+                }
+                if (closing && sending == null && output.isEmpty()) {
+                    close();
+                    return;
+                }
+                int ops = sending != null ? SelectionKey.OP_WRITE : 0;
+                if (!closing && blocks < share && output.size() < MAX_QUEUED) {
+                    if (inFlight >= maxInFlight) {
+                        // Also when input has ended: buffered requests still need the room.
+                        waiting.add(this);
+                    } else if (!endOfInput) {
+                        ops |= SelectionKey.OP_READ;
+                    }
+                }
+                key.interestOps(ops);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private boolean flushOutput() throws IOException {
+            boolean progress = false;
+            while (true) {
+                if (sending == null) {
+                    Output next = output.peek();
+                    if (next == null || !next.result.isDone()) break;
+                    output.poll();
+                    if (next.block) {
+                        blocks--;
+                        release(1);
+                    }
+                    try {
+                        sending = next.result.join();
+                    } catch (CompletionException | CancellationException e) {
+                        Throwable cause = e.getCause() != null ? e.getCause() : e;
+                        dropOutput();
+                        sending = error(cause.getMessage());
+                        job = null;
+                        closing = true;
+                    }
+                }
+                channel.write(sending);
+                if (sending.hasRemaining()) break;
+                sending = null;
+                progress = true;
+            }
+            return progress;
+        }
+
+        private boolean processInput() {
+            if (closing || !room()) return false;
+            in.flip();
+            boolean progress = false;
+            try {
+                while (!closing && room()) {
+                    if (job == null) {
+                        if (in.remaining() < REQUEST_HEADER_SIZE) break;
+                        byte op = in.get();
+                        remaining = in.getLong();
+                        progress = true;
+                        if (remaining < 0 || (op != COMPRESS && op != DECOMPRESS)) {
+                            fail("Bad request.");
+                            break;
+                        }
+                        job = op == COMPRESS ? new CompressJob(this, remaining) : new DecompressJob(this);
+                    } else if (remaining > 0 && in.hasRemaining()) {
+                        int limit = in.limit();
+                        int start = in.position();
+                        in.limit(start + (int) Math.min(in.remaining(), remaining));
+                        try {
+                            job.input(in);
+                        } finally {
+                            remaining -= in.position() - start;
+                            in.limit(limit);
+                        }
+                        progress = true;
+                    }
+                    if (job != null && remaining == 0) {
+                        job.end();
+                        send(marker(END_OF_RESPONSE));
+                        job = null;
+                        progress = true;
+                    } else if (!in.hasRemaining()) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                fail(e.getMessage());
+                progress = true;
+            } finally {
+                in.compact();
+            }
+            return progress;
+        }
+
+        /** Whether another output may be queued, within this connection's share and the server-wide limit. */
+        boolean room() {
+            return blocks < share && output.size() < MAX_QUEUED && inFlight < maxInFlight;
+        }
+
+        /** Drops every queued output and releases the blocks among them. */
+        private void dropOutput() {
+            release(blocks);
+            blocks = 0;
+            output.clear();
+        }
+
+        /** Queues a response and stops taking requests; the connection closes once it is sent. */
+        void fail(String message) {
+            send(error(message));
+            job = null;
+            closing = true;
+        }
+
+        void send(ByteBuffer buffer) {
+            output.add(new Output(CompletableFuture.completedFuture(buffer), false));
+        }
+
+        /** Runs a task on the worker pool; its result is sent in turn. */
+        void submit(Callable<ByteBuffer> task) {
+            CompletableFuture<ByteBuffer> result = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return task.call();
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, workers);
+            output.add(new Output(result, true));
+            blocks++;
+            inFlight++;
+            result.whenComplete((buffer, failure) -> {
+                ready.add(this);
+                selector.wakeup();
+            });
+        }
+
+        void close() {
+            dropOutput();
+            waiting.remove(this);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing left to tell the client.
+            }
+        }
+    }
+
+    /** The work for one request: consumes its input and queues its output. */
+    private abstract static class Job {
+        final Connection connection;
+
+        Job(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * Consumes bytes of src, which never run past the request, until src
+         * is empty or the connection has no room for another block; the rest
+         * is offered again once there is room.
+         */
+        abstract void input(ByteBuffer src) throws IOException;
+
+        /** Called once all of the request's input has been consumed. */
+        abstract void end() throws IOException;
+    }
+
+    /** Cuts the input into blocks and codes them as BlockCompressor does. */
+    private final class CompressJob extends Job {
+        private final long length;
+        private long received;
+        private byte[] block;
+        private int fill;
+        private TableLink link = TableLink.first();
+
+        CompressJob(Connection connection, long length) {
+            super(connection);
+            this.length = length;
+            ByteBuffer header = chunk(BlockFormat.HEADER_SIZE);
+            header.putInt(BlockFormat.MAGIC).put((byte) BlockFormat.VERSION).put((byte) BlockFormat.FLAG_NO_INDEX)
+                .putInt(blockSize).putLong(length).flip();
+            connection.send(header);
+        }
+
+        @Override
+        void input(ByteBuffer src) {
+            while (src.hasRemaining() && connection.room()) {
+                if (block == null) block = new byte[(int) Math.min(blockSize, length - received)];
+                int n = Math.min(src.remaining(), block.length - fill);
+                src.get(block, fill, n);
+                fill += n;
+                received += n;
+                if (fill == block.length) submitBlock();
+            }
+        }
+
+        private void submitBlock() {
+            byte[] src = block;
+            TableLink blockLink = link;
+            link = link.next();
+            block = null;
+            fill = 0;
+            connection.submit(() -> {
+                ByteBuffer frame = ByteBuffer.allocate(4 + HuffmanCodec.maxCompressedLength(src.length));
+                frame.position(4);
+                int written = HuffmanCodec.get().compress(ByteBuffer.wrap(src), frame, options, blockLink);
+                frame.putInt(0, written).flip();
+                return frame;
+            });
+        }
+
+        @Override
+        void end() {
+            ByteBuffer end = chunk(4);
+            end.putInt(BlockFormat.END_OF_BLOCKS).flip();
+            connection.send(end);
+        }
+    }
+
+    /** Reads frames as they arrive and decodes them as BlockDecompressor does for streams. */
+    private final class DecompressJob extends Job {
+        private static final int FILE_HEADER = 0;
+        private static final int FRAME_START = 1;
+        private static final int FRAME_REST = 2;
+        private static final int PAYLOAD = 3;
+        private static final int TRAILING = 4;
+
+        private int stage = FILE_HEADER;
+        private ByteBuffer part = ByteBuffer.allocate(BlockFormat.HEADER_SIZE);
+        private BlockDecompressor.Header header;
+        private int raw;
+        private int checksum;
+        private int blockNumber;
+        private long total;
+        // Set after a short block, which must be the last.
+        private boolean ended;
+
+        // The last TYPE_HUFFMAN payload's type byte and table, for TYPE_REPEAT blocks.
+        private byte[] table;
+        private int tableBlock = -1;
+
+        DecompressJob(Connection connection) {
+            super(connection);
+        }
+
+        @Override
+        void input(ByteBuffer src) throws IOException {
+            while (src.hasRemaining() && connection.room()) {
+                if (stage == TRAILING) {
+                    // The block index and trailer of an indexed file are not needed.
+                    src.position(src.limit());
+                    return;
+                }
+                int n = Math.min(src.remaining(), part.remaining());
+                part.put(part.position(), src, src.position(), n);
+                part.position(part.position() + n);
+                src.position(src.position() + n);
+                while (stage != TRAILING && !part.hasRemaining()) {
+                    part.flip();
+                    advance();
+                }
+            }
+        }
+
+        private void expect(int next, int size) {
+            stage = next;
+            part = ByteBuffer.allocate(size);
+        }
+
+        private void advance() throws IOException {
+            switch (stage) {
+                case FILE_HEADER:
+                    header = BlockDecompressor.readHeader(new DataInputStream(new ByteArrayInputStream(part.array())));
+                    if (header.blockSize > maxBlockSize) throw new IOException("Block size too large.");
+                    expect(FRAME_START, 4);
+                    break;
+                case FRAME_START:
+                    raw = part.getInt();
+                    if (raw == BlockFormat.END_OF_BLOCKS) {
+                        if (header.length != BlockFormat.UNKNOWN_LENGTH && total != header.length) {
+                            throw new IOException("Stream is shorter than the length in its header.");
+                        }
+                        stage = TRAILING;
+                    } else {
+                        expect(FRAME_REST, 8);
+                    }
+                    break;
+                case FRAME_REST:
+                    int payloadSize = part.getInt();
+                    checksum = part.getInt();
+                    if (raw <= 0 || raw > header.blockSize || payloadSize <= 0
+                            || payloadSize > BlockDecompressor.maxPayloadSize(raw) || ended) {
+                        throw new IOException("Corrupt block header.");
+                    }
+                    ended = raw < header.blockSize;
+                    total += raw;
+                    if (header.length != BlockFormat.UNKNOWN_LENGTH && total > header.length) {
+                        throw new IOException("Stream is longer than the length in its header.");
+                    }
+                    expect(PAYLOAD, payloadSize);
+                    break;
+                case PAYLOAD:
+                    submitBlock(part.array());
+                    blockNumber++;
+                    expect(FRAME_START, 4);
+                    break;
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+
+        private void submitBlock(byte[] payload) throws IOException {
+            int type = HuffmanCodec.blockType(payload[0]);
+            byte[] repeatTable = null;
+            if (type == HuffmanCodec.TYPE_HUFFMAN) {
+                table = Arrays.copyOf(payload, Math.min(payload.length, BlockDecompressor.MAX_TABLE_PREFIX));
+                tableBlock = blockNumber;
+            } else if (type == HuffmanCodec.TYPE_REPEAT) {
+                int distance = payload.length >= 5 ? ByteBuffer.wrap(payload).getInt(1) : 0;
+                if (distance <= 0 || blockNumber - distance != tableBlock) {
+                    throw new IOException("Corrupt block reference.");
+                }
+                repeatTable = table;
+            }
+
+            int size = raw;
+            int sum = checksum;
+            byte[] shared = repeatTable;
+            connection.submit(() -> {
+                ByteBuffer out = chunk(size);
+                if (type == HuffmanCodec.TYPE_RAW) {
+                    if (payload.length != 1 + size) throw new IOException("Corrupt stored block.");
+                    ByteBuffer stored = ByteBuffer.wrap(payload, 1, size);
+                    HuffmanCodec.get().verify(stored, sum);
+                    out.put(stored);
+                } else if (type == HuffmanCodec.TYPE_REPEAT) {
+                    HuffmanCodec.get().decodeRepeat(ByteBuffer.wrap(shared), ByteBuffer.wrap(payload),
+                        ByteBuffer.wrap(out.array(), 4, size), size, sum);
+                } else {
+                    BlockDecompressor.decodeBlock(payload, 0, payload.length, out.array(), 4, size, sum);
+                }
+                return out.position(0).limit(4 + size);
+            });
+        }
+
+        @Override
+        void end() throws IOException {
+            if (stage != TRAILING) throw new IOException("Truncated compressed input.");
+        }
+    }
+
+    /**
+     * Takes "--port=N" or "--socket=path" out of args. The default is
+     * DEFAULT_PORT on the loopback address.
+     */
+    static SocketAddress address(List<String> args) {
+        SocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), DEFAULT_PORT);
+        for (Iterator<String> it = args.iterator(); it.hasNext(); ) {
+            String arg = it.next();
+            if (arg.startsWith("--port=")) {
+                int port = Integer.parseInt(arg.substring("--port=".length()));
+                address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+                it.remove();
+            } else if (arg.startsWith("--socket=")) {
+                address = UnixDomainSocketAddress.of(arg.substring("--socket=".length()));
+                it.remove();
+            }
+        }
+        return address;
+    }
+
+    public static void main(String[] args) {
+        List<String> positional = new ArrayList<>();
+        try {
+            CodecOptions options = CodecOptions.parse(args, positional);
+            SocketAddress address = address(positional);
+            int threads = Runtime.getRuntime().availableProcessors();
+            int maxInFlight = -1;
+            int maxBlockSize = BlockFormat.DEFAULT_BLOCK_SIZE;
+            for (String arg : positional) {
+                if (arg.startsWith("--threads=")) threads = Integer.parseInt(arg.substring("--threads=".length()));
+                if (arg.startsWith("--max-in-flight=")) {
+                    maxInFlight = Integer.parseInt(arg.substring("--max-in-flight=".length()));
+                }
+                if (arg.startsWith("--max-block-size=")) {
+                    maxBlockSize = Integer.parseInt(arg.substring("--max-block-size=".length()));
+                }
+            }
+            if (maxInFlight < 0) maxInFlight = defaultMaxInFlight(threads);
+            if (threads < 1 || maxInFlight < 1 || maxBlockSize < 1) {
+                System.out.println("Error: --threads, --max-in-flight and --max-block-size must be positive.");
+                return;
+            }
+            CodecServer server = new CodecServer(address, threads, options, maxInFlight, maxBlockSize);
+            System.out.println("Listening on " + server.address());
+            server.run();
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+}
@@ -2,56 +2,8 @@ import java.io.*;
 import java.nio.file.*;
 import java.util.*;
 
-class Node {
-    char ch;
-    double freq;
-    Node left, right;
-
-    Node(char ch, double freq) {
-        this.ch = ch;
-        this.freq = freq;
-        this.left = null;
-        this.right = null;
-    }
-}
-
-class Compare implements Comparator<Node> {
-    public int compare(Node a, Node b) {
-        return Double.compare(a.freq, b.freq);
-    }
-}
-
 public class Compress {
     
-    static void getHuffmanCode(Node root, String s, Map<Character, String> huffmanCodes) {
-        if (root == null) return;
-
-        if (root.left == null && root.right == null) {
-            if (s.isEmpty()) s = "0";
-            huffmanCodes.put(root.ch, s);
-        }
-
-        getHuffmanCode(root.left, s + '0', huffmanCodes);
-        getHuffmanCode(root.right, s + '1', huffmanCodes);
-    }
-
-    static void encodeHuffmanTree(Node root, DataOutputStream out, BitSetWrapper bitset) throws IOException {
-        if (root == null) return;
-
-        if (root.left == null && root.right == null) {
-            bitset.writeBit(1);
-            for (int i = 7; i >= 0; i--) {
-                bitset.writeBit((root.ch >> i) & 1);
-            }
-            return;
-        } else {
-            bitset.writeBit(0);
-        }
-
-        encodeHuffmanTree(root.left, out, bitset);
-        encodeHuffmanTree(root.right, out, bitset);
-    }
-
     static void encodeFile() {
         try {
             Path currentPath = Paths.get("").toAbsolutePath();
@@ -71,57 +23,12 @@ public class Compress {
                 return;
             }
 
-            Map<Character, Integer> freq = new HashMap<>();
-            int totalCount = 0;
-
-            try (FileInputStream inFile = new FileInputStream(file)) {
-                int ch;
-                while ((ch = inFile.read()) != -1) {
-                    freq.put((char) ch, freq.getOrDefault((char) ch, 0) + 1);
-                    totalCount++;
-                }
-            }
-
-            PriorityQueue<Node> pq = new PriorityQueue<>(new Compare());
-            for (Map.Entry<Character, Integer> entry : freq.entrySet()) {
-                pq.add(new Node(entry.getKey(), (double) entry.getValue() / totalCount));
-            }
-
-            while (pq.size() > 1) {
-                Node left = pq.poll();
-                Node right = pq.poll();
-                Node root = new Node('\0', left.freq + right.freq);
-                root.left = left;
-                root.right = right;
-                pq.add(root);
-            }
-
-            Node root = pq.peek();
-            Map<Character, String> huffmanCode = new HashMap<>();
-            getHuffmanCode(root, "", huffmanCode);
-
             System.out.print("Enter Encoded file name: ");
             String encodedFile = scanner.nextLine();
 
-            try (FileInputStream inFile = new FileInputStream(file);
-                 DataOutputStream outFile = new DataOutputStream(new FileOutputStream(encodedFile))) {
-
-                BitSetWrapper bitset = new BitSetWrapper(outFile);
-                encodeHuffmanTree(root, outFile, bitset);
-                bitset.flushRemaining();
-
-                outFile.writeByte('@');
-                outFile.writeByte('#');
-                outFile.writeByte('$');
-
-                int ch;
-                while ((ch = inFile.read()) != -1) {
-                    String code = huffmanCode.get((char) ch);
-                    for (char bc : code.toCharArray()) {
-                        bitset.writeBit(bc - '0');
-                    }
-                }
-                bitset.flushRemaining();
+            try (MappedInputStream inFile = new MappedInputStream(file.toPath());
+                 ChannelOutputStream outFile = new ChannelOutputStream(Paths.get(encodedFile))) {
+                new BlockCompressor().compress(inFile, outFile);
             }
             scanner.close();
         } catch (IOException e) {
@@ -129,36 +36,88 @@ public class Compress {
         }
     }
 
-    public static void main(String[] args) {
-        encodeFile();
+    /**
+     * Non-interactive mode:
+     * {@code java Compress [--lz] [--window=N] [--dict=file] [--tokens] [--entropy=huffman|fse|auto] [--single-stream] [--search-filter] <input> <output>}.
+     * A "-" in either place means stdin or stdout; stdin is compressed in a
+     * single streaming pass, so pipes of any length work.
+     *
+     * @return false if compression failed
+     */
+    static boolean encodeFile(String input, String output, CodecOptions options) {
+        FileEvent job = CodecMetrics.startFile("compress", input, output);
+        IOException failure = null;
+        try (OutputStream out = output.equals("-")
+                 ? new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16)
+                 : new ChannelOutputStream(Paths.get(output))) {
+            if (input.equals("-")) {
+                new BlockCompressor(options).compressStream(System.in, out);
+            } else {
+                try (MappedInputStream in = new MappedInputStream(Paths.get(input))) {
+                    new BlockCompressor(options).compress(in, out);
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+            System.err.println("Error: " + e.getMessage());
+        }
+        CodecMetrics.endFile(job, failure);
+        return failure == null;
     }
-}
 
-class BitSetWrapper {
-    private int buffer = 0;
-    private int bitCount = 0;
-    private final DataOutputStream out;
-
-    public BitSetWrapper(DataOutputStream out) {
-        this.out = out;
+    /**
+     * Batch mode: {@code java Compress [--lz] --batch <dir> [concurrency] [glob]}
+     * processes every matching file under dir, concurrency files at a time.
+     *
+     * @return false if the arguments were wrong or any file failed
+     */
+    static boolean batch(String[] args, CodecOptions options) {
+        try {
+            int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+            if (concurrency < 1) throw new NumberFormatException("Concurrency must be at least 1.");
+            String glob = args.length > 3 ? args[3] : null;
+            return new BatchRunner(false, concurrency, glob, options).run(Paths.get(args[1]));
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Error: " + e.getMessage());
+            return false;
+        }
     }
 
-    public void writeBit(int bit) throws IOException {
-        buffer = (buffer << 1) | bit;
-        bitCount++;
-        if (bitCount == 8) {
-            out.writeByte(buffer);
-            buffer = 0;
-            bitCount = 0;
+    /**
+     * Training mode: {@code java Compress --train <dictionary> <sample>...}
+     * builds a shared code from the sample files (or every file under sample
+     * directories) for use with {@code --dict=<dictionary>}.
+     */
+    static void train(String[] args) {
+        try {
+            List<Path> samples = new ArrayList<>();
+            for (int i = 2; i < args.length; i++) samples.add(Paths.get(args[i]));
+            HuffmanDictionary dictionary = HuffmanDictionary.train(samples, Runtime.getRuntime().availableProcessors());
+            dictionary.save(Paths.get(args[1]));
+            System.out.println("Dictionary " + Integer.toHexString(dictionary.id) + " written to " + args[1]);
+        } catch (IOException e) {
+            System.out.println("Error: " + e.getMessage());
         }
     }
 
-    public void flushRemaining() throws IOException {
-        if (bitCount > 0) {
-            buffer <<= (8 - bitCount);
-            out.writeByte(buffer);
-            buffer = 0;
-            bitCount = 0;
+    public static void main(String[] args) {
+        List<String> positional = new ArrayList<>();
+        CodecOptions options;
+        try {
+            options = CodecOptions.parse(args, positional);
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Error: " + e.getMessage());
+            return;
+        }
+        args = positional.toArray(new String[0]);
+        if (args.length >= 3 && args[0].equals("--train")) {
+            train(args);
+        } else if (args.length >= 2 && args[0].equals("--batch")) {
+            if (!batch(args, options)) System.exit(1);
+        } else if (args.length == 2) {
+            if (!encodeFile(args[0], args[1], options)) System.exit(1);
+        } else {
+            encodeFile();
         }
     }
 }
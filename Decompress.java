@@ -1,118 +1,199 @@
 import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.nio.file.*;
 import java.util.*;
 
-class Node {
-    char ch;
-    double freq;
-    Node left, right;
-
-    Node(char ch, double freq) {
-        this.ch = ch;
-        this.freq = freq;
-        this.left = null;
-        this.right = null;
-    }
-}
-
-class Compare implements Comparator<Node> {
-    public int compare(Node a, Node b) {
-        return Double.compare(a.freq, b.freq);
-    }
-}
-
 public class Decompress {
 
-    static boolean checkStopSequence(DataInputStream in) throws IOException {
-        in.mark(3);
-        int first = in.read();
-        int second = in.read();
-        int third = in.read();
-
-        if (in.available() == 0) return false;
-        if (first == '@' && second == '#' && third == '$') return true;
+    static void decodeFile() {
+        try {
+            Scanner scanner = new Scanner(System.in);
+            System.out.println("Enter file to be decoded:");
+            String inputFilename = scanner.nextLine();
+            System.out.println("Enter decoded file name:");
+            String outputFilename = scanner.nextLine();
 
-        in.reset();
-        return false;
+            new BlockDecompressor().decompress(Paths.get(inputFilename), Paths.get(outputFilename));
+            scanner.close();
+        } catch (IOException e) {
+            System.out.println("Error during decoding: " + e.getMessage());
+        }
     }
 
-    static boolean getNextBit(DataInputStream in, int[] bitCount, int[] buffer) throws IOException {
-        if (bitCount[0] == 8) {
-            if (checkStopSequence(in)) {
-                throw new RuntimeException("Stop sequence detected. Stopping tree creation.");
-            }
-            int newByte = in.read();
-            if (newByte == -1) {
-                throw new EOFException("Unexpected end of file while reading bits.");
+    /**
+     * Non-interactive mode: {@code java Decompress [--dict=file] <input> <output>}.
+     * A "-" in either place means stdin or stdout, and output is written
+     * block by block as it is decoded. An output file is removed again if
+     * decoding fails.
+     *
+     * @return false if decoding failed
+     */
+    static boolean decodeFile(String input, String output) {
+        FileEvent job = CodecMetrics.startFile("decompress", input, output);
+        IOException failure = null;
+        try {
+            if (!input.equals("-") && !output.equals("-")) {
+                new BlockDecompressor().decompress(Paths.get(input), Paths.get(output));
+            } else {
+                try (InputStream in = input.equals("-") ? System.in : new MappedInputStream(Paths.get(input))) {
+                    OutputStream out = output.equals("-")
+                        ? new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16)
+                        : new ChannelOutputStream(Paths.get(output));
+                    try (out) {
+                        new BlockDecompressor().decompress(in, out);
+                    } catch (IOException | RuntimeException e) {
+                        if (!output.equals("-")) BlockDecompressor.deleteOutput(Paths.get(output), e);
+                        throw e;
+                    }
+                }
             }
-            buffer[0] = newByte;
-            bitCount[0] = 0;
+        } catch (IOException e) {
+            failure = e;
+            System.err.println("Error during decoding: " + e.getMessage());
         }
-        boolean value = ((buffer[0] >> (7 - bitCount[0])) & 1) == 1;
-        bitCount[0]++;
-        return value;
+        CodecMetrics.endFile(job, failure);
+        return failure == null;
     }
 
-    static char extractCharacter(DataInputStream in, int[] bitCount, int[] buffer) throws IOException {
-        int c = 0;
-        for (int i = 0; i < 8; i++) {
-            c = (c << 1) | (getNextBit(in, bitCount, buffer) ? 1 : 0);
+    /**
+     * Batch mode: {@code java Decompress --batch [--force] <dir> [concurrency] [glob]}
+     * processes every matching file under dir, concurrency files at a time.
+     * A file whose decoded name already exists is reported as a failure and
+     * left alone unless --force is given.
+     *
+     * @return false if the arguments were wrong or any file failed
+     */
+    static boolean batch(String[] args) {
+        List<String> rest = new ArrayList<>(Arrays.asList(args).subList(1, args.length));
+        boolean force = rest.remove("--force");
+        try {
+            if (rest.isEmpty()) throw new IOException("No directory given.");
+            int concurrency = rest.size() > 1 ? Integer.parseInt(rest.get(1)) : Runtime.getRuntime().availableProcessors();
+            if (concurrency < 1) throw new NumberFormatException("Concurrency must be at least 1.");
+            String glob = rest.size() > 2 ? rest.get(2) : null;
+            return new BatchRunner(true, concurrency, glob, force).run(Paths.get(rest.get(0)));
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Error: " + e.getMessage());
+            return false;
         }
-        return (char) c;
     }
 
-    static Node createTree(DataInputStream in, int[] bitCount, int[] buffer) throws IOException {
-        boolean value = getNextBit(in, bitCount, buffer);
-        if (value) {
-            return new Node(extractCharacter(in, bitCount, buffer), 0);
-        } else {
-            Node root = new Node('\0', 0);
-            root.left = createTree(in, bitCount, buffer);
-            root.right = createTree(in, bitCount, buffer);
-            return root;
+    /**
+     * Test mode: {@code java Decompress [--dict=file] --test <file>...}
+     * decodes every block of each file in parallel and checks its checksum,
+     * writing nothing. Prints one line per file; any failure is also
+     * reported through the exit status.
+     */
+    static boolean test(String[] args) {
+        boolean ok = true;
+        BlockDecompressor decompressor = new BlockDecompressor();
+        for (int i = 1; i < args.length; i++) {
+            FileEvent job = CodecMetrics.startFile("test", args[i], null);
+            IOException failure = null;
+            try {
+                BlockIndex index = decompressor.test(Paths.get(args[i]));
+                System.out.println(args[i] + ": OK, " + index.count + " blocks, " + index.totalRawSize + " bytes");
+            } catch (IOException e) {
+                failure = e;
+                ok = false;
+                System.out.println("Error: " + args[i] + ": " + e.getMessage());
+            }
+            CodecMetrics.endFile(job, failure);
         }
+        return ok;
     }
 
-    static void decodeFile() {
-        try {
-            Scanner scanner = new Scanner(System.in);
-            System.out.println("Enter file to be decoded:");
-            String inputFilename = scanner.nextLine();
-            System.out.println("Enter decoded file name:");
-            String outputFilename = scanner.nextLine();
-
-            DataInputStream in = new DataInputStream(new FileInputStream(inputFilename));
-            FileOutputStream out = new FileOutputStream(outputFilename);
-
-            int[] bitCount = new int[1];
-            int[] buffer = new int[1];
-            buffer[0] = in.read();
-
-            Node root = createTree(in, bitCount, buffer);
-
-            in.read(); // '@'
-            in.read(); // '#'
-            in.read(); // '$'
+    /**
+     * Range mode: {@code java Decompress [--dict=file] --range <file> <offset> <length>}
+     * writes length bytes starting at offset of the original file to stdout,
+     * decoding only the blocks that hold them.
+     */
+    static boolean range(String[] args) {
+        try (SeekableBlockChannel in = new SeekableBlockChannel(Paths.get(args[1]))) {
+            long offset = Long.parseLong(args[2]);
+            long length = Long.parseLong(args[3]);
+            if (offset < 0 || length < 0) throw new NumberFormatException("Negative offset or length.");
+            in.position(offset);
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16);
+            ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+            while (length > 0) {
+                buf.clear().limit((int) Math.min(buf.capacity(), length));
+                int n = in.read(buf);
+                if (n < 0) break;
+                out.write(buf.array(), 0, n);
+                length -= n;
+            }
+            out.flush();
+            return true;
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Error: " + e.getMessage());
+            return false;
+        }
+    }
 
-            int readByte;
-            Node temp = root;
-            while ((readByte = in.read()) != -1) {
-                for (int i = 7; i >= 0; i--) {
-                    temp = ((readByte & (1 << i)) != 0) ? temp.right : temp.left;
-                    if (temp.left == null && temp.right == null) {
-                        out.write(temp.ch);
-                        temp = root;
-                    }
-                }
+    /**
+     * Search mode: {@code java Decompress [--dict=file] --search <pattern> <file>...}
+     * prints "file:offset:line" for every line containing the pattern, where
+     * offset is the line's position in the original file. Exits with 0 if
+     * any line matched, 1 if none did and 2 on errors, like grep.
+     * Blocks that cannot contain the pattern are skipped without decoding,
+     * judged by the search filters in the index of files compressed with
+     * --search-filter (see BlockFilter), or else by the code tables, which
+     * rule out little on text.
+     */
+    static int search(String[] args) {
+        byte[] pattern = args[1].getBytes(StandardCharsets.UTF_8);
+        BlockSearcher searcher = new BlockSearcher();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16);
+        int status = 1;
+        for (int i = 2; i < args.length; i++) {
+            byte[] prefix = (args[i] + ":").getBytes(StandardCharsets.UTF_8);
+            try {
+                long found = searcher.search(Paths.get(args[i]), pattern, (offset, line, off, len) -> {
+                    out.write(prefix);
+                    out.write((offset + ":").getBytes(StandardCharsets.US_ASCII));
+                    out.write(line, off, len);
+                    out.write('\n');
+                });
+                if (found > 0 && status == 1) status = 0;
+                out.flush();
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Error: " + args[i] + ": " + e.getMessage());
+                status = 2;
             }
-            in.close();
-            out.close();
-            scanner.close();
+        }
+        try {
+            out.flush();
         } catch (IOException e) {
-            System.out.println("Error during decoding: " + e.getMessage());
+            System.err.println("Error: " + e.getMessage());
+            status = 2;
         }
+        return status;
     }
 
     public static void main(String[] args) {
-        decodeFile();
+        // Options only matter here for --dict, which registers the dictionary.
+        List<String> positional = new ArrayList<>();
+        try {
+            CodecOptions.parse(args, positional);
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Error: " + e.getMessage());
+            return;
+        }
+        args = positional.toArray(new String[0]);
+        if (args.length >= 2 && args[0].equals("--test")) {
+            if (!test(args)) System.exit(1);
+        } else if (args.length >= 3 && args[0].equals("--search")) {
+            System.exit(search(args));
+        } else if (args.length == 4 && args[0].equals("--range")) {
+            if (!range(args)) System.exit(1);
+        } else if (args.length >= 2 && args[0].equals("--batch")) {
+            if (!batch(args)) System.exit(1);
+        } else if (args.length == 2) {
+            if (!decodeFile(args[0], args[1])) System.exit(1);
+        } else {
+            decodeFile();
+        }
     }
 }
@@ -0,0 +1,36 @@
+import java.io.*;
+import java.nio.*;
+
+/**
+ * An entropy coder over byte symbols, rebuilt for each block from the
+ * block's byte counts. A frame coded with one holds the coder's block type,
+ * its table, then the coded bytes, so the backend is chosen per block and
+ * recorded in the block itself (see CodecOptions.entropy).
+ *
+ * Implementations keep their tables between blocks and are not
+ * thread-safe.
+ */
+interface EntropyCoder {
+    /** Block type of the frames this coder writes. */
+    int blockType();
+
+    /** Rebuilds the coder, for encoding and decoding, for bytes with the given counts. */
+    void build(long[] counts);
+
+    /** Size in bytes of the table writeTable() produces. */
+    int tableSize();
+
+    /** Size in bits, exact or closely estimated, of the coded bytes for the given counts. */
+    long streamBits(long[] counts);
+
+    void writeTable(ByteBuffer out);
+
+    /** Reads a table written by writeTable() and gets ready to decode with it. */
+    void readTable(ByteBuffer in) throws IOException;
+
+    /** Codes src[off, off + length), which may only hold bytes counted by build(), into dst. */
+    void encode(byte[] src, int off, int length, ByteBuffer dst);
+
+    /** Decodes exactly {@code count} bytes from src[off, end) into dst starting at dstOff. */
+    void decode(byte[] src, int off, int end, byte[] dst, int dstOff, int count) throws IOException;
+}
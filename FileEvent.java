@@ -0,0 +1,39 @@
+import jdk.jfr.*;
+
+/** JFR event for one file compressed or decompressed; its duration is the whole job. */
+@Name("huffman.File")
+@Label("Huffman File")
+@Category("Huffman")
+@StackTrace(false)
+class FileEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Input")
+    String input;
+
+    @Label("Output")
+    String output;
+
+    @Label("Bytes In")
+    @DataAmount
+    long bytesIn;
+
+    @Label("Bytes Out")
+    @DataAmount
+    long bytesOut;
+
+    @Label("Ratio")
+    @Description("Compressed size over raw size")
+    double ratio;
+
+    @Label("Throughput")
+    @Description("Raw megabytes per second")
+    double megabytesPerSecond;
+
+    @Label("Error")
+    String error;
+
+    // Not recorded; used for the throughput figure.
+    transient long startNanos;
+}
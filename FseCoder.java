@@ -0,0 +1,413 @@
+import java.io.*;
+import java.lang.invoke.*;
+import java.nio.*;
+
+/**
+ * Table-based asymmetric numeral system (tANS) coder, in the style of FSE.
+ * Byte counts are scaled to a table of 2^tableLog states in which each byte
+ * owns as many states as its scaled count, so a byte costs close to its
+ * exact information content, fractions of a bit included, where Huffman
+ * rounds every code to whole bits. That matters most for skewed blocks: a
+ * byte seen 95% of the time costs about 0.07 bits instead of 1.
+ *
+ * Decoding is one table lookup per byte: the current state gives the byte,
+ * how many bits to read and the base of the next state, with no branch on
+ * the data. Bytes at even and odd positions have separate states, so two
+ * lookups are always in flight. The encoder runs over the block backwards
+ * so the decoder can run forwards, and writes bits LSB first; the decoder
+ * reads them back from the end, where the final states and a 1 bit marking
+ * the end are stored.
+ *
+ * Table layout: tableLog (byte), the number n of byte values that follow
+ * (short, up to the last one used), then each value's state count as one
+ * byte below 0x80 or two bytes with the top bit set, and a run of unused
+ * values as a 0 byte followed by the run length minus one.
+ */
+class FseCoder implements EntropyCoder {
+    static final int MIN_TABLE_LOG = 5;
+    static final int MAX_TABLE_LOG = 12;
+    static final int DEFAULT_TABLE_LOG = 11;
+
+    private static final VarHandle INT_LE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private int tableLog;
+    private int symbolCount;
+    private final int[] norm = new int[HuffmanCode.SYMBOLS];
+
+    // Encoder: the next state for each (byte, reduced state), and per byte
+    // the constants that give the bit count and the stateTable offset.
+    private final char[] stateTable = new char[1 << MAX_TABLE_LOG];
+    private final int[] deltaNbBits = new int[HuffmanCode.SYMBOLS];
+    private final int[] deltaFindState = new int[HuffmanCode.SYMBOLS];
+
+    // Decoder: per state, (next state base << 16) | (bits to read << 8) | byte.
+    private final int[] decodeTable = new int[1 << MAX_TABLE_LOG];
+
+    private final byte[] spread = new byte[1 << MAX_TABLE_LOG];
+    private final int[] next = new int[HuffmanCode.SYMBOLS];
+
+    // Where encode() codes to when dst has no array.
+    private byte[] heapOutput = new byte[0];
+
+    @Override
+    public int blockType() {
+        return HuffmanCodec.TYPE_FSE;
+    }
+
+    /**
+     * Scales the counts to a table sized for the block: large enough to
+     * tell the byte values apart, but not much larger than the block, whose
+     * table would then cost more than it saves.
+     */
+    @Override
+    public void build(long[] counts) {
+        long total = 0;
+        int last = -1;
+        for (int s = 0; s < HuffmanCode.SYMBOLS; s++) {
+            total += counts[s];
+            if (counts[s] != 0) last = s;
+        }
+        if (last < 0) throw new IllegalArgumentException("No bytes to build a table for.");
+        symbolCount = last + 1;
+        int log = DEFAULT_TABLE_LOG;
+        log = Math.min(log, Math.max(highBit(total - 1) - 2, 0));
+        log = Math.max(log, Math.min(highBit(total - 1) + 1, highBit(last) + 2));
+        tableLog = Math.max(MIN_TABLE_LOG, Math.min(MAX_TABLE_LOG, log));
+        normalize(counts, total);
+        buildEncodeTable();
+        buildDecodeTable();
+    }
+
+    /** Index of the highest set bit, or -1 for 0. */
+    private static int highBit(long v) {
+        return 63 - Long.numberOfLeadingZeros(v);
+    }
+
+    /**
+     * Scales counts to sum to 2^tableLog, rounding to nearest but giving
+     * every byte that occurs at least one state. The rounding error is made
+     * up on the most frequent bytes, where a state more or less costs least.
+     */
+    private void normalize(long[] counts, long total) {
+        int size = 1 << tableLog;
+        int sum = 0;
+        int largest = 0;
+        for (int s = 0; s < symbolCount; s++) {
+            long c = counts[s];
+            int n = c == 0 ? 0 : (int) Math.max(1, (c * size + total / 2) / total);
+            norm[s] = n;
+            sum += n;
+            if (n > norm[largest]) largest = s;
+        }
+        if (sum < size) {
+            norm[largest] += size - sum;
+            return;
+        }
+        while (sum > size) {
+            int s = largest;
+            for (int k = 0; k < symbolCount; k++) {
+                if (norm[k] > norm[s]) s = k;
+            }
+            // The largest share has at least 2 states while the table is overfull.
+            int take = Math.min(sum - size, norm[s] - (norm[s] + 1) / 2);
+            norm[s] -= Math.max(take, 1);
+            sum -= Math.max(take, 1);
+        }
+    }
+
+    /**
+     * Spreads each byte's states over the table with a step coprime to its
+     * size, so a byte's states are scattered rather than bunched together.
+     */
+    private void spread() {
+        int size = 1 << tableLog;
+        int mask = size - 1;
+        int step = (size >>> 1) + (size >>> 3) + 3;
+        int pos = 0;
+        for (int s = 0; s < symbolCount; s++) {
+            for (int i = 0; i < norm[s]; i++) {
+                spread[pos] = (byte) s;
+                pos = (pos + step) & mask;
+            }
+        }
+    }
+
+    private void buildEncodeTable() {
+        spread();
+        int size = 1 << tableLog;
+        int total = 0;
+        for (int s = 0; s < symbolCount; s++) {
+            next[s] = total;
+            int n = norm[s];
+            if (n == 1) {
+                deltaNbBits[s] = (tableLog << 16) - size;
+                deltaFindState[s] = total - 1;
+            } else if (n > 1) {
+                int maxBitsOut = tableLog - highBit(n - 1);
+                deltaNbBits[s] = (maxBitsOut << 16) - (n << maxBitsOut);
+                deltaFindState[s] = total - n;
+            }
+            total += n;
+        }
+        // A byte's states, in table order, follow each other in stateTable.
+        for (int u = 0; u < size; u++) {
+            stateTable[next[spread[u] & 0xFF]++] = (char) (size + u);
+        }
+    }
+
+    private void buildDecodeTable() {
+        int size = 1 << tableLog;
+        for (int s = 0; s < symbolCount; s++) next[s] = norm[s];
+        for (int u = 0; u < size; u++) {
+            int s = spread[u] & 0xFF;
+            int x = next[s]++;
+            int nbBits = tableLog - highBit(x);
+            decodeTable[u] = ((x << nbBits) - size) << 16 | nbBits << 8 | s;
+        }
+    }
+
+    @Override
+    public int tableSize() {
+        int size = 3;
+        for (int s = 0; s < symbolCount; s++) {
+            if (norm[s] == 0) {
+                int run = 1;
+                while (run < 256 && s + run < symbolCount && norm[s + run] == 0) run++;
+                s += run - 1;
+                size += 2;
+            } else {
+                size += norm[s] < 0x80 ? 1 : 2;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Estimated from each byte's share of the table, plus the final states
+     * and the end marker.
+     */
+    @Override
+    public long streamBits(long[] counts) {
+        double bits = 0;
+        for (int s = 0; s < symbolCount; s++) {
+            if (counts[s] != 0) bits += counts[s] * (tableLog - Math.log(norm[s]) / Math.log(2));
+        }
+        return (long) Math.ceil(bits) + 4 * tableLog + 1;
+    }
+
+    @Override
+    public void writeTable(ByteBuffer out) {
+        out.put((byte) tableLog);
+        out.putShort((short) symbolCount);
+        for (int s = 0; s < symbolCount; s++) {
+            int n = norm[s];
+            if (n == 0) {
+                int run = 1;
+                while (run < 256 && s + run < symbolCount && norm[s + run] == 0) run++;
+                out.put((byte) 0);
+                out.put((byte) (run - 1));
+                s += run - 1;
+            } else if (n < 0x80) {
+                out.put((byte) n);
+            } else {
+                out.put((byte) (0x80 | n >>> 8));
+                out.put((byte) n);
+            }
+        }
+    }
+
+    @Override
+    public void readTable(ByteBuffer in) throws IOException {
+        if (in.remaining() < 3) throw new EOFException("Truncated FSE table.");
+        int log = in.get();
+        int count = in.getShort() & 0xFFFF;
+        if (log < MIN_TABLE_LOG || log > MAX_TABLE_LOG || count == 0 || count > HuffmanCode.SYMBOLS) {
+            throw new IOException("Corrupt FSE table.");
+        }
+        int size = 1 << log;
+        int sum = 0;
+        for (int s = 0; s < count; s++) {
+            if (!in.hasRemaining()) throw new EOFException("Truncated FSE table.");
+            int n = in.get() & 0xFF;
+            if (n == 0) {
+                if (!in.hasRemaining()) throw new EOFException("Truncated FSE table.");
+                int run = (in.get() & 0xFF) + 1;
+                if (s + run > count) throw new IOException("Corrupt FSE table.");
+                for (int k = 0; k < run; k++) norm[s + k] = 0;
+                s += run - 1;
+                continue;
+            }
+            if (n >= 0x80) {
+                if (!in.hasRemaining()) throw new EOFException("Truncated FSE table.");
+                n = (n & 0x7F) << 8 | in.get() & 0xFF;
+            }
+            if (n > size - sum) throw new IOException("Corrupt FSE table.");
+            norm[s] = n;
+            sum += n;
+        }
+        if (sum != size) throw new IOException("Corrupt FSE table.");
+        tableLog = log;
+        symbolCount = count;
+        spread();
+        buildDecodeTable();
+    }
+
+    /**
+     * Codes the bytes last to first, so that the decoder, which reads the
+     * stream from its end, meets them first to last. Even and odd positions
+     * have a state each, so the decoder can work on two bytes at once.
+     */
+    @Override
+    public void encode(byte[] src, int off, int length, ByteBuffer dst) {
+        int bound = (int) (((long) length * tableLog + 4 * tableLog + 1 + 7) / 8) + 4;
+        if (dst.remaining() < bound) throw new BufferOverflowException();
+        byte[] out;
+        int p;
+        if (dst.hasArray()) {
+            out = dst.array();
+            p = dst.arrayOffset() + dst.position();
+        } else {
+            if (heapOutput.length < bound) heapOutput = new byte[bound];
+            out = heapOutput;
+            p = 0;
+        }
+        int start = p;
+
+        int size = 1 << tableLog;
+        char[] states = stateTable;
+        int[] nbDelta = deltaNbBits;
+        int[] findDelta = deltaFindState;
+        int even = size;
+        int odd = size;
+        long acc = 0;
+        int bitCount = 0;
+        int i = off + length - 1;
+        if ((length & 1) != 0) {
+            int s = src[i--] & 0xFF;
+            int nbBits = (even + nbDelta[s]) >>> 16;
+            acc |= (long) (even & ((1 << nbBits) - 1)) << bitCount;
+            bitCount += nbBits;
+            even = states[(even >>> nbBits) + findDelta[s]];
+        }
+        for (; i > off; i -= 2) {
+            int s = src[i] & 0xFF;
+            int nbBits = (odd + nbDelta[s]) >>> 16;
+            acc |= (long) (odd & ((1 << nbBits) - 1)) << bitCount;
+            bitCount += nbBits;
+            odd = states[(odd >>> nbBits) + findDelta[s]];
+
+            s = src[i - 1] & 0xFF;
+            nbBits = (even + nbDelta[s]) >>> 16;
+            acc |= (long) (even & ((1 << nbBits) - 1)) << bitCount;
+            bitCount += nbBits;
+            even = states[(even >>> nbBits) + findDelta[s]];
+
+            if (bitCount >= 32) {
+                INT_LE.set(out, p, (int) acc);
+                p += 4;
+                acc >>>= 32;
+                bitCount -= 32;
+            }
+        }
+        // The final states, then the end marker.
+        acc |= (long) (odd - size) << bitCount;
+        bitCount += tableLog;
+        acc |= (long) (even - size) << bitCount | 1L << (bitCount + tableLog);
+        bitCount += tableLog + 1;
+        while (bitCount > 0) {
+            out[p++] = (byte) acc;
+            acc >>>= 8;
+            bitCount -= 8;
+        }
+        if (dst.hasArray()) {
+            dst.position(dst.position() + p - start);
+        } else {
+            dst.put(heapOutput, 0, p);
+        }
+    }
+
+    /**
+     * Reads bits downwards from the end marker. In the main loop one
+     * unaligned 64-bit load, shifted so the next bit to read is on top,
+     * holds the bits for four bytes, two per state. The last bytes, and
+     * streams shorter than 8 bytes, go through the checked bits() instead.
+     */
+    @Override
+    public void decode(byte[] src, int off, int end, byte[] dst, int dstOff, int count) throws IOException {
+        if (end <= off || src[end - 1] == 0) throw new IOException("Corrupt FSE stream.");
+        int[] table = decodeTable;
+        int log = tableLog;
+        int mask = (1 << log) - 1;
+        int last = end - off - 8;
+        long head = 0;
+        for (int k = Math.min(8, end - off) - 1; k >= 0; k--) head = head << 8 | src[off + k] & 0xFF;
+        long pos = (long) (end - off - 1) * 8 + highBit(src[end - 1] & 0xFF) - 2 * log;
+        if (pos < 0) throw new IOException("Corrupt FSE stream.");
+        int even = (int) (bits(src, off, last, head, pos + log) & mask);
+        int odd = (int) (bits(src, off, last, head, pos) & mask);
+
+        int o = dstOff;
+        int limit = dstOff + count;
+        // From pos >= 64 on, the load starts inside the stream and holds at
+        // least 56 bits below pos, enough for four reads of up to 12 bits.
+        while (limit - o >= 4 && pos >= 64) {
+            int b = (int) (pos >>> 3) - 7;
+            long c = (long) LONG_LE.get(src, off + b) << (64 - (int) (pos - 8L * b));
+            int used = 0;
+
+            int entry = table[even];
+            dst[o] = (byte) entry;
+            int nbBits = entry >>> 8 & 0xFF;
+            even = (entry >>> 16) + (int) (c >>> 1 >>> (63 - nbBits));
+            used += nbBits;
+
+            entry = table[odd];
+            dst[o + 1] = (byte) entry;
+            nbBits = entry >>> 8 & 0xFF;
+            odd = (entry >>> 16) + (int) (c << used >>> 1 >>> (63 - nbBits));
+            used += nbBits;
+
+            entry = table[even];
+            dst[o + 2] = (byte) entry;
+            nbBits = entry >>> 8 & 0xFF;
+            even = (entry >>> 16) + (int) (c << used >>> 1 >>> (63 - nbBits));
+            used += nbBits;
+
+            entry = table[odd];
+            dst[o + 3] = (byte) entry;
+            nbBits = entry >>> 8 & 0xFF;
+            odd = (entry >>> 16) + (int) (c << used >>> 1 >>> (63 - nbBits));
+            used += nbBits;
+
+            o += 4;
+            pos -= used;
+        }
+        for (; o < limit; o++) {
+            boolean isOdd = ((o - dstOff) & 1) != 0;
+            int entry = table[isOdd ? odd : even];
+            dst[o] = (byte) entry;
+            int nbBits = entry >>> 8 & 0xFF;
+            pos -= nbBits;
+            if (pos < 0) throw new EOFException("Truncated FSE stream.");
+            int state = (entry >>> 16) + (int) (bits(src, off, last, head, pos) & ((1L << nbBits) - 1));
+            if (isOdd) {
+                odd = state;
+            } else {
+                even = state;
+            }
+        }
+        if (pos != 0) throw new IOException("Corrupt FSE stream.");
+    }
+
+    /**
+     * The stream's bits from bit {@code pos} up, at least MAX_TABLE_LOG of
+     * them where the stream has that many. {@code last} is where its last 8
+     * bytes start, and {@code head} holds its first 8 bytes.
+     */
+    private static long bits(byte[] src, int off, int last, long head, long pos) {
+        if (last < 0) return head >>> pos;
+        int q = Math.min((int) (pos >>> 3), last);
+        return (long) LONG_LE.get(src, off + q) >>> (pos - 8 * q);
+    }
+}
@@ -0,0 +1,107 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Byte frequency counter for the frequency pass. Consecutive bytes are
+ * counted into LANES separate int tables, so a run of equal bytes does not
+ * make every increment wait on the store of the previous one. The lanes are
+ * folded into long totals after each call, so counts never overflow.
+ */
+class Histogram {
+    static final int LANES = 4;
+    static final int SEGMENT_ALIGN = 1 << 20;
+
+    final long[] counts = new long[HuffmanCode.SYMBOLS];
+    private final int[] lanes = new int[LANES * HuffmanCode.SYMBOLS];
+
+    void reset() {
+        Arrays.fill(counts, 0);
+    }
+
+    void add(byte[] src, int off, int len) {
+        int[] t = lanes;
+        int i = off;
+        int end = off + len;
+        int unrolled = off + (len & ~(LANES - 1));
+        for (; i < unrolled; i += LANES) {
+            t[src[i] & 0xFF]++;
+            t[256 + (src[i + 1] & 0xFF)]++;
+            t[512 + (src[i + 2] & 0xFF)]++;
+            t[768 + (src[i + 3] & 0xFF)]++;
+        }
+        for (; i < end; i++) {
+            t[src[i] & 0xFF]++;
+        }
+        for (int s = 0; s < HuffmanCode.SYMBOLS; s++) {
+            counts[s] += (long) t[s] + t[256 + s] + t[512 + s] + t[768 + s];
+        }
+        Arrays.fill(t, 0);
+    }
+
+    void merge(Histogram other) {
+        for (int s = 0; s < HuffmanCode.SYMBOLS; s++) {
+            counts[s] += other.counts[s];
+        }
+    }
+
+    long total() {
+        long total = 0;
+        for (long c : counts) total += c;
+        return total;
+    }
+
+    /**
+     * Counts a whole file by splitting it into one segment per thread. Each
+     * segment is mapped and counted on its own, and the results are merged.
+     */
+    static Histogram count(Path file, int threads) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long segment = (size / threads + SEGMENT_ALIGN - 1) / SEGMENT_ALIGN * SEGMENT_ALIGN;
+            segment = Math.max(segment, SEGMENT_ALIGN);
+
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<Histogram>> parts = new ArrayList<>();
+                for (long start = 0; start < size; start += segment) {
+                    long from = start;
+                    long to = Math.min(size, start + segment);
+                    parts.add(pool.submit(() -> countSegment(channel, from, to)));
+                }
+                Histogram result = new Histogram();
+                for (Future<Histogram> part : parts) {
+                    try {
+                        result.merge(part.get());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while counting.");
+                    } catch (ExecutionException e) {
+                        throw new IOException("Counting failed: " + e.getCause().getMessage(), e.getCause());
+                    }
+                }
+                return result;
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    private static Histogram countSegment(FileChannel channel, long from, long to) throws IOException {
+        Histogram histogram = new Histogram();
+        byte[] chunk = new byte[1 << 16];
+        for (long pos = from; pos < to; pos += MappedInputStream.WINDOW) {
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, pos,
+                Math.min(MappedInputStream.WINDOW, to - pos));
+            while (window.hasRemaining()) {
+                int n = Math.min(chunk.length, window.remaining());
+                window.get(chunk, 0, n);
+                histogram.add(chunk, 0, n);
+            }
+        }
+        return histogram;
+    }
+}
@@ -0,0 +1,251 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Canonical Huffman code, over byte symbols unless built for a larger
+ * alphabet (see Tokenizer). Only the code lengths are needed to rebuild the
+ * codes, so the file header stores a length table instead of the tree.
+ * Lengths are capped at MAX_CODE_LENGTH bits, which allows at most
+ * MAX_SYMBOLS symbols.
+ */
+class HuffmanCode {
+    static final int MAX_CODE_LENGTH = 15;
+    static final int SYMBOLS = 256;
+    static final int MAX_SYMBOLS = 1 << MAX_CODE_LENGTH;
+
+    final int[] code;
+    final byte[] len;
+
+    // Scratch space for build(), kept so rebuilding a code allocates nothing.
+    private final long[] sorted;
+    private final long[] weight;
+    private final int[] lengthCount;
+    private final int[] nextCode = new int[MAX_CODE_LENGTH + 1];
+
+    HuffmanCode() {
+        this(SYMBOLS);
+    }
+
+    /** A code over {@code symbols} symbols, at most MAX_SYMBOLS. */
+    HuffmanCode(int symbols) {
+        code = new int[symbols];
+        len = new byte[symbols];
+        sorted = new long[symbols];
+        weight = new long[symbols];
+        lengthCount = new int[Math.max(symbols, MAX_CODE_LENGTH + 1)];
+    }
+
+    /** Rebuilds this code in place from symbol counts. */
+    void build(long[] freq) {
+        Arrays.fill(code, 0);
+        Arrays.fill(len, (byte) 0);
+
+        // Used symbols by ascending count, ties by symbol, packed as count << 16 | symbol.
+        int n = 0;
+        for (int s = 0; s < len.length; s++) {
+            if (freq[s] > 0) sorted[n++] = freq[s] << 16 | s;
+        }
+        if (n == 0) return;
+        sort(sorted, n);
+
+        if (n == 1) {
+            len[(int) sorted[0] & 0xFFFF] = 1;
+        } else {
+            for (int i = 0; i < n; i++) weight[i] = sorted[i] >>> 16;
+            codeLengths(weight, n);
+            limitLengths(n);
+        }
+        assignCodes();
+    }
+
+    /**
+     * Heapsorts a[0, n) ascending in place. Arrays.sort() allocates a table
+     * of runs for input made of sorted runs, as counts often are, and a
+     * code is rebuilt for every block.
+     */
+    private static void sort(long[] a, int n) {
+        for (int i = n / 2 - 1; i >= 0; i--) siftDown(a, i, n);
+        for (int end = n - 1; end > 0; end--) {
+            long top = a[0];
+            a[0] = a[end];
+            a[end] = top;
+            siftDown(a, 0, end);
+        }
+    }
+
+    private static void siftDown(long[] a, int i, int n) {
+        long v = a[i];
+        for (int child = 2 * i + 1; child < n; i = child, child = 2 * i + 1) {
+            if (child + 1 < n && a[child + 1] > a[child]) child++;
+            if (a[child] <= v) break;
+            a[i] = a[child];
+        }
+        a[i] = v;
+    }
+
+    /**
+     * Replaces n ascending weights with their optimal code lengths, in place
+     * and in linear time (Moffat and Katajainen, "In-Place Calculation of
+     * Minimum-Redundancy Codes"). The first pass merges leaves and internal
+     * nodes as two queues, leaving parent pointers; the second turns them into
+     * internal node depths; the third hands out leaf depths, deepest first.
+     * Needs n >= 2.
+     */
+    static void codeLengths(long[] a, int n) {
+        int root = 0;
+        int leaf = 0;
+        for (int next = 0; next < n - 1; next++) {
+            if (leaf >= n || (root < next && a[root] < a[leaf])) {
+                a[next] = a[root];
+                a[root++] = next;
+            } else {
+                a[next] = a[leaf++];
+            }
+            if (leaf >= n || (root < next && a[root] < a[leaf])) {
+                a[next] += a[root];
+                a[root++] = next;
+            } else {
+                a[next] += a[leaf++];
+            }
+        }
+
+        a[n - 2] = 0;
+        for (int next = n - 3; next >= 0; next--) {
+            a[next] = a[(int) a[next]] + 1;
+        }
+
+        int available = 1;
+        int used = 0;
+        long depth = 0;
+        root = n - 2;
+        int next = n - 1;
+        while (available > 0) {
+            while (root >= 0 && a[root] == depth) {
+                used++;
+                root--;
+            }
+            while (available > used) {
+                a[next--] = depth;
+                available--;
+            }
+            available = 2 * used;
+            depth++;
+            used = 0;
+        }
+    }
+
+    /**
+     * Turns the depths codeLengths() left in weight[] into lengths capped at
+     * MAX_CODE_LENGTH while keeping the code complete. Over-long codes are
+     * shortened by borrowing from shorter ones (JPEG Annex K.3), then the
+     * lengths are handed back out shortest-first, most frequent symbol first.
+     */
+    private void limitLengths(int n) {
+        // weight[0] belongs to the rarest symbol, so it is the deepest.
+        int maxDepth = (int) weight[0];
+        int[] count = lengthCount;
+        Arrays.fill(count, 0);
+        for (int i = 0; i < n; i++) count[(int) weight[i]]++;
+
+        for (int i = maxDepth; i > MAX_CODE_LENGTH; i--) {
+            while (count[i] > 0) {
+                int j = i - 2;
+                while (count[j] == 0) j--;
+                count[i] -= 2;
+                count[i - 1]++;
+                count[j + 1] += 2;
+                count[j]--;
+            }
+        }
+
+        int length = 1;
+        for (int i = n - 1; i >= 0; i--) {
+            while (count[length] == 0) length++;
+            len[(int) sorted[i] & 0xFFFF] = (byte) length;
+            count[length]--;
+        }
+    }
+
+    /** Assigns canonical codes: shorter codes first, ties broken by symbol value. */
+    void assignCodes() {
+        Arrays.fill(lengthCount, 0, MAX_CODE_LENGTH + 1, 0);
+        for (byte l : len) lengthCount[l]++;
+        lengthCount[0] = 0;
+
+        int c = 0;
+        for (int bits = 1; bits <= MAX_CODE_LENGTH; bits++) {
+            c = (c + lengthCount[bits - 1]) << 1;
+            nextCode[bits] = c;
+        }
+        for (int s = 0; s < len.length; s++) {
+            if (len[s] != 0) code[s] = nextCode[len[s]]++;
+        }
+    }
+
+    /**
+     * Header layout: the number of symbols n that follow (up to the last one
+     * used), then n four-bit lengths packed two per byte.
+     */
+    void writeLengths(ByteBuffer out) {
+        int n = lastSymbol();
+        out.putShort((short) n);
+        for (int s = 0; s < n; s += 2) {
+            int hi = len[s];
+            int lo = (s + 1 < n) ? len[s + 1] : 0;
+            out.put((byte) ((hi << 4) | lo));
+        }
+    }
+
+    /** Makes this code the same as {@code other}, a code over as many symbols. */
+    void copyFrom(HuffmanCode other) {
+        System.arraycopy(other.code, 0, code, 0, len.length);
+        System.arraycopy(other.len, 0, len, 0, len.length);
+    }
+
+    /** Total length in bits of the codes for symbols with the given counts. */
+    long codedBits(long[] freq) {
+        Simd.Kernels simd = Simd.KERNELS;
+        if (simd != null) return simd.codeBits(freq, len, len.length);
+        long total = 0;
+        for (int s = 0; s < len.length; s++) total += freq[s] * len[s];
+        return total;
+    }
+
+    /** Size in bytes of the table writeLengths() produces. */
+    int tableSize() {
+        return 2 + (lastSymbol() + 1) / 2;
+    }
+
+    private int lastSymbol() {
+        int n = len.length;
+        while (n > 0 && len[n - 1] == 0) n--;
+        return n;
+    }
+
+    /**
+     * Reads a table written by writeLengths(). Lengths that would
+     * over-subscribe the code (a Kraft sum above one, so canonical codes run
+     * past 1 << len) can only come from a damaged table and are rejected.
+     */
+    void readLengths(ByteBuffer in) throws IOException {
+        Arrays.fill(code, 0);
+        Arrays.fill(len, (byte) 0);
+        if (in.remaining() < 2) throw new IOException("Corrupt code length table.");
+        int n = in.getShort() & 0xFFFF;
+        if (n > len.length || in.remaining() < (n + 1) / 2) throw new IOException("Corrupt code length table.");
+        long kraft = 0;
+        for (int s = 0; s < n; s += 2) {
+            int b = in.get() & 0xFF;
+            len[s] = (byte) (b >> 4);
+            if (s + 1 < n) len[s + 1] = (byte) (b & 0xF);
+            if (len[s] != 0) kraft += 1 << (MAX_CODE_LENGTH - len[s]);
+            if (s + 1 < n && len[s + 1] != 0) kraft += 1 << (MAX_CODE_LENGTH - len[s + 1]);
+        }
+        if (kraft > 1 << MAX_CODE_LENGTH) {
+            Arrays.fill(len, (byte) 0);
+            throw new IOException("Corrupt code length table.");
+        }
+        assignCodes();
+    }
+}
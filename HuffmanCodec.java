@@ -0,0 +1,845 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Reusable Huffman codec for in-memory payloads. An instance owns its
+ * histogram, code table, bit writer and decoder tables, and resets them on
+ * every call instead of allocating new ones. Instances are not thread-safe;
+ * use {@link #get()} for a per-thread instance.
+ *
+ * Each call reads or writes one frame, the same frame BlockCompressor writes
+ * for a block: raw size (int), payload size (int), CRC32C of the raw bytes
+ * (int), then a payload that starts with its block type:
+ *
+ *   TYPE_HUFFMAN     code length table, then the bitstream
+ *   TYPE_LZ77        Lz77.STREAMS nested coded frames, one per stream
+ *   TYPE_DICTIONARY  HuffmanDictionary ID (int), then the bitstream
+ *   TYPE_RAW         the block's bytes, stored as they are
+ *   TYPE_REPEAT      distance back (int) to the block whose TYPE_HUFFMAN
+ *                    table this one shares, then the bitstream
+ *   TYPE_TOKENS      Tokenizer token table, code length table over bytes
+ *                    and tokens, then a single bitstream
+ *   TYPE_FSE         FseCoder state count table, then the tANS bitstream
+ *
+ * Blocks coded with neither a dictionary nor tokens use the entropy coder
+ * CodecOptions.entropy names. With ENTROPY_AUTO every block is sized with
+ * both Huffman and FSE through the EntropyCoder interface and gets the
+ * smaller frame, so one file can mix the two; the block type tells the
+ * decoder which it is. Each LZ77 stream picks its coder the same way.
+ *
+ * FLAG_INTERLEAVED in the type byte means the bitstream is split in four
+ * (see HuffmanDecoder.decode4) so the decoder can work on four symbols at
+ * once; the encoder sets it for bitstreams of at least MIN_INTERLEAVED_LENGTH
+ * symbols unless CodecOptions.interleave is off.
+ *
+ * Decoding checks each frame's raw size and checksum, so corrupt input
+ * fails with an IOException instead of producing wrong bytes.
+ *
+ * Every top-level block is reported to CodecMetrics with the time spent in
+ * each phase; nested frames inside LZ77 blocks count towards their block.
+ *
+ * A block is stored raw unless coding it saves at least 1/2^MIN_SAVING_SHIFT
+ * of its size; below that, decoding costs more than the bytes it saves.
+ * When blocks are chained with a TableLink, a block whose statistics barely
+ * changed (coding it with the previous block's table costs at most
+ * 1/2^REUSE_SLACK_SHIFT more) skips its own table and becomes TYPE_REPEAT.
+ * Such frames only decode with the referenced table at hand, which
+ * BlockDecompressor supplies through decodeRepeat().
+ */
+public class HuffmanCodec {
+    static final int TYPE_HUFFMAN = 0;
+    static final int TYPE_LZ77 = 1;
+    static final int TYPE_DICTIONARY = 2;
+    static final int TYPE_RAW = 3;
+    static final int TYPE_REPEAT = 4;
+    static final int TYPE_TOKENS = 5;
+    static final int TYPE_FSE = 6;
+    static final int FLAG_INTERLEAVED = 0x80;
+
+    static final int MIN_INTERLEAVED_LENGTH = 1 << 12;
+
+    static final int MIN_SAVING_SHIFT = 6;
+    static final int REUSE_SLACK_SHIFT = 8;
+
+    private static final ThreadLocal<HuffmanCodec> POOL = ThreadLocal.withInitial(HuffmanCodec::new);
+
+    private final Histogram histogram = new Histogram();
+    private final HuffmanCode huffmanCode = new HuffmanCode();
+    private final HuffmanCoder huffmanCoder = new HuffmanCoder(huffmanCode);
+    private final BitWriter bits = new BitWriter();
+    private final HuffmanDecoder decoder = new HuffmanDecoder();
+    private final CRC32C crc = new CRC32C();
+
+    // LZ77 state, created on first use and kept while the window is unchanged.
+    private Lz77 lz;
+    private ByteBuffer lzFrame = ByteBuffer.allocate(0);
+    private final byte[][] lzStreams = new byte[Lz77.STREAMS][0];
+    private final int[] lzStreamSize = new int[Lz77.STREAMS];
+
+    // Buffers over the parsed and the decoded LZ77 streams, kept while the arrays they wrap are.
+    private final ByteBuffer[] lzParsed = new ByteBuffer[Lz77.STREAMS];
+    private final ByteBuffer[] lzDecoded = new ByteBuffer[Lz77.STREAMS];
+
+    // Token state, created on first use.
+    private Tokenizer tokenizer;
+    private HuffmanCode tokenCode;
+
+    // FSE state, created on first use, and the frame it codes into.
+    private FseCoder fse;
+    private ByteBuffer entropyFrame = ByteBuffer.allocate(0);
+
+    // Heap copies of direct buffers for the paths that work on arrays.
+    private byte[] heapInput = new byte[0];
+    private byte[] heapOutput = new byte[0];
+
+    // Set from the options on each compress call.
+    private boolean interleave;
+
+    // Nanoseconds per CodecMetrics phase for the block in progress.
+    private final long[] phaseNanos = new long[CodecMetrics.PHASES];
+
+    /** Block type of a payload's first byte, without its flags. */
+    static int blockType(int typeByte) {
+        return typeByte & 0xFF & ~FLAG_INTERLEAVED;
+    }
+
+    /** Returns the codec instance owned by the calling thread. */
+    public static HuffmanCodec get() {
+        return POOL.get();
+    }
+
+    /** Largest frame compress() can produce for {@code srcLength} input bytes. */
+    public static int maxCompressedLength(int srcLength) {
+        return BlockFormat.FRAME_HEADER_SIZE + 1 + 2 + HuffmanCode.SYMBOLS / 2
+            + HuffmanDecoder.STREAM_HEADER_SIZE + HuffmanDecoder.STREAMS
+            + (int) (((long) srcLength * HuffmanCode.MAX_CODE_LENGTH + 7) / 8) + 4;
+    }
+
+    public int compress(ByteBuffer src, ByteBuffer dst) {
+        return compress(src, dst, CodecOptions.DEFAULT);
+    }
+
+    /**
+     * Compresses all remaining bytes of src into one frame at dst's position.
+     * Both buffers are advanced. dst must have at least
+     * maxCompressedLength(src.remaining()) bytes remaining.
+     *
+     * @return the number of bytes written to dst
+     */
+    public int compress(ByteBuffer src, ByteBuffer dst, CodecOptions options) {
+        return compress(src, dst, options, null);
+    }
+
+    /**
+     * Same as compress(src, dst, options) for one block of a chained stream:
+     * the block may reuse the previous block's table, and always publishes
+     * its own choice to the link.
+     */
+    int compress(ByteBuffer src, ByteBuffer dst, CodecOptions options, TableLink link) {
+        int length = src.remaining();
+        if (dst.remaining() < maxCompressedLength(length)) {
+            throw new IllegalArgumentException("Destination buffer too small: need "
+                + maxCompressedLength(length) + " bytes, have " + dst.remaining() + ".");
+        }
+        ByteOrder order = dst.order();
+        dst.order(ByteOrder.BIG_ENDIAN);
+        interleave = options.interleave;
+        int start = dst.position();
+        try {
+            int written = compressBlock(src, dst, options, link);
+            finishBlock(true, dst.get(start + BlockFormat.FRAME_HEADER_SIZE), length, written);
+            return written;
+        } finally {
+            if (link != null) link.publish(null);
+            dst.order(order);
+            Arrays.fill(phaseNanos, 0);
+        }
+    }
+
+    private int compressBlock(ByteBuffer src, ByteBuffer dst, CodecOptions options, TableLink link) {
+        int length = src.remaining();
+        if (options.lz && length >= Lz77.MIN_MATCH) {
+            int written = compressLz(src, dst, options);
+            if (written > 0) return written;
+        }
+        if (options.tokens && length >= Tokenizer.MIN_TOKEN_LENGTH) {
+            int written = compressTokens(src, dst, options);
+            if (written > 0) return written;
+        }
+        if (options.dictionary != null) {
+            int srcStart = src.position();
+            int dstStart = dst.position();
+            int written = compressDictionary(src, dst, options.dictionary);
+            if (written <= storedLimit(length)) return written;
+            src.position(srcStart);
+            dst.position(dstStart);
+            return compressRaw(src, dst);
+        }
+        return compressEntropy(src, dst, options, link);
+    }
+
+    /** Adds the time since {@code since} to a phase and returns the current time. */
+    private long lap(int phase, long since) {
+        long now = System.nanoTime();
+        phaseNanos[phase] += now - since;
+        return now;
+    }
+
+    /**
+     * Records the finished block's phases. Every entry point clears
+     * phaseNanos in a finally block instead, so a block that throws does
+     * not leave its time to be charged to the next one.
+     */
+    private void finishBlock(boolean compress, int typeByte, int raw, int frame) {
+        CodecMetrics.recordBlock(compress, blockType(typeByte), raw, frame, phaseNanos);
+    }
+
+    /**
+     * Writes a TYPE_HUFFMAN frame, or a TYPE_REPEAT frame if the link offers
+     * a table that does about as well. dst must be big-endian.
+     */
+    private int compressHuffman(ByteBuffer src, ByteBuffer dst, TableLink link) {
+        countBytes(src);
+        return writeHuffman(src, dst, link);
+    }
+
+    /** Counts src's remaining bytes into the histogram; src is not advanced. */
+    private void countBytes(ByteBuffer src) {
+        long t = System.nanoTime();
+        histogram.reset();
+        if (src.hasArray()) {
+            histogram.add(src.array(), src.arrayOffset() + src.position(), src.remaining());
+        } else {
+            for (int i = src.position(); i < src.limit(); i++) {
+                histogram.counts[src.get(i) & 0xFF]++;
+            }
+        }
+        lap(CodecMetrics.HISTOGRAM, t);
+    }
+
+    /** compressHuffman() for src's bytes already counted into the histogram. */
+    private int writeHuffman(ByteBuffer src, ByteBuffer dst, TableLink link) {
+        int length = src.remaining();
+        int start = dst.position();
+
+        long t = System.nanoTime();
+        huffmanCode.build(histogram.counts);
+        int own = frameSize(huffmanCode, huffmanCode.tableSize());
+        lap(CodecMetrics.TREE_BUILD, t);
+
+        TableLink.Table previous = link == null ? null : link.awaitPrevious();
+        t = System.nanoTime();
+        if (previous != null && covers(previous.code)) {
+            int shared = frameSize(previous.code, 4);
+            if (shared <= own + (own >> REUSE_SLACK_SHIFT) && shared <= storedLimit(length)) {
+                // Coded from a copy: once published, the table may be turned down and reused.
+                huffmanCode.copyFrom(previous.code);
+                int distance = link.block - previous.block;
+                link.publish(previous);
+                putFrameHeader(src, dst, 0);
+                dst.put((byte) (TYPE_REPEAT | streamFlag(length)));
+                dst.putInt(distance);
+                t = lap(CodecMetrics.HEADER_WRITE, t);
+                writeBits(src, dst, huffmanCode, streamFlag(length) != 0);
+                lap(CodecMetrics.ENCODE, t);
+
+                int written = dst.position() - start;
+                dst.putInt(start + 4, written - BlockFormat.FRAME_HEADER_SIZE);
+                return written;
+            }
+        }
+        if (previous != null) link.release(previous);
+        if (own > storedLimit(length)) {
+            return compressRaw(src, dst);
+        }
+        if (link != null) link.publish(link.table(huffmanCode));
+
+        putFrameHeader(src, dst, 0);
+        dst.put((byte) (TYPE_HUFFMAN | streamFlag(length)));
+        huffmanCode.writeLengths(dst);
+        t = lap(CodecMetrics.HEADER_WRITE, t);
+        writeBits(src, dst, huffmanCode, streamFlag(length) != 0);
+        lap(CodecMetrics.ENCODE, t);
+
+        int written = dst.position() - start;
+        dst.putInt(start + 4, written - BlockFormat.FRAME_HEADER_SIZE);
+        return written;
+    }
+
+    /**
+     * Writes the block with the entropy coder the options ask for: a
+     * TYPE_FSE frame if FSE is forced and beats storing the block, or under
+     * ENTROPY_AUTO if it also comes out smaller than the Huffman frame;
+     * otherwise whatever compressHuffman() writes. dst must be big-endian.
+     */
+    private int compressEntropy(ByteBuffer src, ByteBuffer dst, CodecOptions options, TableLink link) {
+        int length = src.remaining();
+        if (options.entropy == CodecOptions.ENTROPY_HUFFMAN || length == 0) {
+            return compressHuffman(src, dst, link);
+        }
+        if (fse == null) fse = new FseCoder();
+        countBytes(src);
+
+        long t = System.nanoTime();
+        int plain = storedLimit(length);
+        if (options.entropy == CodecOptions.ENTROPY_AUTO) {
+            huffmanCoder.build(histogram.counts);
+            plain = Math.min(plain, frameSize(huffmanCoder));
+        }
+        fse.build(histogram.counts);
+        int estimate = frameSize(fse);
+        lap(CodecMetrics.TREE_BUILD, t);
+        if (estimate < plain) {
+            int written = writeFrame(fse, src, dst, plain);
+            if (written > 0) return written;
+        }
+        return writeHuffman(src, dst, link);
+    }
+
+    /** Size in bytes of a frame coding the histogram's counts with the given coder, built for them. */
+    private int frameSize(EntropyCoder coder) {
+        return (int) (BlockFormat.FRAME_HEADER_SIZE + 1 + coder.tableSize() + (coder.streamBits(histogram.counts) + 7) / 8);
+    }
+
+    /**
+     * Writes a frame coded with {@code coder}, built for src's bytes, if it
+     * comes out smaller than {@code limit}. Returns the frame size, or -1
+     * with src and dst untouched.
+     */
+    private int writeFrame(EntropyCoder coder, ByteBuffer src, ByteBuffer dst, int limit) {
+        int length = src.remaining();
+        int bound = maxCompressedLength(length) + coder.tableSize();
+        if (entropyFrame.capacity() < bound) entropyFrame = ByteBuffer.allocate(bound);
+        entropyFrame.clear();
+
+        long t = System.nanoTime();
+        putFrameHeader(src, entropyFrame, 0);
+        entropyFrame.put((byte) coder.blockType());
+        coder.writeTable(entropyFrame);
+        t = lap(CodecMetrics.HEADER_WRITE, t);
+        coder.encode(inputArray(src), inputOffset(src), length, entropyFrame);
+        lap(CodecMetrics.ENCODE, t);
+        int written = entropyFrame.position();
+        if (written >= limit) return -1;
+
+        entropyFrame.putInt(4, written - BlockFormat.FRAME_HEADER_SIZE);
+        dst.put(entropyFrame.array(), 0, written);
+        src.position(src.limit());
+        return written;
+    }
+
+    /** Whether the code has a code for every byte in the histogram. */
+    private boolean covers(HuffmanCode code) {
+        for (int s = 0; s < HuffmanCode.SYMBOLS; s++) {
+            if (histogram.counts[s] != 0 && code.len[s] == 0) return false;
+        }
+        return true;
+    }
+
+    /** Largest coded frame worth keeping over a TYPE_RAW frame of {@code length} bytes. */
+    private static int storedLimit(int length) {
+        return BlockFormat.FRAME_HEADER_SIZE + 1 + length - (length >> MIN_SAVING_SHIFT);
+    }
+
+    /** Writes a TYPE_RAW frame. */
+    private int compressRaw(ByteBuffer src, ByteBuffer dst) {
+        int length = src.remaining();
+        long t = System.nanoTime();
+        putFrameHeader(src, dst, 1 + length);
+        dst.put((byte) TYPE_RAW);
+        dst.put(src);
+        lap(CodecMetrics.ENCODE, t);
+        return BlockFormat.FRAME_HEADER_SIZE + 1 + length;
+    }
+
+    /** Writes a TYPE_DICTIONARY frame: no frequency pass and no length table. */
+    private int compressDictionary(ByteBuffer src, ByteBuffer dst, HuffmanDictionary dictionary) {
+        int length = src.remaining();
+        int start = dst.position();
+        long t = System.nanoTime();
+        putFrameHeader(src, dst, 0);
+        dst.put((byte) (TYPE_DICTIONARY | streamFlag(length)));
+        dst.putInt(dictionary.id);
+        writeBits(src, dst, dictionary.code, streamFlag(length) != 0);
+        lap(CodecMetrics.ENCODE, t);
+
+        int written = dst.position() - start;
+        dst.putInt(start + 4, written - BlockFormat.FRAME_HEADER_SIZE);
+        return written;
+    }
+
+    /**
+     * Writes a frame header for all remaining bytes of src without consuming
+     * them. A payload size of 0 is a placeholder the caller patches later.
+     */
+    private void putFrameHeader(ByteBuffer src, ByteBuffer dst, int payloadSize) {
+        dst.putInt(src.remaining());
+        dst.putInt(payloadSize);
+        dst.putInt(checksum(src));
+    }
+
+    /** CRC32C of src's remaining bytes; src is not advanced. */
+    private int checksum(ByteBuffer src) {
+        int position = src.position();
+        crc.reset();
+        crc.update(src);
+        src.position(position);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Checks that the bytes between {@code start} and dst's position are
+     * {@code raw} bytes long and have the given checksum.
+     */
+    private void verify(ByteBuffer dst, int start, int raw, int checksum) throws IOException {
+        int end = dst.position();
+        if (end - start != raw) throw new IOException("Block decoded to the wrong length.");
+        int limit = dst.limit();
+        dst.limit(end).position(start);
+        boolean ok = checksum(dst) == checksum;
+        dst.limit(limit).position(end);
+        if (!ok) throw new IOException("Block checksum mismatch.");
+    }
+
+    /**
+     * Checks a stored block, given as the remaining bytes of {@code block},
+     * against its frame checksum, for callers that copy stored blocks out
+     * themselves. The block is counted in CodecMetrics as a decoded one.
+     */
+    void verify(ByteBuffer block, int checksum) throws IOException {
+        int raw = block.remaining();
+        try {
+            long t = System.nanoTime();
+            if (checksum(block) != checksum) throw new IOException("Block checksum mismatch.");
+            lap(CodecMetrics.DECODE, t);
+            finishBlock(false, TYPE_RAW, raw, BlockFormat.FRAME_HEADER_SIZE + 1 + raw);
+        } finally {
+            Arrays.fill(phaseNanos, 0);
+        }
+    }
+
+    private int streamFlag(int length) {
+        return interleave && length >= MIN_INTERLEAVED_LENGTH ? FLAG_INTERLEAVED : 0;
+    }
+
+    /** Writes the bitstream for src, split in four as decode4() expects if interleaved. */
+    void writeBits(ByteBuffer src, ByteBuffer dst, HuffmanCode huffmanCode, boolean interleaved) {
+        int length = src.remaining();
+        if (!interleaved) {
+            writeStream(src, src.position(), src.limit(), dst, huffmanCode);
+            src.position(src.limit());
+            return;
+        }
+        int sizes = dst.position();
+        dst.position(sizes + HuffmanDecoder.STREAM_HEADER_SIZE);
+        int quarter = (length + 3) / 4;
+        for (int k = 0; k < HuffmanDecoder.STREAMS; k++) {
+            int from = src.position() + Math.min(k * quarter, length);
+            int to = src.position() + Math.min((k + 1) * quarter, length);
+            int start = dst.position();
+            writeStream(src, from, to, dst, huffmanCode);
+            if (k < HuffmanDecoder.STREAMS - 1) dst.putInt(sizes + 4 * k, dst.position() - start);
+        }
+        src.position(src.limit());
+    }
+
+    private void writeStream(ByteBuffer src, int from, int to, ByteBuffer dst, HuffmanCode huffmanCode) {
+        bits.reset(dst);
+        int[] code = huffmanCode.code;
+        byte[] len = huffmanCode.len;
+        Simd.Kernels simd = src.hasArray() ? Simd.encoder(to - from) : null;
+        if (simd != null) {
+            simd.encode(src.array(), src.arrayOffset() + from, src.arrayOffset() + to, huffmanCode, bits);
+        } else if (src.hasArray()) {
+            byte[] a = src.array();
+            int off = src.arrayOffset();
+            for (int i = off + from; i < off + to; i++) {
+                int ch = a[i] & 0xFF;
+                bits.write(code[ch], len[ch]);
+            }
+        } else {
+            for (int i = from; i < to; i++) {
+                int ch = src.get(i) & 0xFF;
+                bits.write(code[ch], len[ch]);
+            }
+        }
+        bits.flush();
+    }
+
+    /** Decodes a bitstream written by writeBits(). */
+    private static void readBits(HuffmanDecoder decoder, ByteBuffer payload, ByteBuffer dst, int raw,
+            boolean interleaved) throws IOException {
+        if (interleaved) {
+            decoder.decode4(payload, dst, raw);
+        } else {
+            decoder.decode(payload, dst, raw);
+        }
+    }
+
+    /**
+     * Size in bytes of a frame coding the histogram's counts with the given
+     * code, where the code costs {@code tableSize} header bytes.
+     */
+    private int frameSize(HuffmanCode code, int tableSize) {
+        long bitTotal = code.codedBits(histogram.counts);
+        long length = histogram.total();
+        int streams = streamFlag((int) length) != 0 ? HuffmanDecoder.STREAM_HEADER_SIZE + HuffmanDecoder.STREAMS - 1 : 0;
+        return (int) (BlockFormat.FRAME_HEADER_SIZE + 1 + tableSize + streams + (bitTotal + 7) / 8);
+    }
+
+    /** src's backing array, or a heap copy of its remaining bytes if it has none. */
+    private byte[] inputArray(ByteBuffer src) {
+        if (src.hasArray()) return src.array();
+        int length = src.remaining();
+        if (heapInput.length < length) heapInput = new byte[length];
+        src.get(src.position(), heapInput, 0, length);
+        return heapInput;
+    }
+
+    /** Where src's remaining bytes start in inputArray(src). */
+    private static int inputOffset(ByteBuffer src) {
+        return src.hasArray() ? src.arrayOffset() + src.position() : 0;
+    }
+
+    /**
+     * Size of the frame the block gets without LZ77 or tokens: coded with
+     * the dictionary or its own table, or stored.
+     */
+    private int plainFrameSize(byte[] input, int off, int length, CodecOptions options) {
+        long t = System.nanoTime();
+        histogram.reset();
+        histogram.add(input, off, length);
+        t = lap(CodecMetrics.HISTOGRAM, t);
+        int plain;
+        if (options.dictionary != null) {
+            plain = frameSize(options.dictionary.code, 4);
+        } else {
+            huffmanCode.build(histogram.counts);
+            plain = frameSize(huffmanCode, huffmanCode.tableSize());
+        }
+        lap(CodecMetrics.TREE_BUILD, t);
+        return Math.min(plain, storedLimit(length));
+    }
+
+    /**
+     * Writes a TYPE_LZ77 frame if it comes out smaller than the frame the
+     * block would otherwise get. Returns the frame size, or -1 with src and
+     * dst untouched if LZ77 does not pay off.
+     */
+    private int compressLz(ByteBuffer src, ByteBuffer dst, CodecOptions options) {
+        int length = src.remaining();
+        // Matches never reach outside the block, so a window (and hash chain) larger than the
+        // block buys nothing. Any window of at least the block's length parses it the same way.
+        int window = Lz77.roundWindow(Math.min(options.window, length));
+        if (lz == null || lz.window() < window || lz.window() > Lz77.roundWindow(options.window)) {
+            lz = new Lz77(window);
+        }
+
+        byte[] input = inputArray(src);
+        int off = inputOffset(src);
+        int plain = plainFrameSize(input, off, length, options);
+
+        long t = System.nanoTime();
+        lz.parse(input, off, length);
+        lap(CodecMetrics.LZ_PARSE, t);
+        int bound = BlockFormat.FRAME_HEADER_SIZE + 1;
+        for (int i = 0; i < Lz77.STREAMS; i++) bound += maxCompressedLength(lz.streamSize[i]);
+        if (lzFrame.capacity() < bound) lzFrame = ByteBuffer.allocate(bound);
+        lzFrame.clear();
+        putFrameHeader(src, lzFrame, 0);
+        lzFrame.put((byte) TYPE_LZ77);
+        for (int i = 0; i < Lz77.STREAMS; i++) {
+            compressEntropy(wrap(lzParsed, i, lz.streams[i], lz.streamSize[i]), lzFrame, options, null);
+        }
+        int written = lzFrame.position();
+        if (written >= plain) return -1;
+
+        lzFrame.putInt(4, written - BlockFormat.FRAME_HEADER_SIZE);
+        dst.put(lzFrame.array(), 0, written);
+        src.position(src.limit());
+        return written;
+    }
+
+    /** A buffer over array[0, size), reusing buffers[i] if it already wraps the array. */
+    private static ByteBuffer wrap(ByteBuffer[] buffers, int i, byte[] array, int size) {
+        ByteBuffer buf = buffers[i];
+        if (buf == null || buf.array() != array) buf = buffers[i] = ByteBuffer.wrap(array);
+        buf.clear().limit(size);
+        return buf.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Writes a TYPE_TOKENS frame if it comes out smaller than the frame the
+     * block would otherwise get. Returns the frame size, or -1 with src and
+     * dst untouched if tokens do not pay off. The bitstream is never split,
+     * since decodeTokens() has no interleaved form.
+     */
+    private int compressTokens(ByteBuffer src, ByteBuffer dst, CodecOptions options) {
+        int length = src.remaining();
+        if (tokenizer == null) {
+            tokenizer = new Tokenizer();
+            tokenCode = new HuffmanCode(HuffmanCode.MAX_SYMBOLS);
+        }
+        byte[] input = inputArray(src);
+        int off = inputOffset(src);
+
+        long t = System.nanoTime();
+        boolean found = tokenizer.build(input, off, length);
+        t = lap(CodecMetrics.TOKENIZE, t);
+        if (!found) return -1;
+        int plain = plainFrameSize(input, off, length, options);
+
+        t = System.nanoTime();
+        tokenizer.parse(input, off, length);
+        t = lap(CodecMetrics.TOKENIZE, t);
+        long[] freq = tokenizer.freq;
+        tokenCode.build(freq);
+        long bitTotal = tokenCode.codedBits(freq);
+        int payloadSize = 1 + tokenizer.tableSize() + tokenCode.tableSize() + (int) ((bitTotal + 7) / 8);
+        t = lap(CodecMetrics.TREE_BUILD, t);
+        if (BlockFormat.FRAME_HEADER_SIZE + payloadSize >= plain) return -1;
+
+        putFrameHeader(src, dst, payloadSize);
+        dst.put((byte) TYPE_TOKENS);
+        tokenizer.writeTokens(dst);
+        tokenCode.writeLengths(dst);
+        t = lap(CodecMetrics.HEADER_WRITE, t);
+        bits.reset(dst);
+        int[] code = tokenCode.code;
+        byte[] len = tokenCode.len;
+        char[] symbols = tokenizer.symbols;
+        for (int i = 0; i < tokenizer.symbolCount; i++) {
+            int s = symbols[i];
+            bits.write(code[s], len[s]);
+        }
+        bits.flush();
+        lap(CodecMetrics.ENCODE, t);
+        src.position(src.limit());
+        return BlockFormat.FRAME_HEADER_SIZE + payloadSize;
+    }
+
+    /**
+     * Decompresses one frame from src into dst, advancing both. A frame
+     * whose raw size is more than dst has room for is treated as corrupt.
+     *
+     * @return the number of bytes written to dst
+     */
+    public int decompress(ByteBuffer src, ByteBuffer dst) throws IOException {
+        int start = src.position();
+        try {
+            int raw = decodeFrame(src, dst);
+            finishBlock(false, src.get(start + BlockFormat.FRAME_HEADER_SIZE), raw, src.position() - start);
+            return raw;
+        } finally {
+            Arrays.fill(phaseNanos, 0);
+        }
+    }
+
+    private int decodeFrame(ByteBuffer src, ByteBuffer dst) throws IOException {
+        ByteOrder order = src.order();
+        src.order(ByteOrder.BIG_ENDIAN);
+        try {
+            if (src.remaining() < BlockFormat.FRAME_HEADER_SIZE) throw new EOFException("Truncated frame.");
+            int raw = src.getInt();
+            int payloadSize = src.getInt();
+            int checksum = src.getInt();
+            if (raw < 0 || payloadSize < 0 || payloadSize > src.remaining()) {
+                throw new IOException("Corrupt frame header.");
+            }
+            if (raw > dst.remaining()) {
+                throw new IOException("Frame of " + raw + " bytes does not fit in the destination.");
+            }
+            int limit = src.limit();
+            int end = src.position() + payloadSize;
+            src.limit(end);
+            int start = dst.position();
+            try {
+                readPayload(src, dst, raw);
+            } finally {
+                src.limit(limit);
+            }
+            long t = System.nanoTime();
+            verify(dst, start, raw, checksum);
+            lap(CodecMetrics.DECODE, t);
+            src.position(end);
+            return raw;
+        } finally {
+            src.order(order);
+        }
+    }
+
+    /**
+     * Decodes a frame payload (block type and body) of {@code raw} bytes and
+     * checks it against the frame's checksum.
+     */
+    void decodePayload(ByteBuffer payload, ByteBuffer dst, int raw, int checksum) throws IOException {
+        int size = payload.remaining();
+        int typeByte = size > 0 ? payload.get(payload.position()) : -1;
+        int start = dst.position();
+        try {
+            readPayload(payload, dst, raw);
+            long t = System.nanoTime();
+            verify(dst, start, raw, checksum);
+            lap(CodecMetrics.DECODE, t);
+            finishBlock(false, typeByte, raw, BlockFormat.FRAME_HEADER_SIZE + size);
+        } finally {
+            Arrays.fill(phaseNanos, 0);
+        }
+    }
+
+    private void readPayload(ByteBuffer payload, ByteBuffer dst, int raw) throws IOException {
+        payload.order(ByteOrder.BIG_ENDIAN);
+        if (!payload.hasRemaining()) throw new EOFException("Empty block payload.");
+        int typeByte = payload.get();
+        boolean interleaved = (typeByte & FLAG_INTERLEAVED) != 0;
+        int type = blockType(typeByte);
+        long t = System.nanoTime();
+        switch (type) {
+            case TYPE_HUFFMAN:
+                huffmanCode.readLengths(payload);
+                decoder.init(huffmanCode);
+                t = lap(CodecMetrics.TREE_READ, t);
+                readBits(decoder, payload, dst, raw, interleaved);
+                lap(CodecMetrics.DECODE, t);
+                break;
+            case TYPE_LZ77:
+                decodeLz(payload, dst, raw);
+                break;
+            case TYPE_DICTIONARY:
+                if (payload.remaining() < 4) throw new EOFException("Truncated block payload.");
+                HuffmanDecoder shared = HuffmanDictionary.forId(payload.getInt()).decoder;
+                t = lap(CodecMetrics.TREE_READ, t);
+                readBits(shared, payload, dst, raw, interleaved);
+                lap(CodecMetrics.DECODE, t);
+                break;
+            case TYPE_RAW:
+                if (payload.remaining() != raw) throw new IOException("Corrupt stored block.");
+                if (dst.remaining() < raw) throw new BufferOverflowException();
+                dst.put(payload);
+                lap(CodecMetrics.DECODE, t);
+                break;
+            case TYPE_REPEAT:
+                throw new IOException("Block shares a table with an earlier block.");
+            case TYPE_TOKENS:
+                decodeTokens(payload, dst, raw);
+                break;
+            case TYPE_FSE:
+                if (fse == null) fse = new FseCoder();
+                fse.readTable(payload);
+                t = lap(CodecMetrics.TREE_READ, t);
+                decodeWith(fse, payload, dst, raw);
+                lap(CodecMetrics.DECODE, t);
+                break;
+            default:
+                throw new IOException("Unknown block type " + type + ".");
+        }
+        if (payload.hasRemaining()) throw new IOException("Trailing bytes after block payload.");
+    }
+
+    /**
+     * Decodes a TYPE_REPEAT payload. {@code table} is the start of the
+     * TYPE_HUFFMAN payload it refers to, at least up to the end of its table.
+     */
+    void decodeRepeat(ByteBuffer table, ByteBuffer payload, ByteBuffer dst, int raw, int checksum)
+            throws IOException {
+        table.order(ByteOrder.BIG_ENDIAN);
+        payload.order(ByteOrder.BIG_ENDIAN);
+        if (!table.hasRemaining() || blockType(table.get()) != TYPE_HUFFMAN) {
+            throw new IOException("Repeated block does not refer to a coded block.");
+        }
+        int size = payload.remaining();
+        try {
+            long t = System.nanoTime();
+            huffmanCode.readLengths(table);
+            decoder.init(huffmanCode);
+            t = lap(CodecMetrics.TREE_READ, t);
+            if (size < 5) throw new EOFException("Truncated block payload.");
+            boolean interleaved = (payload.get(payload.position()) & FLAG_INTERLEAVED) != 0;
+            payload.position(payload.position() + 5);
+            int start = dst.position();
+            readBits(decoder, payload, dst, raw, interleaved);
+            verify(dst, start, raw, checksum);
+            lap(CodecMetrics.DECODE, t);
+            finishBlock(false, TYPE_REPEAT, raw, BlockFormat.FRAME_HEADER_SIZE + size);
+        } finally {
+            Arrays.fill(phaseNanos, 0);
+        }
+    }
+
+    private void decodeLz(ByteBuffer payload, ByteBuffer dst, int raw) throws IOException {
+        if (dst.remaining() < raw) throw new BufferOverflowException();
+        for (int i = 0; i < Lz77.STREAMS; i++) {
+            if (payload.remaining() < BlockFormat.FRAME_HEADER_SIZE) throw new EOFException("Truncated LZ77 block.");
+            int size = payload.getInt(payload.position());
+            if (size < 0 || size > raw) throw new IOException("Corrupt LZ77 block.");
+            if (lzStreams[i].length < size) lzStreams[i] = new byte[size];
+            lzStreamSize[i] = decodeFrame(payload, wrap(lzDecoded, i, lzStreams[i], size));
+        }
+        if (lzStreamSize[4] != lzStreamSize[1] || lzStreamSize[5] != lzStreamSize[1]
+                || lzStreamSize[3] != lzStreamSize[1]) {
+            throw new IOException("Corrupt LZ77 block.");
+        }
+
+        long t = System.nanoTime();
+        if (dst.hasArray()) {
+            Lz77.execute(lzStreams, lzStreamSize, dst.array(), dst.arrayOffset() + dst.position(), raw);
+        } else {
+            if (heapOutput.length < raw) heapOutput = new byte[raw];
+            Lz77.execute(lzStreams, lzStreamSize, heapOutput, 0, raw);
+            dst.put(dst.position(), heapOutput, 0, raw);
+        }
+        dst.position(dst.position() + raw);
+        lap(CodecMetrics.LZ_EXECUTE, t);
+    }
+
+    /** Decodes all remaining bytes of payload with {@code coder} into {@code raw} bytes of dst. */
+    private void decodeWith(EntropyCoder coder, ByteBuffer payload, ByteBuffer dst, int raw) throws IOException {
+        if (dst.remaining() < raw) throw new BufferOverflowException();
+        byte[] src = inputArray(payload);
+        int off = inputOffset(payload);
+        if (dst.hasArray()) {
+            coder.decode(src, off, off + payload.remaining(), dst.array(), dst.arrayOffset() + dst.position(), raw);
+        } else {
+            if (heapOutput.length < raw) heapOutput = new byte[raw];
+            coder.decode(src, off, off + payload.remaining(), heapOutput, 0, raw);
+            dst.put(dst.position(), heapOutput, 0, raw);
+        }
+        payload.position(payload.limit());
+        dst.position(dst.position() + raw);
+    }
+
+    private void decodeTokens(ByteBuffer payload, ByteBuffer dst, int raw) throws IOException {
+        if (dst.remaining() < raw) throw new BufferOverflowException();
+        if (tokenizer == null) {
+            tokenizer = new Tokenizer();
+            tokenCode = new HuffmanCode(HuffmanCode.MAX_SYMBOLS);
+        }
+        long t = System.nanoTime();
+        tokenizer.readTokens(payload);
+        if (payload.remaining() < 2) throw new EOFException("Truncated block payload.");
+        tokenCode.readLengths(payload);
+        decoder.init(tokenCode);
+        t = lap(CodecMetrics.TREE_READ, t);
+
+        byte[] src = inputArray(payload);
+        int off = inputOffset(payload);
+        byte[] out;
+        int outOff;
+        if (dst.hasArray()) {
+            out = dst.array();
+            outOff = dst.arrayOffset() + dst.position();
+        } else {
+            if (heapOutput.length < raw) heapOutput = new byte[raw];
+            out = heapOutput;
+            outOff = 0;
+        }
+        decoder.decodeTokens(src, off, off + payload.remaining(), out, outOff, raw,
+            tokenizer.tokenBytes, tokenizer.tokenStart, tokenizer.tokenCount);
+        payload.position(payload.limit());
+        if (!dst.hasArray()) dst.put(dst.position(), heapOutput, 0, raw);
+        dst.position(dst.position() + raw);
+        lap(CodecMetrics.DECODE, t);
+    }
+}
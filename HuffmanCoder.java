@@ -0,0 +1,80 @@
+import java.io.*;
+import java.nio.*;
+
+/**
+ * The Huffman code as an EntropyCoder: a TYPE_HUFFMAN code length table and
+ * a single bitstream. HuffmanCodec writes its own TYPE_HUFFMAN frames, which
+ * may also be interleaved or share a table, and uses this view to size the
+ * code against other coders.
+ */
+class HuffmanCoder implements EntropyCoder {
+    final HuffmanCode code;
+    private final HuffmanDecoder decoder = new HuffmanDecoder();
+    private final BitWriter bits = new BitWriter();
+
+    HuffmanCoder() {
+        this(new HuffmanCode());
+    }
+
+    /** A coder that builds into, and codes with, the given code. */
+    HuffmanCoder(HuffmanCode code) {
+        this.code = code;
+    }
+
+    @Override
+    public int blockType() {
+        return HuffmanCodec.TYPE_HUFFMAN;
+    }
+
+    @Override
+    public void build(long[] counts) {
+        code.build(counts);
+        decoder.init(code);
+    }
+
+    @Override
+    public int tableSize() {
+        return code.tableSize();
+    }
+
+    @Override
+    public long streamBits(long[] counts) {
+        return code.codedBits(counts);
+    }
+
+    @Override
+    public void writeTable(ByteBuffer out) {
+        code.writeLengths(out);
+    }
+
+    @Override
+    public void readTable(ByteBuffer in) throws IOException {
+        if (in.remaining() < 2) throw new EOFException("Truncated code length table.");
+        code.readLengths(in);
+        decoder.init(code);
+    }
+
+    /** dst must be big-endian. */
+    @Override
+    public void encode(byte[] src, int off, int length, ByteBuffer dst) {
+        bits.reset(dst);
+        Simd.Kernels simd = Simd.encoder(length);
+        if (simd != null) {
+            simd.encode(src, off, off + length, code, bits);
+            bits.flush();
+            return;
+        }
+        int[] codes = code.code;
+        byte[] len = code.len;
+        for (int i = off; i < off + length; i++) {
+            int ch = src[i] & 0xFF;
+            bits.write(codes[ch], len[ch]);
+        }
+        bits.flush();
+    }
+
+    @Override
+    public void decode(byte[] src, int off, int end, byte[] dst, int dstOff, int count) throws IOException {
+        decoder.decode(src, off, end, dst, dstOff, count);
+    }
+}
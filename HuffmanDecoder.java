@@ -0,0 +1,317 @@
+import java.io.*;
+import java.lang.invoke.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Table-driven Huffman decoder. Instead of following left/right one bit at a
+ * time, the next TABLE_BITS bits of the stream index a table that holds the
+ * decoded symbol and its code length. Codes longer than TABLE_BITS land on an
+ * escape entry and are finished with a canonical decode over the peeked bits.
+ */
+class HuffmanDecoder {
+    static final int TABLE_BITS = 11;
+    static final int STREAMS = 4;
+    static final int STREAM_HEADER_SIZE = 4 * (STREAMS - 1);
+
+    private static final VarHandle INT_BE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG_BE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    // Entries are (symbol << 8) | length; length 0 marks a long-code escape.
+    private final int[] table = new int[1 << TABLE_BITS];
+
+    // Canonical decode state for codes longer than TABLE_BITS.
+    private final int[] lengthCount = new int[HuffmanCode.MAX_CODE_LENGTH + 1];
+    private int[] sorted = new int[HuffmanCode.SYMBOLS];
+    private final int[] firstIndex = new int[HuffmanCode.MAX_CODE_LENGTH + 1];
+
+    HuffmanDecoder() {
+    }
+
+    HuffmanDecoder(HuffmanCode hc) {
+        init(hc);
+    }
+
+    /** Rebuilds the tables for a new code, reusing the existing arrays. */
+    void init(HuffmanCode hc) {
+        int symbols = hc.len.length;
+        if (sorted.length < symbols) sorted = new int[symbols];
+        Arrays.fill(table, 0);
+        Arrays.fill(lengthCount, 0);
+        for (int s = 0; s < symbols; s++) {
+            lengthCount[hc.len[s]]++;
+        }
+        lengthCount[0] = 0;
+        // Counting sort into canonical order: by length, then by symbol.
+        int n = 0;
+        for (int length = 1; length <= HuffmanCode.MAX_CODE_LENGTH; length++) {
+            firstIndex[length] = n;
+            n += lengthCount[length];
+        }
+        for (int s = 0; s < symbols; s++) {
+            if (hc.len[s] != 0) sorted[firstIndex[hc.len[s]]++] = s;
+        }
+        for (int s = 0; s < symbols; s++) {
+            int length = hc.len[s];
+            if (length == 0 || length > TABLE_BITS) continue;
+            int shift = TABLE_BITS - length;
+            int start = hc.code[s] << shift;
+            int end = start + (1 << shift);
+            for (int i = start; i < end; i++) {
+                table[i] = (s << 8) | length;
+            }
+        }
+    }
+
+    /**
+     * Canonical decode of the top bits of {@code bits}, returning
+     * (symbol << 8) | length, or -1 if no code matches.
+     */
+    private int decodeLong(long bits) {
+        int c = 0;
+        int first = 0;
+        int index = 0;
+        for (int length = 1; length <= HuffmanCode.MAX_CODE_LENGTH; length++) {
+            c |= (int) (bits >>> (64 - length)) & 1;
+            int count = lengthCount[length];
+            if (c - first < count) {
+                return (sorted[index + c - first] << 8) | length;
+            }
+            index += count;
+            first += count;
+            first <<= 1;
+            c <<= 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes exactly {@code count} symbols from src[off, end) into dst
+     * starting at dstOff. The padding bits after the last code are never
+     * interpreted, but a stream with more than a byte left over is rejected.
+     */
+    void decode(byte[] src, int off, int end, byte[] dst, int dstOff, int count) throws IOException {
+        decodeTail(src, off, end, 0, 0, dst, dstOff, dstOff + count);
+    }
+
+    /**
+     * Decodes dst[o, limit) from src[pos, end), starting with bitCount bits
+     * already in bitBuf.
+     */
+    private void decodeTail(byte[] src, int pos, int end, long bitBuf, int bitCount, byte[] dst, int o, int limit)
+            throws IOException {
+        for (; o < limit; o++) {
+            if (bitCount < 32) {
+                while (bitCount <= 56 && pos < end) {
+                    bitBuf |= (long) (src[pos++] & 0xFF) << (56 - bitCount);
+                    bitCount += 8;
+                }
+            }
+            int entry = table[(int) (bitBuf >>> (64 - TABLE_BITS))];
+            if ((entry & 0xFF) == 0) {
+                entry = decodeLong(bitBuf);
+                if (entry < 0) throw new IOException("Invalid Huffman code in stream.");
+            }
+            int length = entry & 0xFF;
+            if (length > bitCount) throw new EOFException("Unexpected end of block while decoding.");
+            bitBuf <<= length;
+            bitCount -= length;
+            dst[o] = (byte) (entry >>> 8);
+        }
+        checkEnd(pos, end, bitCount);
+    }
+
+    /** Fails unless no more than the last byte's padding follows the last code. */
+    private static void checkEnd(int pos, int end, int bitCount) throws IOException {
+        if ((long) (end - pos) * 8 + bitCount >= 8) throw new IOException("Trailing bytes after bitstream.");
+    }
+
+    /**
+     * Decodes a token code (see Tokenizer) from src[off, end) until
+     * dst[dstOff, dstOff + raw) is full. Symbols below 256 are bytes; symbol
+     * 256 + t expands to token t, tokenBytes[tokenStart[t], tokenStart[t + 1]).
+     */
+    void decodeTokens(byte[] src, int off, int end, byte[] dst, int dstOff, int raw,
+            byte[] tokenBytes, int[] tokenStart, int tokenCount) throws IOException {
+        int pos = off;
+        long bitBuf = 0;
+        int bitCount = 0;
+        int o = dstOff;
+        int limit = dstOff + raw;
+        while (o < limit) {
+            if (bitCount < 32) {
+                while (bitCount <= 56 && pos < end) {
+                    bitBuf |= (long) (src[pos++] & 0xFF) << (56 - bitCount);
+                    bitCount += 8;
+                }
+            }
+            int entry = table[(int) (bitBuf >>> (64 - TABLE_BITS))];
+            if ((entry & 0xFF) == 0) {
+                entry = decodeLong(bitBuf);
+                if (entry < 0) throw new IOException("Invalid Huffman code in stream.");
+            }
+            int length = entry & 0xFF;
+            if (length > bitCount) throw new EOFException("Unexpected end of block while decoding.");
+            bitBuf <<= length;
+            bitCount -= length;
+            int symbol = entry >>> 8;
+            if (symbol < HuffmanCode.SYMBOLS) {
+                dst[o++] = (byte) symbol;
+                continue;
+            }
+            int t = symbol - HuffmanCode.SYMBOLS;
+            if (t >= tokenCount) throw new IOException("Unknown token in stream.");
+            int from = tokenStart[t];
+            int n = tokenStart[t + 1] - from;
+            if (n > limit - o) throw new IOException("Token runs past the end of the block.");
+            System.arraycopy(tokenBytes, from, dst, o, n);
+            o += n;
+        }
+        checkEnd(pos, end, bitCount);
+    }
+
+    /**
+     * Decodes {@code count} symbols from the interleaved layout in src[off, end):
+     * the byte sizes of the first three bitstreams (int each), then four
+     * bitstreams holding consecutive quarters of the output (the last one
+     * possibly shorter). The main loop advances all four streams, three
+     * symbols each per refill, so their table lookups do not wait on each
+     * other; each stream then finishes on its own.
+     */
+    void decode4(byte[] src, int off, int end, byte[] dst, int dstOff, int count) throws IOException {
+        if (end - off < STREAM_HEADER_SIZE) throw new EOFException("Unexpected end of block while decoding.");
+        int p0 = off + STREAM_HEADER_SIZE;
+        int p1 = p0 + (int) INT_BE.get(src, off);
+        int p2 = p1 + (int) INT_BE.get(src, off + 4);
+        int p3 = p2 + (int) INT_BE.get(src, off + 8);
+        if (p1 < p0 || p2 < p1 || p3 < p2 || p3 > end) throw new IOException("Corrupt bitstream sizes.");
+        int e0 = p1, e1 = p2, e2 = p3, e3 = end;
+
+        int quarter = (count + 3) / 4;
+        int limit = dstOff + count;
+        int o0 = dstOff;
+        int o1 = Math.min(o0 + quarter, limit);
+        int o2 = Math.min(o1 + quarter, limit);
+        int o3 = Math.min(o2 + quarter, limit);
+        int l0 = o1, l1 = o2, l2 = o3, l3 = limit;
+
+        long b0 = 0, b1 = 0, b2 = 0, b3 = 0;
+        int c0 = 0, c1 = 0, c2 = 0, c3 = 0;
+        int[] t = table;
+        int shift = 64 - TABLE_BITS;
+        while (true) {
+            // Each round reads 8 bytes and advances at most 7 per stream, and
+            // writes 3 symbols per stream; run as many as stay in bounds.
+            int rounds = Math.min(Math.min(rounds(p0, e0, o0, l0), rounds(p1, e1, o1, l1)),
+                Math.min(rounds(p2, e2, o2, l2), rounds(p3, e3, o3, l3)));
+            if (rounds == 0) break;
+            for (; rounds > 0; rounds--) {
+                // Branchless refill to at least 56 bits, enough for three codes.
+                b0 |= (long) LONG_BE.get(src, p0) >>> c0; p0 += (63 - c0) >>> 3; c0 |= 56;
+                b1 |= (long) LONG_BE.get(src, p1) >>> c1; p1 += (63 - c1) >>> 3; c1 |= 56;
+                b2 |= (long) LONG_BE.get(src, p2) >>> c2; p2 += (63 - c2) >>> 3; c2 |= 56;
+                b3 |= (long) LONG_BE.get(src, p3) >>> c3; p3 += (63 - c3) >>> 3; c3 |= 56;
+
+                for (int k = 0; k < 3; k++) {
+                    int x0 = t[(int) (b0 >>> shift)];
+                    int x1 = t[(int) (b1 >>> shift)];
+                    int x2 = t[(int) (b2 >>> shift)];
+                    int x3 = t[(int) (b3 >>> shift)];
+                    if ((x0 & 0xFF) == 0) x0 = checked(decodeLong(b0));
+                    if ((x1 & 0xFF) == 0) x1 = checked(decodeLong(b1));
+                    if ((x2 & 0xFF) == 0) x2 = checked(decodeLong(b2));
+                    if ((x3 & 0xFF) == 0) x3 = checked(decodeLong(b3));
+                    b0 <<= x0 & 0xFF; c0 -= x0 & 0xFF; dst[o0++] = (byte) (x0 >>> 8);
+                    b1 <<= x1 & 0xFF; c1 -= x1 & 0xFF; dst[o1++] = (byte) (x1 >>> 8);
+                    b2 <<= x2 & 0xFF; c2 -= x2 & 0xFF; dst[o2++] = (byte) (x2 >>> 8);
+                    b3 <<= x3 & 0xFF; c3 -= x3 & 0xFF; dst[o3++] = (byte) (x3 >>> 8);
+                }
+            }
+        }
+        decodeTail(src, p0, e0, b0, c0, dst, o0, l0);
+        decodeTail(src, p1, e1, b1, c1, dst, o1, l1);
+        decodeTail(src, p2, e2, b2, c2, dst, o2, l2);
+        decodeTail(src, p3, e3, b3, c3, dst, o3, l3);
+    }
+
+    private static int rounds(int pos, int end, int o, int limit) {
+        if (end - pos < 8) return 0;
+        return Math.min((end - pos - 8) / 7 + 1, (limit - o) / 3);
+    }
+
+    private static int checked(int entry) throws IOException {
+        if (entry < 0) throw new IOException("Invalid Huffman code in stream.");
+        return entry;
+    }
+
+    /**
+     * Decodes {@code count} symbols from src into dst, advancing both. Heap
+     * buffers go through the array loop; direct buffers are read with
+     * absolute gets.
+     */
+    void decode(ByteBuffer src, ByteBuffer dst, int count) throws IOException {
+        if (dst.remaining() < count) throw new BufferOverflowException();
+        if (src.hasArray() && dst.hasArray()) {
+            int srcOff = src.arrayOffset() + src.position();
+            decode(src.array(), srcOff, srcOff + src.remaining(), dst.array(), dst.arrayOffset() + dst.position(), count);
+            src.position(src.limit());
+            dst.position(dst.position() + count);
+            return;
+        }
+
+        int pos = src.position();
+        int end = src.limit();
+        long bitBuf = 0;
+        int bitCount = 0;
+        for (int o = 0; o < count; o++) {
+            if (bitCount < 32) {
+                while (bitCount <= 56 && pos < end) {
+                    bitBuf |= (long) (src.get(pos++) & 0xFF) << (56 - bitCount);
+                    bitCount += 8;
+                }
+            }
+            int entry = table[(int) (bitBuf >>> (64 - TABLE_BITS))];
+            if ((entry & 0xFF) == 0) {
+                entry = decodeLong(bitBuf);
+                if (entry < 0) throw new IOException("Invalid Huffman code in stream.");
+            }
+            int length = entry & 0xFF;
+            if (length > bitCount) throw new EOFException("Unexpected end of block while decoding.");
+            bitBuf <<= length;
+            bitCount -= length;
+            dst.put((byte) (entry >>> 8));
+        }
+        checkEnd(pos, end, bitCount);
+        src.position(end);
+    }
+
+    /** ByteBuffer form of decode4(), advancing both buffers. */
+    void decode4(ByteBuffer src, ByteBuffer dst, int count) throws IOException {
+        if (dst.remaining() < count) throw new BufferOverflowException();
+        if (src.hasArray() && dst.hasArray()) {
+            int srcOff = src.arrayOffset() + src.position();
+            decode4(src.array(), srcOff, srcOff + src.remaining(), dst.array(), dst.arrayOffset() + dst.position(), count);
+            src.position(src.limit());
+            dst.position(dst.position() + count);
+            return;
+        }
+
+        // Direct buffers: decode the four streams one after another.
+        if (src.remaining() < STREAM_HEADER_SIZE) throw new EOFException("Unexpected end of block while decoding.");
+        ByteBuffer in = src.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int[] size = {in.getInt(), in.getInt(), in.getInt(), 0};
+        size[3] = in.remaining() - size[0] - size[1] - size[2];
+        int quarter = (count + 3) / 4;
+        int left = count;
+        for (int k = 0; k < STREAMS; k++) {
+            if (size[k] < 0 || size[k] > in.remaining()) throw new IOException("Corrupt bitstream sizes.");
+            ByteBuffer stream = in.slice();
+            stream.limit(size[k]);
+            in.position(in.position() + size[k]);
+            int n = Math.min(quarter, left);
+            decode(stream, dst, n);
+            left -= n;
+        }
+        src.position(src.limit());
+    }
+}
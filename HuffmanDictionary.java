@@ -0,0 +1,107 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+import java.util.zip.*;
+
+/**
+ * A Huffman code trained on a sample corpus and shared by many files. Blocks
+ * coded with a dictionary skip the frequency pass and store only the
+ * dictionary ID instead of a code length table, which is most of the cost of
+ * a small file.
+ *
+ * File layout: DICT_MAGIC (int), ID (int), then the code length table in
+ * the same form as a block header. The ID is the CRC32 of the length table,
+ * so retraining on the same data gives the same ID.
+ *
+ * Loaded dictionaries are cached for the life of the process, both by path
+ * and by ID; decoders find them by the ID recorded in each block.
+ */
+class HuffmanDictionary {
+    static final int DICT_MAGIC = 0x48554644; // "HUFD"
+
+    private static final Map<Integer, HuffmanDictionary> BY_ID = new ConcurrentHashMap<>();
+    private static final Map<Path, HuffmanDictionary> BY_PATH = new ConcurrentHashMap<>();
+
+    final int id;
+    final HuffmanCode code;
+    // Read-only once built, so every thread can decode with it.
+    final HuffmanDecoder decoder;
+
+    private HuffmanDictionary(int id, HuffmanCode code) {
+        this.id = id;
+        this.code = code;
+        this.decoder = new HuffmanDecoder(code);
+    }
+
+    /**
+     * Builds a dictionary from every regular file under the given paths. Each
+     * count is raised by one so bytes missing from the samples still get a code.
+     */
+    static HuffmanDictionary train(List<Path> samples, int threads) throws IOException {
+        Histogram total = new Histogram();
+        for (Path sample : samples) {
+            List<Path> files;
+            try (Stream<Path> walk = Files.walk(sample)) {
+                files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+            }
+            for (Path file : files) {
+                total.merge(Histogram.count(file, threads));
+            }
+        }
+        for (int s = 0; s < HuffmanCode.SYMBOLS; s++) {
+            total.counts[s]++;
+        }
+        HuffmanCode code = new HuffmanCode();
+        code.build(total.counts);
+        return new HuffmanDictionary(checksum(code), code);
+    }
+
+    private static int checksum(HuffmanCode code) {
+        ByteBuffer table = ByteBuffer.allocate(2 + HuffmanCode.SYMBOLS / 2);
+        code.writeLengths(table);
+        CRC32 crc = new CRC32();
+        crc.update(table.array(), 0, table.position());
+        return (int) crc.getValue();
+    }
+
+    void save(Path file) throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(8 + 2 + HuffmanCode.SYMBOLS / 2);
+        out.putInt(DICT_MAGIC);
+        out.putInt(id);
+        code.writeLengths(out);
+        Files.write(file, Arrays.copyOf(out.array(), out.position()));
+    }
+
+    /** Loads a dictionary file, or returns the copy already loaded from it. */
+    static HuffmanDictionary load(Path file) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        HuffmanDictionary cached = BY_PATH.get(key);
+        if (cached != null) return cached;
+
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (in.remaining() < 10 || in.getInt() != DICT_MAGIC) {
+            throw new IOException("Not a dictionary file: " + file);
+        }
+        int id = in.getInt();
+        HuffmanCode code = new HuffmanCode();
+        code.readLengths(in);
+        if (checksum(code) != id) {
+            throw new IOException("Corrupt dictionary file: " + file);
+        }
+        HuffmanDictionary dictionary = BY_ID.computeIfAbsent(id, k -> new HuffmanDictionary(k, code));
+        BY_PATH.put(key, dictionary);
+        return dictionary;
+    }
+
+    /** Returns a loaded dictionary by ID. */
+    static HuffmanDictionary forId(int id) throws IOException {
+        HuffmanDictionary dictionary = BY_ID.get(id);
+        if (dictionary == null) {
+            throw new IOException("Dictionary " + Integer.toHexString(id) + " is not loaded; pass it with --dict.");
+        }
+        return dictionary;
+    }
+}
@@ -0,0 +1,208 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * LZ77 front end. A hash-chain match finder turns a block into sequences of
+ * (literal run, match length, match offset), split into separate byte
+ * streams so each can be entropy coded with its own Huffman table:
+ *
+ *   literals  the literal bytes, in order
+ *   tokens    one byte per sequence: literal run (high nibble) and
+ *             match length - MIN_MATCH (low nibble), 15 meaning "more
+ *             in extras"
+ *   extras    overflow of the nibbles, as 255-runs terminated by a byte < 255
+ *   offsets   three planes (low, middle, high byte) of each match offset
+ *
+ * Bytes after the last match are stored as literals with no token; the
+ * decoder copies whatever the block size says is left.
+ */
+class Lz77 {
+    static final int MIN_MATCH = 4;
+    static final int MAX_WINDOW = 1 << 24;
+    static final int HASH_BITS = 16;
+    static final int MAX_CHAIN = 32;
+    static final int NICE_MATCH = 128;
+    static final int STREAMS = 6;
+
+    private final int window;
+    private final int[] head = new int[1 << HASH_BITS];
+    private final int[] chain;
+
+    // streams[0] literals, [1] tokens, [2] extras, [3..5] offset planes.
+    final byte[][] streams = new byte[STREAMS][0];
+    final int[] streamSize = new int[STREAMS];
+
+    Lz77(int window) {
+        this.window = roundWindow(window);
+        chain = new int[this.window];
+    }
+
+    /** Rounds a requested window up to a power of two between 1 KB and MAX_WINDOW. */
+    static int roundWindow(int window) {
+        int w = Integer.highestOneBit(Math.max(window, 1 << 10) - 1) << 1;
+        return Math.min(w, MAX_WINDOW);
+    }
+
+    int window() {
+        return window;
+    }
+
+    private void ensure(int length) {
+        for (int i = 0; i < STREAMS; i++) {
+            if (streams[i].length < length) streams[i] = new byte[length];
+        }
+    }
+
+    private static int hash(byte[] src, int i) {
+        int v = (src[i] & 0xFF) << 24 | (src[i + 1] & 0xFF) << 16 | (src[i + 2] & 0xFF) << 8 | (src[i + 3] & 0xFF);
+        return (v * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+
+    private void insert(byte[] src, int off, int i) {
+        int h = hash(src, off + i);
+        chain[i & (window - 1)] = head[h];
+        head[h] = i;
+    }
+
+    /** Parses src[off, off + len) into the sequence streams. */
+    void parse(byte[] src, int off, int len) {
+        ensure(len + 16);
+        Arrays.fill(streamSize, 0);
+        Arrays.fill(head, -1);
+        int mask = window - 1;
+
+        int anchor = 0;
+        int i = 0;
+        int last = len - MIN_MATCH;
+        while (i <= last) {
+            int h = hash(src, off + i);
+            int candidate = head[h];
+            chain[i & mask] = candidate;
+            head[h] = i;
+
+            int bestLength = 0;
+            int bestOffset = 0;
+            int depth = MAX_CHAIN;
+            while (candidate >= 0 && i - candidate < window && depth-- > 0) {
+                if (src[off + candidate + bestLength] == src[off + i + bestLength]) {
+                    int length = 0;
+                    int max = len - i;
+                    while (length < max && src[off + candidate + length] == src[off + i + length]) length++;
+                    if (length > bestLength) {
+                        bestLength = length;
+                        bestOffset = i - candidate;
+                        if (length >= NICE_MATCH || length == max) break;
+                    }
+                }
+                candidate = chain[candidate & mask];
+            }
+
+            if (bestLength < MIN_MATCH) {
+                i++;
+                continue;
+            }
+
+            emit(src, off + anchor, i - anchor, bestLength, bestOffset);
+            int end = i + bestLength;
+            for (int j = i + 1; j < end && j <= last; j++) {
+                insert(src, off, j);
+            }
+            i = end;
+            anchor = end;
+        }
+
+        System.arraycopy(src, off + anchor, streams[0], streamSize[0], len - anchor);
+        streamSize[0] += len - anchor;
+    }
+
+    private void emit(byte[] src, int literalStart, int literalLength, int matchLength, int offset) {
+        System.arraycopy(src, literalStart, streams[0], streamSize[0], literalLength);
+        streamSize[0] += literalLength;
+
+        int l = Math.min(literalLength, 15);
+        int m = Math.min(matchLength - MIN_MATCH, 15);
+        streams[1][streamSize[1]++] = (byte) ((l << 4) | m);
+        if (l == 15) putExtra(literalLength - 15);
+        if (m == 15) putExtra(matchLength - MIN_MATCH - 15);
+
+        int s = streamSize[3]++;
+        streams[3][s] = (byte) offset;
+        streams[4][s] = (byte) (offset >>> 8);
+        streams[5][s] = (byte) (offset >>> 16);
+        streamSize[4]++;
+        streamSize[5]++;
+    }
+
+    private void putExtra(int v) {
+        if (streamSize[2] + v / 255 + 1 > streams[2].length) {
+            streams[2] = Arrays.copyOf(streams[2], Math.max(streams[2].length * 2, streamSize[2] + v / 255 + 1));
+        }
+        while (v >= 255) {
+            streams[2][streamSize[2]++] = (byte) 255;
+            v -= 255;
+        }
+        streams[2][streamSize[2]++] = (byte) v;
+    }
+
+    /**
+     * Replays decoded sequence streams into dst[dstOff, dstOff + raw).
+     * Every length and offset is bounds-checked against the block.
+     */
+    static void execute(byte[][] streams, int[] streamSize, byte[] dst, int dstOff, int raw) throws IOException {
+        byte[] literals = streams[0];
+        byte[] tokens = streams[1];
+        byte[] extras = streams[2];
+        int lit = 0;
+        int extra = 0;
+        int op = dstOff;
+        int end = dstOff + raw;
+
+        for (int s = 0; s < streamSize[1]; s++) {
+            int token = tokens[s] & 0xFF;
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int b;
+                do {
+                    if (extra >= streamSize[2]) throw new IOException("Corrupt LZ77 block.");
+                    b = extras[extra++] & 0xFF;
+                    literalLength += b;
+                } while (b == 255);
+            }
+            int matchLength = token & 15;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (extra >= streamSize[2]) throw new IOException("Corrupt LZ77 block.");
+                    b = extras[extra++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            int offset = (streams[3][s] & 0xFF) | (streams[4][s] & 0xFF) << 8 | (streams[5][s] & 0xFF) << 16;
+
+            if (literalLength > streamSize[0] - lit || literalLength > end - op) {
+                throw new IOException("Corrupt LZ77 block.");
+            }
+            System.arraycopy(literals, lit, dst, op, literalLength);
+            lit += literalLength;
+            op += literalLength;
+
+            if (offset == 0 || offset > op - dstOff || matchLength > end - op) {
+                throw new IOException("Corrupt LZ77 block.");
+            }
+            int from = op - offset;
+            if (offset >= matchLength) {
+                System.arraycopy(dst, from, dst, op, matchLength);
+                op += matchLength;
+            } else {
+                for (int k = 0; k < matchLength; k++) {
+                    dst[op++] = dst[from++];
+                }
+            }
+        }
+
+        int rest = end - op;
+        if (rest != streamSize[0] - lit) throw new IOException("Corrupt LZ77 block.");
+        System.arraycopy(literals, lit, dst, op, rest);
+    }
+}
@@ -0,0 +1,74 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * Reads a file through memory-mapped windows instead of read() syscalls.
+ * Files larger than a single mapping are walked one WINDOW at a time, so
+ * inputs over 2 GB work as well.
+ */
+class MappedInputStream extends InputStream {
+    static final long WINDOW = 1L << 30;
+
+    private final FileChannel channel;
+    private final long size;
+    private long windowStart = 0;
+    private MappedByteBuffer window;
+
+    MappedInputStream(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        size = channel.size();
+        window = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(WINDOW, size));
+    }
+
+    long size() {
+        return size;
+    }
+
+    private boolean nextWindow() throws IOException {
+        long next = windowStart + window.capacity();
+        if (next >= size) return false;
+        windowStart = next;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, next, Math.min(WINDOW, size - next));
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!window.hasRemaining() && !nextWindow()) return -1;
+        return window.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!window.hasRemaining() && !nextWindow()) return -1;
+        int n = Math.min(len, window.remaining());
+        window.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            if (!window.hasRemaining() && !nextWindow()) break;
+            int step = (int) Math.min(n - skipped, window.remaining());
+            window.position(window.position() + step);
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        long left = size - windowStart - window.position();
+        return (int) Math.min(left, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
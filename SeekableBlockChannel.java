@@ -0,0 +1,125 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Read-only random access to the uncompressed bytes of a compressed file.
+ * The block index maps a position to the block holding it, so a read
+ * decodes only the blocks it covers, whatever the size of the file.
+ *
+ * Decoded blocks are kept in an LRU cache of at most cacheSize bytes, so
+ * repeated and nearby reads (a scan line by line, say) are served from
+ * memory. The cache always holds at least the most recent block.
+ */
+class SeekableBlockChannel implements SeekableByteChannel {
+    static final long DEFAULT_CACHE_SIZE = 16L << 20;
+
+    private final FileChannel channel;
+    private final BlockIndex index;
+    private final long cacheSize;
+    private final LinkedHashMap<Integer, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cached;
+    private long position;
+
+    SeekableBlockChannel(Path path) throws IOException {
+        this(path, DEFAULT_CACHE_SIZE);
+    }
+
+    SeekableBlockChannel(Path path, long cacheSize) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            index = BlockDecompressor.readIndex(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.cacheSize = cacheSize;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        if (!channel.isOpen()) throw new ClosedChannelException();
+        if (position >= index.totalRawSize) return -1;
+        int start = dst.position();
+        while (dst.hasRemaining() && position < index.totalRawSize) {
+            int b = blockAt(position);
+            byte[] block = block(b);
+            int off = (int) (position - index.rawOffset[b]);
+            int n = Math.min(dst.remaining(), block.length - off);
+            dst.put(block, off, n);
+            position += n;
+        }
+        return dst.position() - start;
+    }
+
+    /** The block holding uncompressed offset {@code pos}, which is below totalRawSize. */
+    private int blockAt(long pos) {
+        int b = Arrays.binarySearch(index.rawOffset, 0, index.count, pos);
+        return b < 0 ? -b - 2 : b;
+    }
+
+    /** Block b decoded, from the cache if it is there. */
+    private byte[] block(int b) throws IOException {
+        byte[] block = cache.get(b);
+        if (block != null) return block;
+        int raw = index.rawSize[b];
+        // Evict down to room for the new block, keeping the last array evicted if it fits.
+        byte[] spare = null;
+        while (!cache.isEmpty() && cached + raw > cacheSize) {
+            Iterator<byte[]> eldest = cache.values().iterator();
+            spare = eldest.next();
+            eldest.remove();
+            cached -= spare.length;
+        }
+        block = spare != null && spare.length == raw ? spare : new byte[raw];
+        BlockDecompressor.decodeBlockAt(channel, ByteBuffer.wrap(block), index, b);
+        cache.put(b, block);
+        cached += raw;
+        return block;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        if (!channel.isOpen()) throw new ClosedChannelException();
+        return position;
+    }
+
+    /** Positions past the end are allowed; reads there return -1. */
+    @Override
+    public synchronized SeekableBlockChannel position(long newPosition) throws IOException {
+        if (newPosition < 0) throw new IllegalArgumentException("Negative position.");
+        if (!channel.isOpen()) throw new ClosedChannelException();
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        if (!channel.isOpen()) throw new ClosedChannelException();
+        return index.totalRawSize;
+    }
+
+    @Override
+    public SeekableBlockChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+        cache.clear();
+        cached = 0;
+    }
+}
@@ -0,0 +1,101 @@
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Runtime switch for the SIMD versions of the hot loops: packing Huffman
+ * codes and summing code lengths over counts to size a frame. They live in simd/VectorKernels.java and use the incubating Vector
+ * API, so they are compiled and run only on request:
+ *
+ *   javac -d out *.java
+ *   javac --add-modules jdk.incubator.vector -cp out -d out simd/*.java
+ *   java --add-modules jdk.incubator.vector -cp out Compress in out
+ *
+ * KERNELS is null, and every caller takes its scalar loop, unless the
+ * kernels class and the module are both there, the CPU has vectors of at
+ * least MIN_VECTOR_BITS, and the kernels give the same results as the
+ * scalar loops, bit for bit, on a set of sample blocks when first loaded.
+ * The output never depends on which path ran.
+ *
+ * Benchmark runs encode() next to its scalar loop. It packs whole words
+ * locally instead of calling BitWriter.write() per code, which pays on
+ * every corpus once a stream is MIN_ENCODE_LENGTH bytes or more; on short
+ * ones, setting up its code table costs about what it saves, so encoder()
+ * keeps those on the scalar loop. Byte counting has no kernel: Histogram's
+ * scalar loop counted as fast as a vector one.
+ */
+final class Simd {
+    static final int MIN_VECTOR_BITS = 256;
+    static final int MIN_ENCODE_LENGTH = 1 << 16;
+
+    /** What the SIMD versions do; each matches the scalar loop it replaces exactly. */
+    interface Kernels {
+        /** Width of the vectors the kernels run on. */
+        int vectorBits();
+
+        /** Writes the code of each byte of src[from, to) to bits, as BitWriter.write() would one by one. */
+        void encode(byte[] src, int from, int to, HuffmanCode code, BitWriter bits);
+
+        /** Sum of counts[s] * len[s] over the first {@code symbols} symbols. */
+        long codeBits(long[] counts, byte[] len, int symbols);
+    }
+
+    static final Kernels KERNELS = load();
+
+    private Simd() {
+    }
+
+    /** The kernels to encode a stream of {@code length} bytes with, or null for the scalar loop. */
+    static Kernels encoder(int length) {
+        return length >= MIN_ENCODE_LENGTH ? KERNELS : null;
+    }
+
+    private static Kernels load() {
+        Kernels kernels;
+        try {
+            kernels = (Kernels) Class.forName("VectorKernels").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // Not compiled in, or the JVM was started without the module.
+            return null;
+        }
+        try {
+            return kernels.vectorBits() >= MIN_VECTOR_BITS && matchesScalar(kernels) ? kernels : null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** Runs the kernels and the scalar loops on the same sample blocks and compares the results. */
+    private static boolean matchesScalar(Kernels kernels) {
+        Random rnd = new Random(0x51D);
+        for (int sample = 0; sample < 12; sample++) {
+            int length = sample < 4 ? sample * 7 : 64 + rnd.nextInt(512);
+            byte[] data = new byte[length];
+            for (int i = 0; i < length; i++) {
+                // Uniform, skewed and single-valued blocks in turn.
+                int kind = sample % 3;
+                data[i] = (byte) (kind == 0 ? rnd.nextInt(256) : kind == 1 ? Integer.numberOfTrailingZeros(rnd.nextInt()) : 'a');
+            }
+            int off = sample % 5;
+            int len = Math.max(0, length - off - sample % 3);
+
+            long[] counts = new long[HuffmanCode.SYMBOLS];
+            for (int i = off; i < off + len; i++) counts[data[i] & 0xFF]++;
+            HuffmanCode code = new HuffmanCode();
+            code.build(counts);
+            long bits = 0;
+            for (int s = 0; s < HuffmanCode.SYMBOLS; s++) bits += counts[s] * code.len[s];
+            if (kernels.codeBits(counts, code.len, HuffmanCode.SYMBOLS) != bits) return false;
+
+            ByteBuffer scalar = ByteBuffer.allocate(HuffmanCodec.maxCompressedLength(len));
+            BitWriter writer = new BitWriter(scalar);
+            for (int i = off; i < off + len; i++) writer.write(code.code[data[i] & 0xFF], code.len[data[i] & 0xFF]);
+            writer.flush();
+            ByteBuffer vector = ByteBuffer.allocate(scalar.capacity());
+            writer.reset(vector);
+            kernels.encode(data, off, off + len, code, writer);
+            writer.flush();
+            if (!scalar.flip().equals(vector.flip())) return false;
+        }
+        return true;
+    }
+}
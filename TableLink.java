@@ -0,0 +1,77 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Connects consecutive blocks of one stream so a block can reuse the code
+ * table of the block before it. A block waits for its predecessor's choice
+ * only after counting its own bytes, and publishes its own choice before
+ * writing any bits, so blocks still encode in parallel. Every choice depends
+ * only on the data, so the output is the same for any number of threads.
+ * Tables a block has turned down go back to a free list shared by the
+ * stream's links, so a long stream allocates only as many tables as it has
+ * blocks in flight.
+ */
+class TableLink {
+    /** A code and the block whose frame stores it. */
+    static final class Table {
+        final HuffmanCode code = new HuffmanCode();
+        int block;
+    }
+
+    final int block;
+    private CompletableFuture<Table> previous;
+    private final CompletableFuture<Table> chosen = new CompletableFuture<>();
+    private final ArrayDeque<Table> free;
+
+    private TableLink(int block, CompletableFuture<Table> previous, ArrayDeque<Table> free) {
+        this.block = block;
+        this.previous = previous;
+        this.free = free;
+    }
+
+    /** Link for the first block of a stream. */
+    static TableLink first() {
+        return new TableLink(0, CompletableFuture.completedFuture(null), new ArrayDeque<>());
+    }
+
+    /** Link for the block after this one. */
+    TableLink next() {
+        return new TableLink(block + 1, chosen, free);
+    }
+
+    /** A table for this block holding a copy of {@code code}, reused from the free list if it has one. */
+    Table table(HuffmanCode code) {
+        Table table;
+        synchronized (free) {
+            table = free.poll();
+        }
+        if (table == null) table = new Table();
+        table.code.copyFrom(code);
+        table.block = block;
+        return table;
+    }
+
+    /**
+     * Hands back the previous block's table once this block has turned it
+     * down. Later blocks only see what this block publishes, and the blocks
+     * before it no longer read a table after publishing it, so nothing else
+     * can still hold it.
+     */
+    void release(Table table) {
+        synchronized (free) {
+            free.push(table);
+        }
+    }
+
+    /** Waits for the previous block's table, or null if it has none to share. */
+    Table awaitPrevious() {
+        Table table = previous.join();
+        previous = null;
+        return table;
+    }
+
+    /** Publishes this block's table; only the first call counts. */
+    void publish(Table table) {
+        chosen.complete(table);
+    }
+}
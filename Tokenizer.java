@@ -0,0 +1,226 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Word tokens for TYPE_TOKENS blocks. A candidate is a run of word bytes
+ * (ASCII letters, digits and '_', plus any byte >= 0x80 so UTF-8 words stay
+ * whole) together with the space in front of it, if any, and between
+ * MIN_TOKEN_LENGTH and MAX_TOKEN_LENGTH bytes long. The candidates that
+ * save the most become symbols 256 and up next to the 256 byte values, so
+ * one code, and one decoder table lookup, stands for a whole word. Every
+ * other byte is coded as itself.
+ *
+ * Token table layout: token count (short), each token's length (byte), then
+ * the tokens' bytes one after another.
+ *
+ * Instances keep their hash table and buffers between blocks; they are not
+ * thread-safe.
+ */
+class Tokenizer {
+    static final int MIN_TOKEN_LENGTH = 2;
+    static final int MAX_TOKEN_LENGTH = 32;
+    static final int MAX_TOKENS = HuffmanCode.MAX_SYMBOLS - HuffmanCode.SYMBOLS;
+
+    private static final int HASH_BITS = 18;
+    private static final int MAX_DISTINCT = (1 << HASH_BITS) / 4 * 3;
+
+    private static final boolean[] WORD = new boolean[256];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            WORD[b] = b >= 0x80 || b == '_' || (b >= '0' && b <= '9') || (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z');
+        }
+    }
+
+    // Open-addressing table of the distinct candidates in the block; a slot
+    // is empty while its length is 0. Only the encoder needs it, so it is
+    // allocated on the first build().
+    private int[] slotStart;
+    private byte[] slotLength;
+    private int[] slotCount;
+    private int[] slotToken;
+    private int[] used;
+    private int usedCount;
+    private long[] ranked = new long[0];
+
+    // The chosen tokens, as written in the token table.
+    int tokenCount;
+    byte[] tokenBytes = new byte[0];
+    int[] tokenStart = new int[1];
+
+    // The block as symbols, and how often each symbol occurs.
+    char[] symbols = new char[0];
+    int symbolCount;
+    final long[] freq = new long[HuffmanCode.MAX_SYMBOLS];
+
+    /**
+     * Counts the candidates in src[off, off + length) and chooses the
+     * tokens. Returns false if no candidate is worth a token.
+     */
+    boolean build(byte[] src, int off, int length) {
+        clear();
+        int end = off + length;
+        int i = off;
+        while (i < end) {
+            int start = i;
+            int j = i;
+            if (src[j] == ' ' && j + 1 < end && WORD[src[j + 1] & 0xFF]) j++;
+            if (!WORD[src[j] & 0xFF]) {
+                i++;
+                continue;
+            }
+            while (j < end && WORD[src[j] & 0xFF]) j++;
+            int n = j - start;
+            if (n >= MIN_TOKEN_LENGTH && n <= MAX_TOKEN_LENGTH) {
+                int slot = find(src, start, n, true);
+                if (slot >= 0) slotCount[slot]++;
+            }
+            i = j;
+        }
+        choose(src);
+        return tokenCount > 0;
+    }
+
+    /**
+     * Estimated bits saved by a token, taking a literal byte as 4.5 bits, a
+     * token code as 12 bits, and the token's entry in the tables.
+     */
+    private static long gain(int count, int length) {
+        return (long) count * (9 * length - 24) / 2 - 8 * length - 12;
+    }
+
+    private void choose(byte[] src) {
+        if (ranked.length < usedCount) ranked = new long[usedCount];
+        int n = 0;
+        for (int k = 0; k < usedCount; k++) {
+            int slot = used[k];
+            long gain = gain(slotCount[slot], slotLength[slot]);
+            if (gain > 0) ranked[n++] = gain << HASH_BITS | slot;
+        }
+        Arrays.sort(ranked, 0, n);
+
+        tokenCount = Math.min(n, MAX_TOKENS);
+        if (tokenStart.length < tokenCount + 1) tokenStart = new int[tokenCount + 1];
+        if (tokenBytes.length < tokenCount * MAX_TOKEN_LENGTH) tokenBytes = new byte[tokenCount * MAX_TOKEN_LENGTH];
+        int p = 0;
+        for (int t = 0; t < tokenCount; t++) {
+            int slot = (int) (ranked[n - 1 - t] & ((1 << HASH_BITS) - 1));
+            slotToken[slot] = HuffmanCode.SYMBOLS + t;
+            tokenStart[t] = p;
+            System.arraycopy(src, slotStart[slot], tokenBytes, p, slotLength[slot]);
+            p += slotLength[slot];
+        }
+        tokenStart[tokenCount] = p;
+    }
+
+    /**
+     * Turns src[off, off + length), the same bytes build() saw, into symbols
+     * and counts them in freq.
+     */
+    void parse(byte[] src, int off, int length) {
+        Arrays.fill(freq, 0);
+        if (symbols.length < length) symbols = new char[length];
+        char[] out = symbols;
+        int o = 0;
+        int end = off + length;
+        int i = off;
+        while (i < end) {
+            int start = i;
+            int j = i;
+            if (src[j] == ' ' && j + 1 < end && WORD[src[j + 1] & 0xFF]) j++;
+            if (!WORD[src[j] & 0xFF]) {
+                out[o++] = (char) (src[i++] & 0xFF);
+                continue;
+            }
+            while (j < end && WORD[src[j] & 0xFF]) j++;
+            int n = j - start;
+            int slot = n >= MIN_TOKEN_LENGTH && n <= MAX_TOKEN_LENGTH ? find(src, start, n, false) : -1;
+            if (slot >= 0 && slotToken[slot] != 0) {
+                out[o++] = (char) slotToken[slot];
+            } else {
+                for (int k = start; k < j; k++) out[o++] = (char) (src[k] & 0xFF);
+            }
+            i = j;
+        }
+        symbolCount = o;
+        for (int k = 0; k < o; k++) freq[out[k]]++;
+    }
+
+    /** Size in bytes of the table writeTokens() produces. */
+    int tableSize() {
+        return 2 + tokenCount + tokenStart[tokenCount];
+    }
+
+    void writeTokens(ByteBuffer out) {
+        out.putShort((short) tokenCount);
+        for (int t = 0; t < tokenCount; t++) {
+            out.put((byte) (tokenStart[t + 1] - tokenStart[t]));
+        }
+        out.put(tokenBytes, 0, tokenStart[tokenCount]);
+    }
+
+    void readTokens(ByteBuffer in) throws IOException {
+        if (in.remaining() < 2) throw new EOFException("Truncated token table.");
+        int count = in.getShort() & 0xFFFF;
+        if (count > MAX_TOKENS || in.remaining() < count) throw new IOException("Corrupt token table.");
+        if (tokenStart.length < count + 1) tokenStart = new int[count + 1];
+        int p = 0;
+        for (int t = 0; t < count; t++) {
+            int n = in.get() & 0xFF;
+            if (n < MIN_TOKEN_LENGTH || n > MAX_TOKEN_LENGTH) throw new IOException("Corrupt token table.");
+            tokenStart[t] = p;
+            p += n;
+        }
+        tokenStart[count] = p;
+        if (in.remaining() < p) throw new EOFException("Truncated token table.");
+        if (tokenBytes.length < p) tokenBytes = new byte[p];
+        in.get(tokenBytes, 0, p);
+        tokenCount = count;
+    }
+
+    /**
+     * Slot holding the candidate src[start, start + length), or -1. With
+     * {@code insert}, a new candidate gets an empty slot unless the table
+     * is full.
+     */
+    private int find(byte[] src, int start, int length, boolean insert) {
+        int h = length;
+        for (int k = start; k < start + length; k++) h = h * 31 + src[k];
+        int mask = (1 << HASH_BITS) - 1;
+        int slot = (h * 0x9E3779B1) >>> (32 - HASH_BITS);
+        while (true) {
+            int n = slotLength[slot];
+            if (n == 0) {
+                if (!insert || usedCount == MAX_DISTINCT) return -1;
+                slotStart[slot] = start;
+                slotLength[slot] = (byte) length;
+                used[usedCount++] = slot;
+                return slot;
+            }
+            if (n == length && Arrays.equals(src, start, start + length, src, slotStart[slot], slotStart[slot] + n)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void clear() {
+        if (slotStart == null) {
+            slotStart = new int[1 << HASH_BITS];
+            slotLength = new byte[1 << HASH_BITS];
+            slotCount = new int[1 << HASH_BITS];
+            slotToken = new int[1 << HASH_BITS];
+            used = new int[MAX_DISTINCT];
+        }
+        for (int k = 0; k < usedCount; k++) {
+            int slot = used[k];
+            slotLength[slot] = 0;
+            slotCount[slot] = 0;
+            slotToken[slot] = 0;
+        }
+        usedCount = 0;
+        tokenCount = 0;
+        tokenStart[0] = 0;
+    }
+}
@@ -0,0 +1,74 @@
+package codec.jmh;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Every codec stage that the repository's Benchmark class times, for each
+ * corpus and size, under JMH. The stages themselves come from
+ * Benchmark.stages(), so both harnesses always measure the same code on
+ * the same deterministic data.
+ *
+ * The codec is in the unnamed package, which a named package cannot
+ * import, and JMH does not accept benchmarks in the unnamed package. Each
+ * trial therefore looks its stage up once by reflection, as a Callable, and
+ * the measured method only calls it.
+ *
+ * The bytes counter is the stage's input rate in bytes per second, so
+ * bytes / 1e6 is MB/s. Run with {@code -prof gc}: gc.alloc.rate.norm is
+ * bytes allocated per op.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class StageBenchmark {
+    @Param({"histogram", "tree", "codes", "encode", "decode", "decode4", "block-copy", "block-direct",
+        "fse-table", "fse-encode", "fse-decode", "lz-compress", "lz-decompress", "chain"})
+    public String stage;
+
+    @Param({"uniform", "skewed", "text"})
+    public String corpus;
+
+    @Param({"4096", "1048576", "16777216"})
+    public int size;
+
+    private Callable<?> run;
+
+    /** Input bytes processed, reported as a rate. */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws ReflectiveOperationException {
+        Method stages = Class.forName("Benchmark").getDeclaredMethod("stage", String.class, String.class, int.class);
+        stages.setAccessible(true);
+        run = (Callable<?>) stages.invoke(null, stage, corpus, size);
+    }
+
+    @Benchmark
+    public Object run(Bytes bytes) throws Exception {
+        bytes.bytes += size;
+        return run.call();
+    }
+}
@@ -0,0 +1,123 @@
+import jdk.incubator.vector.*;
+
+/**
+ * Simd.Kernels on the incubating Vector API, at the CPU's preferred vector
+ * size. Build and run with --add-modules jdk.incubator.vector (see Simd);
+ * Simd loads this class by name, so nothing else depends on it.
+ *
+ * encode() looks codes up four bytes per lane, joins each lane's four codes
+ * into two with vector shifts, and packs them into whole 32-bit words in a
+ * local accumulator, which BitWriter.writeWords() stores in bulk. The codes
+ * themselves are looked up one by one: C2 on JDK 17 can crash or gather
+ * through stale indices when the index array was just written, so no
+ * kernel uses gathers or scatters. codeBits() is a multiply-add over long
+ * lanes.
+ */
+class VectorKernels implements Simd.Kernels {
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+    private static final int LANES = INTS.length();
+
+    /** Words packed before each bulk store; two codes per lane fill at most 2 * LANES per step. */
+    private static final int WORDS = 1024;
+
+    /** Per-thread work arrays; the kernels themselves are shared. */
+    private static final class Scratch {
+        final int[] codes = new int[HuffmanCode.SYMBOLS];
+        final int[] e0 = new int[LANES];
+        final int[] e1 = new int[LANES];
+        final int[] e2 = new int[LANES];
+        final int[] e3 = new int[LANES];
+        final int[] words = new int[WORDS];
+    }
+
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    @Override
+    public int vectorBits() {
+        return INTS.vectorBitSize();
+    }
+
+    @Override
+    public void encode(byte[] src, int from, int to, HuffmanCode code, BitWriter bits) {
+        Scratch s = scratch.get();
+        int[] codes = s.codes;
+        int[] e0 = s.e0, e1 = s.e1, e2 = s.e2, e3 = s.e3;
+        int[] words = s.words;
+        // Codes are at most 15 bits, so a code and its length share an int,
+        // and two joined codes plus a partial word fit in the 64-bit acc.
+        for (int b = 0; b < HuffmanCode.SYMBOLS; b++) codes[b] = code.code[b] << 8 | code.len[b];
+        long acc = 0;
+        int pending = 0;
+        int n = 0;
+        int i = from;
+        for (; i <= to - 4 * LANES; i += 4 * LANES) {
+            for (int k = 0, j = i; k < LANES; k++, j += 4) {
+                e0[k] = codes[src[j] & 0xFF];
+                e1[k] = codes[src[j + 1] & 0xFF];
+                e2[k] = codes[src[j + 2] & 0xFF];
+                e3[k] = codes[src[j + 3] & 0xFF];
+            }
+            IntVector c0 = IntVector.fromArray(INTS, e0, 0);
+            IntVector c1 = IntVector.fromArray(INTS, e1, 0);
+            IntVector c2 = IntVector.fromArray(INTS, e2, 0);
+            IntVector c3 = IntVector.fromArray(INTS, e3, 0);
+            IntVector l1 = c1.and(0xFF);
+            IntVector l3 = c3.and(0xFF);
+            // e0, e1: the first and second pair's joined code; e2, e3: their lengths.
+            c0.lanewise(VectorOperators.LSHR, 8).lanewise(VectorOperators.LSHL, l1)
+                .or(c1.lanewise(VectorOperators.LSHR, 8)).intoArray(e0, 0);
+            c2.lanewise(VectorOperators.LSHR, 8).lanewise(VectorOperators.LSHL, l3)
+                .or(c3.lanewise(VectorOperators.LSHR, 8)).intoArray(e1, 0);
+            c0.and(0xFF).add(l1).intoArray(e2, 0);
+            c2.and(0xFF).add(l3).intoArray(e3, 0);
+            if (n > WORDS - 2 * LANES) {
+                bits.writeWords(words, n);
+                n = 0;
+            }
+            for (int k = 0; k < LANES; k++) {
+                acc = acc << e2[k] | e0[k];
+                pending += e2[k];
+                if (pending >= 32) {
+                    pending -= 32;
+                    words[n++] = (int) (acc >>> pending);
+                }
+                acc = acc << e3[k] | e1[k];
+                pending += e3[k];
+                if (pending >= 32) {
+                    pending -= 32;
+                    words[n++] = (int) (acc >>> pending);
+                }
+            }
+        }
+        bits.writeWords(words, n);
+        for (; i < to; i++) {
+            int ch = src[i] & 0xFF;
+            acc = acc << code.len[ch] | code.code[ch];
+            pending += code.len[ch];
+            if (pending >= 32) {
+                pending -= 32;
+                bits.write((int) (acc >>> pending), 32);
+            }
+        }
+        if (pending > 0) bits.write((int) acc & (int) ((1L << pending) - 1), pending);
+    }
+
+    @Override
+    public long codeBits(long[] counts, byte[] len, int symbols) {
+        LongVector sum = LongVector.zero(LONGS);
+        int s = 0;
+        for (; s <= symbols - 8; s += 8) {
+            ByteVector lengths = ByteVector.fromArray(ByteVector.SPECIES_64, len, s);
+            for (int part = 0; part * LONGS.length() < 8; part++) {
+                LongVector l = (LongVector) lengths.convertShape(VectorOperators.B2L, LONGS, part);
+                sum = sum.add(LongVector.fromArray(LONGS, counts, s + part * LONGS.length()).mul(l));
+            }
+        }
+        long total = sum.reduceLanes(VectorOperators.ADD);
+        for (; s < symbols; s++) {
+            total += counts[s] * len[s];
+        }
+        return total;
+    }
+}
@@ -0,0 +1,58 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Batch decompression must not replace a file that already has the decoded
+ * name unless forced, and must report such a file as a failure. Also
+ * checks that a concurrency below 1 is refused. Run from the repository
+ * root:
+ *
+ *   javac -d out *.java
+ *   javac -cp out -d out test/*.java
+ *   java -cp out BatchRunnerTest
+ */
+public class BatchRunnerTest {
+    private static int failures;
+
+    public static void main(String[] args) throws IOException {
+        byte[] data = TestData.samples().get("text");
+        byte[] existing = "keep me\n".getBytes();
+        Path dir = Files.createTempDirectory("batch");
+        Path original = dir.resolve("sample.txt");
+        try {
+            Files.write(original, data);
+            if (!new BatchRunner(false, 2, null, CodecOptions.DEFAULT).run(dir)) fail("compress: reported a failure");
+            Files.write(original, existing);
+
+            if (new BatchRunner(true, 2, null, false).run(dir)) fail("decompress: overwrote without --force");
+            if (!Arrays.equals(existing, Files.readAllBytes(original))) fail("decompress: existing file changed");
+
+            if (!new BatchRunner(true, 2, null, true).run(dir)) fail("decompress --force: reported a failure");
+            if (!Arrays.equals(data, Files.readAllBytes(original))) fail("decompress --force: output differs");
+        } finally {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path file : files) Files.delete(file);
+            }
+            Files.delete(dir);
+        }
+        for (int concurrency : new int[] {0, -1}) {
+            try {
+                new BatchRunner(true, concurrency, null, false);
+                fail("concurrency " + concurrency + " was accepted");
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+        if (failures > 0) {
+            System.out.println(failures + " failures");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    static void fail(String message) {
+        failures++;
+        System.out.println("FAIL " + message);
+    }
+}
@@ -0,0 +1,193 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * BlockDecompressor must decode a well-formed file exactly and turn away a
+ * file whose blocks break the format's rules with an IOException, before
+ * decoding anything, whichever way the file is read. Covers block index
+ * entries that stay consistent with the file layout but not with the
+ * block sizes, and unindexed streams with frames that break the same
+ * rules. Run from the repository root:
+ *
+ *   javac -d out *.java
+ *   javac -cp out -d out test/*.java
+ *   java -cp out BlockDecompressorTest
+ */
+public class BlockDecompressorTest {
+    static final int BLOCK = 4096;
+
+    private static int failures;
+
+    public static void main(String[] args) throws IOException {
+        byte[] data = TestData.samples().get("text");
+        Path dir = Files.createTempDirectory("decompressor");
+        try {
+            indexed(data, dir);
+            streamed(data, dir);
+        } finally {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path file : files) Files.delete(file);
+            }
+            Files.delete(dir);
+        }
+        if (failures > 0) {
+            System.out.println(failures + " failures");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    /** Index entries with empty, short or oversized blocks, or a last block of the wrong size. */
+    static void indexed(byte[] data, Path dir) throws IOException {
+        byte[] good = compress(data, true);
+        check(dir, "indexed", good, data);
+        int last = (data.length - 1) / BLOCK;
+        expectIOException(dir, "short first block", withRaw(good, 0, BLOCK - 1));
+        expectIOException(dir, "empty first block", withRaw(good, 0, 0));
+        expectIOException(dir, "empty last block", withRaw(good, last, 0));
+        expectIOException(dir, "oversized block", withRaw(good, 0, BLOCK + 1));
+        expectIOException(dir, "short last block", withRaw(good, last, data.length - last * BLOCK - 1));
+    }
+
+    /** Streams with an empty frame, a short frame before the last, or an oversized payload. */
+    static void streamed(byte[] data, Path dir) throws IOException {
+        byte[] good = compress(data, false);
+        check(dir, "stream", good, data);
+        List<byte[]> frames = frames(good);
+
+        ByteBuffer empty = ByteBuffer.allocate(BlockFormat.FRAME_HEADER_SIZE + 1);
+        empty.putInt(0).putInt(1).putInt(0).put((byte) HuffmanCodec.TYPE_RAW);
+        List<byte[]> withEmpty = new ArrayList<>(frames);
+        withEmpty.add(1, empty.array());
+        expectStreamIOException(dir, "empty frame", stream(good, withEmpty));
+
+        List<byte[]> spliced = frames(compress(Arrays.copyOf(data, BLOCK + 100), false));
+        spliced.addAll(frames);
+        expectStreamIOException(dir, "short frame before the last", stream(good, spliced));
+
+        byte[] oversized = good.clone();
+        ByteBuffer.wrap(oversized).putInt(BlockFormat.HEADER_SIZE + 4, Integer.MAX_VALUE - 8);
+        expectStreamIOException(dir, "oversized payload", oversized);
+    }
+
+    /** The frames of an unindexed stream, each with its header. */
+    static List<byte[]> frames(byte[] stream) {
+        List<byte[]> frames = new ArrayList<>();
+        ByteBuffer buf = ByteBuffer.wrap(stream);
+        int position = BlockFormat.HEADER_SIZE;
+        while (buf.getInt(position) != BlockFormat.END_OF_BLOCKS) {
+            int size = BlockFormat.FRAME_HEADER_SIZE + buf.getInt(position + 4);
+            frames.add(Arrays.copyOfRange(stream, position, position + size));
+            position += size;
+        }
+        return frames;
+    }
+
+    /** A stream with the header of {@code stream} and the given frames. */
+    static byte[] stream(byte[] stream, List<byte[]> frames) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(stream, 0, BlockFormat.HEADER_SIZE);
+        for (byte[] frame : frames) out.writeBytes(frame);
+        out.writeBytes(ByteBuffer.allocate(4).putInt(BlockFormat.END_OF_BLOCKS).array());
+        return out.toByteArray();
+    }
+
+    static byte[] compress(byte[] data, boolean indexed) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BlockCompressor compressor = new BlockCompressor(BLOCK, 2);
+        if (indexed) {
+            compressor.compress(new ByteArrayInputStream(data), out);
+        } else {
+            compressor.compressStream(new ByteArrayInputStream(data), out);
+        }
+        return out.toByteArray();
+    }
+
+    /** An indexed file with block b's index entry claiming {@code raw} bytes. */
+    static byte[] withRaw(byte[] file, int b, int raw) {
+        byte[] bad = file.clone();
+        ByteBuffer buf = ByteBuffer.wrap(bad);
+        int indexOffset = (int) buf.getLong(bad.length - BlockFormat.TRAILER_SIZE);
+        buf.putInt(indexOffset + 4 + b * BlockFormat.INDEX_ENTRY_SIZE + 12, raw);
+        return bad;
+    }
+
+    /** Decodes the file through the mapped and stream paths and test(). */
+    static void check(Path dir, String name, byte[] file, byte[] data) {
+        Path input = dir.resolve("input");
+        Path output = dir.resolve("output");
+        try {
+            Files.write(input, file);
+            BlockDecompressor decompressor = new BlockDecompressor(2);
+            decompressor.decompress(input, output);
+            if (!Arrays.equals(data, Files.readAllBytes(output))) fail(name + ": mapped decode differs");
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            decompressor.decompress(new ByteArrayInputStream(file), out);
+            if (!Arrays.equals(data, out.toByteArray())) fail(name + ": stream decode differs");
+            if (decompressor.test(input).totalRawSize != data.length) fail(name + ": test() reported the wrong size");
+        } catch (IOException | RuntimeException e) {
+            fail(name + ": threw " + e);
+        }
+    }
+
+    /**
+     * The file must be rejected by readIndex() and so by the mapped decode,
+     * which must also delete its output, and test().
+     */
+    static void expectIOException(Path dir, String name, byte[] file) {
+        Path input = dir.resolve("input");
+        Path output = dir.resolve("output");
+        try {
+            Files.write(input, file);
+        } catch (IOException e) {
+            fail(name + ": " + e);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            BlockDecompressor.readIndex(channel);
+            fail(name + ": readIndex() accepted it");
+        } catch (IOException e) {
+            // Expected.
+        } catch (RuntimeException e) {
+            fail(name + ": readIndex() threw " + e);
+        }
+        BlockDecompressor decompressor = new BlockDecompressor(2);
+        try {
+            decompressor.decompress(input, output);
+            fail(name + ": mapped decode accepted it");
+        } catch (IOException e) {
+            if (Files.exists(output)) fail(name + ": mapped decode left its output behind");
+        } catch (RuntimeException e) {
+            fail(name + ": mapped decode threw " + e);
+        }
+        try {
+            decompressor.test(input);
+            fail(name + ": test() accepted it");
+        } catch (IOException e) {
+            // Expected.
+        } catch (RuntimeException e) {
+            fail(name + ": test() threw " + e);
+        }
+    }
+
+    /** An unindexed file must be rejected front to back as well as through a scan. */
+    static void expectStreamIOException(Path dir, String name, byte[] file) {
+        expectIOException(dir, name, file);
+        try {
+            new BlockDecompressor(2).decompress(new ByteArrayInputStream(file), new ByteArrayOutputStream());
+            fail(name + ": stream decode accepted it");
+        } catch (IOException e) {
+            // Expected.
+        } catch (RuntimeException e) {
+            fail(name + ": stream decode threw " + e);
+        }
+    }
+
+    static void fail(String message) {
+        failures++;
+        System.out.println("FAIL " + message);
+    }
+}
@@ -0,0 +1,143 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * BlockIndex.read() must return the blocks of an indexed file as written,
+ * and fail with an IOException, never a runtime exception, when the
+ * trailer or any entry no longer describes blocks laid end to end from the
+ * header to the end-of-blocks marker, or when the search filters do not
+ * fill the rest of the index. Also checks the block size limits of the
+ * file header and of BlockCompressor. Run from the repository root:
+ *
+ *   javac -d out *.java
+ *   javac -cp out -d out test/*.java
+ *   java -cp out BlockIndexTest
+ */
+public class BlockIndexTest {
+    static final int BLOCK = 4096;
+
+    private static int failures;
+
+    public static void main(String[] args) throws IOException {
+        byte[] data = TestData.samples().get("text");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BlockCompressor(BLOCK, 2).compress(new ByteArrayInputStream(data), out);
+        byte[] good = out.toByteArray();
+        Path file = Files.createTempFile("index", ".huf");
+        try {
+            BlockIndex index = read(file, good);
+            if (index.count != (data.length + BLOCK - 1) / BLOCK || index.totalRawSize != data.length) {
+                fail("index of " + index.count + " blocks and " + index.totalRawSize + " bytes");
+            }
+
+            ByteBuffer g = ByteBuffer.wrap(good);
+            int trailer = good.length - BlockFormat.TRAILER_SIZE;
+            int indexOffset = (int) g.getLong(trailer);
+            for (long value : new long[] {-1, 0, indexOffset - 1, indexOffset + 1, good.length, Long.MAX_VALUE}) {
+                byte[] bad = good.clone();
+                ByteBuffer.wrap(bad).putLong(trailer, value);
+                expectIOException(file, bad, "index offset " + value);
+            }
+            for (int value : new int[] {-1, index.count - 1, index.count + 1, Integer.MAX_VALUE}) {
+                byte[] bad = good.clone();
+                ByteBuffer.wrap(bad).putInt(indexOffset, value);
+                expectIOException(file, bad, "block count " + value);
+            }
+            for (int b = 0; b < index.count; b++) {
+                int entry = indexOffset + 4 + b * BlockFormat.INDEX_ENTRY_SIZE;
+                for (long delta : new long[] {-1, 1, 1L << 40}) {
+                    byte[] bad = good.clone();
+                    ByteBuffer.wrap(bad).putLong(entry, g.getLong(entry) + delta);
+                    expectIOException(file, bad, "block " + b + " offset moved by " + delta);
+                }
+                for (int value : new int[] {-1, g.getInt(entry + 8) - 1, g.getInt(entry + 8) + 1, Integer.MAX_VALUE}) {
+                    byte[] bad = good.clone();
+                    ByteBuffer.wrap(bad).putInt(entry + 8, value);
+                    expectIOException(file, bad, "block " + b + " payload size " + value);
+                }
+            }
+            filters(data, file);
+        } finally {
+            Files.delete(file);
+        }
+        blockSizeLimits(good);
+        if (failures > 0) {
+            System.out.println(failures + " failures");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    /** A file with search filters must have exactly one of the right size per block. */
+    static void filters(byte[] data, Path file) throws IOException {
+        CodecOptions options = new CodecOptions();
+        options.searchFilter = true;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BlockCompressor(BLOCK, 2, options).compress(new ByteArrayInputStream(data), out);
+        byte[] good = out.toByteArray();
+        int indexOffset = (int) ByteBuffer.wrap(good).getLong(good.length - BlockFormat.TRAILER_SIZE);
+        BlockIndex index = read(file, good, true);
+        int filters = indexOffset + 4 + index.count * BlockFormat.INDEX_ENTRY_SIZE;
+        if (index.filterSize != BlockFilter.size(BLOCK) || index.filterOffset != filters + 4) {
+            fail("filters of " + index.filterSize + " bytes at " + index.filterOffset);
+        }
+        int size = index.filterSize;
+        for (int value : new int[] {-1, 0, size - 1, size + 1, size * 2, Integer.MAX_VALUE}) {
+            byte[] bad = good.clone();
+            ByteBuffer.wrap(bad).putInt(filters, value);
+            expectIOException(file, bad, true, "filter size " + value);
+        }
+    }
+
+    static void blockSizeLimits(byte[] good) {
+        byte[] header = good.clone();
+        ByteBuffer.wrap(header).putInt(6, BlockFormat.MAX_BLOCK_SIZE + 1);
+        try {
+            BlockDecompressor.readHeader(new DataInputStream(new ByteArrayInputStream(header)));
+            fail("header with a block size over MAX_BLOCK_SIZE was accepted");
+        } catch (IOException e) {
+            // Expected.
+        }
+        for (int blockSize : new int[] {0, -1, BlockFormat.MAX_BLOCK_SIZE + 1}) {
+            try {
+                new BlockCompressor(blockSize, 1);
+                fail("BlockCompressor accepted block size " + blockSize);
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+    }
+
+    static BlockIndex read(Path file, byte[] bytes) throws IOException {
+        return read(file, bytes, false);
+    }
+
+    static BlockIndex read(Path file, byte[] bytes, boolean filtered) throws IOException {
+        Files.write(file, bytes);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return BlockIndex.read(channel, filtered);
+        }
+    }
+
+    static void expectIOException(Path file, byte[] bytes, String name) {
+        expectIOException(file, bytes, false, name);
+    }
+
+    static void expectIOException(Path file, byte[] bytes, boolean filtered, String name) {
+        try {
+            read(file, bytes, filtered);
+            fail(name + ": was accepted");
+        } catch (IOException e) {
+            // Expected.
+        } catch (RuntimeException e) {
+            fail(name + ": threw " + e);
+        }
+    }
+
+    static void fail(String message) {
+        failures++;
+        System.out.println("FAIL " + message);
+    }
+}
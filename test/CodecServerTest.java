@@ -0,0 +1,127 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The server must keep serving other clients while one sends a large
+ * request and never reads the response, and must answer streams that break
+ * the block rules with an error rather than decoding them. Run from the
+ * repository root:
+ *
+ *   javac -d out *.java
+ *   javac -cp out -d out test/*.java
+ *   java -cp out CodecServerTest
+ */
+public class CodecServerTest {
+    static final int STALLED_INPUT = 64 << 20;
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        CodecServer server = new CodecServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1,
+            CodecOptions.DEFAULT);
+        Thread thread = new Thread(() -> {
+            try {
+                server.run();
+            } catch (IOException e) {
+                fail("server: " + e);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        try {
+            rejectedStreams(server.address());
+            stalledClient(server.address());
+        } finally {
+            server.close();
+        }
+        if (failures > 0) {
+            System.out.println(failures + " failures");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    /** Streams with an empty block, or a short block before the last. */
+    static void rejectedStreams(SocketAddress address) throws IOException {
+        byte[] data = TestData.samples().get("text");
+        byte[] good = BlockDecompressorTest.compress(data, false);
+        List<byte[]> frames = BlockDecompressorTest.frames(good);
+        try (CodecClient client = new CodecClient(address)) {
+            if (!Arrays.equals(data, client.request(CodecServer.DECOMPRESS, good))) fail("stream: output differs");
+        }
+
+        ByteBuffer empty = ByteBuffer.allocate(BlockFormat.FRAME_HEADER_SIZE + 1);
+        empty.putInt(0).putInt(1).putInt(0).put((byte) HuffmanCodec.TYPE_RAW);
+        List<byte[]> withEmpty = new ArrayList<>(frames);
+        withEmpty.add(1, empty.array());
+        expectError(address, "empty block", BlockDecompressorTest.stream(good, withEmpty));
+
+        List<byte[]> spliced = BlockDecompressorTest.frames(
+            BlockDecompressorTest.compress(Arrays.copyOf(data, BlockDecompressorTest.BLOCK + 100), false));
+        spliced.addAll(frames);
+        expectError(address, "short block before the last", BlockDecompressorTest.stream(good, spliced));
+    }
+
+    /**
+     * One client sends STALLED_INPUT incompressible bytes and reads nothing,
+     * so its blocks stay queued; another must still get its answer.
+     */
+    static void stalledClient(SocketAddress address) throws Exception {
+        SocketChannel stalled = SocketChannel.open();
+        stalled.setOption(StandardSocketOptions.SO_RCVBUF, 4096);
+        stalled.connect(address);
+        Thread sender = new Thread(() -> {
+            try {
+                ByteBuffer header = ByteBuffer.allocate(CodecServer.REQUEST_HEADER_SIZE);
+                header.put(CodecServer.COMPRESS).putLong(STALLED_INPUT).flip();
+                while (header.hasRemaining()) stalled.write(header);
+                Random random = new Random(1);
+                byte[] chunk = new byte[1 << 16];
+                for (int sent = 0; sent < STALLED_INPUT; sent += chunk.length) {
+                    random.nextBytes(chunk);
+                    ByteBuffer buf = ByteBuffer.wrap(chunk);
+                    while (buf.hasRemaining()) stalled.write(buf);
+                }
+            } catch (IOException e) {
+                // Closed at the end of the test.
+            }
+        });
+        sender.setDaemon(true);
+        sender.start();
+        Thread.sleep(2000);
+
+        byte[] data = TestData.samples().get("text");
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        try {
+            Future<byte[]> result = other.submit(() -> {
+                try (CodecClient client = new CodecClient(address)) {
+                    return client.request(CodecServer.DECOMPRESS, client.request(CodecServer.COMPRESS, data));
+                }
+            });
+            if (!Arrays.equals(data, result.get(30, TimeUnit.SECONDS))) fail("other client: output differs");
+        } catch (TimeoutException e) {
+            fail("other client stalled behind one that does not read");
+        } finally {
+            other.shutdownNow();
+            stalled.close();
+        }
+    }
+
+    static void expectError(SocketAddress address, String name, byte[] input) {
+        try (CodecClient client = new CodecClient(address)) {
+            client.request(CodecServer.DECOMPRESS, input);
+            fail(name + ": was accepted");
+        } catch (IOException e) {
+            // Expected: the server's error message.
+        }
+    }
+
+    static synchronized void fail(String message) {
+        failures++;
+        System.out.println("FAIL " + message);
+    }
+}
@@ -0,0 +1,173 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Damaged frames must fail with an IOException, never with a runtime
+ * exception or wrong bytes. Covers hand-made over-subscribed code length
+ * tables, then flips random bits in frames written with every option set
+ * and decodes them, and in indexed and streamed files, which are read back
+ * through every file reader. Run from the repository root:
+ *
+ *   javac -d out *.java
+ *   javac -cp out -d out test/*.java
+ *   java -cp out CorruptInputTest
+ */
+public class CorruptInputTest {
+    static final int FLIPS = 300;
+    static final int FILE_FLIPS = 40;
+
+    private static int failures;
+
+    public static void main(String[] args) throws IOException {
+        oversubscribedTable();
+        oversubscribedFrame();
+        Path dir = Files.createTempDirectory("corrupt");
+        try {
+            for (Map.Entry<String, CodecOptions> options : TestData.optionSets().entrySet()) {
+                for (Map.Entry<String, byte[]> sample : TestData.samples().entrySet()) {
+                    String name = options.getKey() + "/" + sample.getKey();
+                    flipBits(name, sample.getValue(), options.getValue());
+                    flipFileBits(name, sample.getValue(), options.getValue(), dir);
+                }
+            }
+        } finally {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path file : files) Files.delete(file);
+            }
+            Files.delete(dir);
+        }
+        if (failures > 0) {
+            System.out.println(failures + " failures");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    /** Four 1-bit codes: a Kraft sum of two. */
+    static void oversubscribedTable() {
+        ByteBuffer table = ByteBuffer.wrap(new byte[] {0, 4, 0x11, 0x11});
+        try {
+            new HuffmanCode().readLengths(table);
+            fail("oversubscribed table was accepted");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    /** The same table inside an otherwise well-formed TYPE_HUFFMAN frame. */
+    static void oversubscribedFrame() {
+        byte[] payload = {HuffmanCodec.TYPE_HUFFMAN, 0, 4, 0x11, 0x11, 0, 0, 0, 0};
+        ByteBuffer frame = ByteBuffer.allocate(BlockFormat.FRAME_HEADER_SIZE + payload.length);
+        frame.putInt(16).putInt(payload.length).putInt(0).put(payload).flip();
+        expectIOException("oversubscribed frame", frame, 16);
+    }
+
+    /** Flips one to three random bits in a frame, FLIPS times, and decodes each copy. */
+    static void flipBits(String name, byte[] data, CodecOptions options) {
+        ByteBuffer frame = ByteBuffer.allocate(HuffmanCodec.maxCompressedLength(data.length));
+        HuffmanCodec.get().compress(ByteBuffer.wrap(data), frame, options);
+        byte[] good = Arrays.copyOf(frame.array(), frame.position());
+        Random random = new Random(name.hashCode());
+        for (int i = 0; i < FLIPS; i++) {
+            byte[] bad = good.clone();
+            for (int n = 1 + random.nextInt(3); n > 0; n--) {
+                int bit = random.nextInt(bad.length * 8);
+                bad[bit >> 3] ^= 1 << (bit & 7);
+            }
+            ByteBuffer dst = ByteBuffer.allocate(data.length);
+            try {
+                HuffmanCodec.get().decompress(ByteBuffer.wrap(bad), dst);
+                if (!Arrays.equals(data, Arrays.copyOf(dst.array(), dst.position()))) {
+                    fail(name + ": damaged frame decoded to wrong bytes");
+                }
+            } catch (IOException e) {
+                // Expected.
+            } catch (RuntimeException e) {
+                fail(name + ": damaged frame threw " + e);
+            }
+        }
+    }
+
+    /**
+     * Flips one to three random bits, FILE_FLIPS times, in a file written
+     * in small blocks with and without an index, and reads each copy with
+     * the mapped and stream decoders, test() and SeekableBlockChannel.
+     */
+    static void flipFileBits(String name, byte[] data, CodecOptions options, Path dir) throws IOException {
+        BlockCompressor compressor = new BlockCompressor(RoundTripTest.SMALL_BLOCK, 2, options);
+        ByteArrayOutputStream indexed = new ByteArrayOutputStream();
+        compressor.compress(new ByteArrayInputStream(data), indexed);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        compressor.compressStream(new ByteArrayInputStream(data), stream);
+
+        BlockDecompressor decompressor = new BlockDecompressor(2);
+        Path file = dir.resolve("damaged");
+        Path output = dir.resolve("output");
+        Random random = new Random(name.hashCode());
+        for (byte[] good : new byte[][] {indexed.toByteArray(), stream.toByteArray()}) {
+            for (int i = 0; i < FILE_FLIPS; i++) {
+                byte[] bad = good.clone();
+                for (int n = 1 + random.nextInt(3); n > 0; n--) {
+                    int bit = random.nextInt(bad.length * 8);
+                    bad[bit >> 3] ^= 1 << (bit & 7);
+                }
+                Files.write(file, bad);
+                try {
+                    decompressor.decompress(file, output);
+                    if (!Arrays.equals(data, Files.readAllBytes(output))) fail(name + ": damaged file decoded to wrong bytes");
+                } catch (IOException e) {
+                    // Expected.
+                } catch (RuntimeException e) {
+                    fail(name + ": mapped decode of a damaged file threw " + e);
+                }
+                try {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    decompressor.decompress(new ByteArrayInputStream(bad), out);
+                    if (!Arrays.equals(data, out.toByteArray())) fail(name + ": damaged stream decoded to wrong bytes");
+                } catch (IOException e) {
+                    // Expected.
+                } catch (RuntimeException e) {
+                    fail(name + ": stream decode of a damaged file threw " + e);
+                }
+                try {
+                    decompressor.test(file);
+                } catch (IOException e) {
+                    // Expected.
+                } catch (RuntimeException e) {
+                    fail(name + ": test() of a damaged file threw " + e);
+                }
+                try (SeekableBlockChannel in = new SeekableBlockChannel(file)) {
+                    ByteBuffer buf = ByteBuffer.allocate(data.length);
+                    while (buf.hasRemaining() && in.read(buf) >= 0) {
+                        // Read it all.
+                    }
+                    if (buf.hasRemaining() || !Arrays.equals(data, buf.array())) {
+                        fail(name + ": damaged file read back wrong bytes");
+                    }
+                } catch (IOException e) {
+                    // Expected.
+                } catch (RuntimeException e) {
+                    fail(name + ": SeekableBlockChannel read of a damaged file threw " + e);
+                }
+            }
+        }
+    }
+
+    static void expectIOException(String name, ByteBuffer frame, int capacity) {
+        try {
+            HuffmanCodec.get().decompress(frame, ByteBuffer.allocate(capacity));
+            fail(name + " decoded");
+        } catch (IOException e) {
+            // Expected.
+        } catch (RuntimeException e) {
+            fail(name + " threw " + e);
+        }
+    }
+
+    static void fail(String message) {
+        failures++;
+        System.out.println("FAIL " + message);
+    }
+}
@@ -0,0 +1,70 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * A frame must decode only at its exact size: one written with every option
+ * set decodes back to its input, and the same frame with a byte added to
+ * its payload, or one taken away, fails with an IOException. Run from the
+ * repository root:
+ *
+ *   javac -d out *.java
+ *   javac -cp out -d out test/*.java
+ *   java -cp out HuffmanCodecTest
+ */
+public class HuffmanCodecTest {
+    private static int failures;
+
+    public static void main(String[] args) throws IOException {
+        for (Map.Entry<String, CodecOptions> options : TestData.optionSets().entrySet()) {
+            for (Map.Entry<String, byte[]> sample : TestData.samples().entrySet()) {
+                String name = options.getKey() + "/" + sample.getKey();
+                byte[] data = sample.getValue();
+                ByteBuffer frame = ByteBuffer.allocate(HuffmanCodec.maxCompressedLength(data.length));
+                HuffmanCodec.get().compress(ByteBuffer.wrap(data), frame, options.getValue());
+                byte[] good = Arrays.copyOf(frame.array(), frame.position());
+                check(name, good, data);
+                expectIOException(name + " with a trailing byte", resize(good, 1), data.length);
+                expectIOException(name + " missing its last byte", resize(good, -1), data.length);
+            }
+        }
+        if (failures > 0) {
+            System.out.println(failures + " failures");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    /** The frame with its payload grown by a zero byte or cut short, and its header to match. */
+    static byte[] resize(byte[] frame, int delta) {
+        byte[] copy = Arrays.copyOf(frame, frame.length + delta);
+        ByteBuffer.wrap(copy).putInt(4, frame.length + delta - BlockFormat.FRAME_HEADER_SIZE);
+        return copy;
+    }
+
+    static void check(String name, byte[] frame, byte[] data) {
+        ByteBuffer dst = ByteBuffer.allocate(data.length);
+        try {
+            HuffmanCodec.get().decompress(ByteBuffer.wrap(frame), dst);
+            if (!Arrays.equals(data, dst.array())) fail(name + ": output differs");
+        } catch (IOException | RuntimeException e) {
+            fail(name + ": threw " + e);
+        }
+    }
+
+    static void expectIOException(String name, byte[] frame, int capacity) {
+        try {
+            HuffmanCodec.get().decompress(ByteBuffer.wrap(frame), ByteBuffer.allocate(capacity));
+            fail(name + ": was accepted");
+        } catch (IOException e) {
+            // Expected.
+        } catch (RuntimeException e) {
+            fail(name + ": threw " + e);
+        }
+    }
+
+    static void fail(String message) {
+        failures++;
+        System.out.println("FAIL " + message);
+    }
+}
@@ -0,0 +1,112 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * A bitstream must decode exactly: the original bytes when it is whole, and
+ * an IOException when a byte is missing or when bytes follow the padding of
+ * the last code. Checks single and interleaved streams through the array
+ * and the direct buffer loops. Run from the repository root:
+ *
+ *   javac -d out *.java
+ *   javac -cp out -d out test/*.java
+ *   java -cp out HuffmanDecoderTest
+ */
+public class HuffmanDecoderTest {
+    private static int failures;
+
+    public static void main(String[] args) {
+        Random random = new Random(7);
+        for (int length : new int[] {1, 3, 100, 5000}) {
+            byte[] data = new byte[length];
+            for (int i = 0; i < length; i++) data[i] = (byte) "etaoin shrdlu\n".charAt(random.nextInt(14));
+            long[] counts = new long[HuffmanCode.SYMBOLS];
+            for (byte b : data) counts[b & 0xFF]++;
+            HuffmanCode code = new HuffmanCode();
+            code.build(counts);
+            HuffmanDecoder decoder = new HuffmanDecoder(code);
+            for (boolean interleaved : new boolean[] {false, true}) {
+                byte[] stream = interleaved ? encode4(code, data) : encode(code, data, 0, length);
+                for (boolean direct : new boolean[] {false, true}) {
+                    String name = length + (interleaved ? " interleaved" : " single") + (direct ? " direct" : " heap");
+                    check(name, decoder, interleaved, direct, stream, data);
+                    expectIOException(name + " with a trailing byte", decoder, interleaved, direct,
+                        Arrays.copyOf(stream, stream.length + 1), length);
+                    expectIOException(name + " missing its last byte", decoder, interleaved, direct,
+                        Arrays.copyOf(stream, stream.length - 1), length);
+                }
+            }
+        }
+        if (failures > 0) {
+            System.out.println(failures + " failures");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    static byte[] encode(HuffmanCode code, byte[] data, int from, int to) {
+        ByteBuffer buf = ByteBuffer.allocate(2 * (to - from) + 8);
+        BitWriter bits = new BitWriter(buf);
+        for (int i = from; i < to; i++) bits.write(code.code[data[i] & 0xFF], code.len[data[i] & 0xFF]);
+        bits.flush();
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    /** The layout decode4() reads: three stream sizes, then four quarters. */
+    static byte[] encode4(HuffmanCode code, byte[] data) {
+        int quarter = (data.length + 3) / 4;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[][] streams = new byte[HuffmanDecoder.STREAMS][];
+        for (int k = 0; k < HuffmanDecoder.STREAMS; k++) {
+            int from = Math.min(k * quarter, data.length);
+            streams[k] = encode(code, data, from, Math.min(from + quarter, data.length));
+        }
+        for (int k = 0; k < HuffmanDecoder.STREAMS - 1; k++) {
+            out.writeBytes(ByteBuffer.allocate(4).putInt(streams[k].length).array());
+        }
+        for (byte[] stream : streams) out.writeBytes(stream);
+        return out.toByteArray();
+    }
+
+    static void decode(HuffmanDecoder decoder, boolean interleaved, boolean direct, byte[] stream, ByteBuffer dst,
+            int count) throws IOException {
+        ByteBuffer src = direct ? ByteBuffer.allocateDirect(stream.length) : ByteBuffer.allocate(stream.length);
+        src.put(stream).flip();
+        if (interleaved) {
+            decoder.decode4(src, dst, count);
+        } else {
+            decoder.decode(src, dst, count);
+        }
+    }
+
+    static void check(String name, HuffmanDecoder decoder, boolean interleaved, boolean direct, byte[] stream,
+            byte[] data) {
+        ByteBuffer dst = direct ? ByteBuffer.allocateDirect(data.length) : ByteBuffer.allocate(data.length);
+        try {
+            decode(decoder, interleaved, direct, stream, dst, data.length);
+            byte[] out = new byte[data.length];
+            dst.flip().get(out);
+            if (!Arrays.equals(data, out)) fail(name + ": output differs");
+        } catch (IOException | RuntimeException e) {
+            fail(name + ": threw " + e);
+        }
+    }
+
+    static void expectIOException(String name, HuffmanDecoder decoder, boolean interleaved, boolean direct,
+            byte[] stream, int count) {
+        ByteBuffer dst = direct ? ByteBuffer.allocateDirect(count) : ByteBuffer.allocate(count);
+        try {
+            decode(decoder, interleaved, direct, stream, dst, count);
+            fail(name + ": was accepted");
+        } catch (IOException e) {
+            // Expected.
+        } catch (RuntimeException e) {
+            fail(name + ": threw " + e);
+        }
+    }
+
+    static void fail(String message) {
+        failures++;
+        System.out.println("FAIL " + message);
+    }
+}
@@ -0,0 +1,207 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Every sample, under every option set, must come back byte for byte
+ * through every way of reading it: single frames from heap and direct
+ * buffers; indexed files decoded in parallel, checked, streamed, read at
+ * random through SeekableBlockChannel and searched; unindexed streams
+ * decoded both ways; and the server. Small blocks make the compressor
+ * chain tables, and the run fails unless every block type and interleaved
+ * bitstreams turned up. Run from the repository root:
+ *
+ *   javac -d out *.java
+ *   javac -cp out -d out test/*.java
+ *   java -cp out RoundTripTest
+ */
+public class RoundTripTest {
+    static final int SMALL_BLOCK = 4096;
+
+    private static int failures;
+    private static boolean interleaved;
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("roundtrip");
+        try {
+            CodecMetrics.INSTANCE.reset();
+            for (Map.Entry<String, CodecOptions> options : TestData.optionSets().entrySet()) {
+                CodecServer server = startServer(options.getValue());
+                try (CodecClient client = new CodecClient(server.address())) {
+                    for (Map.Entry<String, byte[]> sample : TestData.samples().entrySet()) {
+                        String name = options.getKey() + "/" + sample.getKey();
+                        byte[] data = sample.getValue();
+                        try {
+                            frames(name, data, options.getValue());
+                            files(name, data, options.getValue(), dir);
+                            server(name, data, client);
+                        } catch (IOException | RuntimeException e) {
+                            fail(name + ": " + e);
+                        }
+                    }
+                } finally {
+                    server.close();
+                }
+            }
+            blockTypes();
+        } finally {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path file : files) Files.delete(file);
+            }
+            Files.delete(dir);
+        }
+        if (failures > 0) {
+            System.out.println(failures + " failures");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    /** One frame through HuffmanCodec, from and to heap and direct buffers. */
+    static void frames(String name, byte[] data, CodecOptions options) throws IOException {
+        for (boolean direct : new boolean[] {false, true}) {
+            ByteBuffer src = allocate(data.length, direct);
+            src.put(data).flip();
+            ByteBuffer frame = allocate(HuffmanCodec.maxCompressedLength(data.length), direct);
+            HuffmanCodec.get().compress(src, frame, options);
+            frame.flip();
+            if (frame.remaining() > BlockFormat.FRAME_HEADER_SIZE
+                    && (frame.get(BlockFormat.FRAME_HEADER_SIZE) & HuffmanCodec.FLAG_INTERLEAVED) != 0) {
+                interleaved = true;
+            }
+            ByteBuffer dst = allocate(data.length, direct);
+            HuffmanCodec.get().decompress(frame, dst);
+            dst.flip();
+            byte[] out = new byte[dst.remaining()];
+            dst.get(out);
+            check(name + (direct ? " direct frame" : " heap frame"), data, out);
+        }
+    }
+
+    /** Indexed files and unindexed streams, in small blocks, through every file reader. */
+    static void files(String name, byte[] data, CodecOptions options, Path dir) throws IOException {
+        Path input = dir.resolve("input");
+        Path indexed = dir.resolve("indexed");
+        Path stream = dir.resolve("stream");
+        Path output = dir.resolve("output");
+        Files.write(input, data);
+        BlockCompressor compressor = new BlockCompressor(SMALL_BLOCK, 2, options);
+        try (MappedInputStream in = new MappedInputStream(input);
+             OutputStream out = new ChannelOutputStream(indexed)) {
+            compressor.compress(in, out);
+        }
+        try (InputStream in = new ByteArrayInputStream(data);
+             OutputStream out = Files.newOutputStream(stream)) {
+            compressor.compressStream(in, out);
+        }
+
+        BlockDecompressor decompressor = new BlockDecompressor(2);
+        for (Path file : new Path[] {indexed, stream}) {
+            String kind = name + (file == indexed ? " indexed" : " stream");
+            decompressor.decompress(file, output);
+            check(kind + " mapped decode", data, Files.readAllBytes(output));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (InputStream in = Files.newInputStream(file)) {
+                decompressor.decompress(in, out);
+            }
+            check(kind + " stream decode", data, out.toByteArray());
+            if (decompressor.test(file).totalRawSize != data.length) fail(kind + ": test() reported the wrong size");
+        }
+        randomReads(name, data, indexed);
+        search(name, data, indexed);
+    }
+
+    /** Reads of random ranges through SeekableBlockChannel, across block boundaries. */
+    static void randomReads(String name, byte[] data, Path file) throws IOException {
+        Random random = new Random(name.hashCode());
+        try (SeekableBlockChannel in = new SeekableBlockChannel(file, 2 * SMALL_BLOCK)) {
+            if (in.size() != data.length) fail(name + ": SeekableBlockChannel size " + in.size());
+            for (int i = 0; i < 20; i++) {
+                int from = random.nextInt(data.length + 1);
+                int length = random.nextInt(Math.min(data.length - from, 3 * SMALL_BLOCK) + 1);
+                ByteBuffer buf = ByteBuffer.allocate(length);
+                in.position(from);
+                while (buf.hasRemaining()) {
+                    if (in.read(buf) < 0) throw new EOFException("Unexpected end of file.");
+                }
+                check(name + " random read at " + from, Arrays.copyOfRange(data, from, from + length), buf.array());
+            }
+        }
+    }
+
+    /** BlockSearcher must find the same lines as a plain scan of the original. */
+    static void search(String name, byte[] data, Path file) throws IOException {
+        for (String word : new String[] {"code", "frame", "x", "zz"}) {
+            byte[] pattern = word.getBytes();
+            List<Long> expected = new ArrayList<>();
+            int start = 0;
+            for (int i = 0; i <= data.length; i++) {
+                if (i == data.length || data[i] == '\n') {
+                    if (contains(data, start, i, pattern)) expected.add((long) start);
+                    start = i + 1;
+                }
+            }
+            List<Long> found = new ArrayList<>();
+            new BlockSearcher(2).search(file, pattern, (offset, line, off, len) -> found.add(offset));
+            if (!expected.equals(found)) fail(name + ": search for \"" + word + "\" found the wrong lines");
+        }
+    }
+
+    static void server(String name, byte[] data, CodecClient client) throws IOException {
+        byte[] compressed = client.request(CodecServer.COMPRESS, data);
+        check(name + " server", data, client.request(CodecServer.DECOMPRESS, compressed));
+    }
+
+    static CodecServer startServer(CodecOptions options) throws IOException {
+        CodecServer server = new CodecServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2, options);
+        Thread thread = new Thread(() -> {
+            try {
+                server.run();
+            } catch (IOException e) {
+                fail("server: " + e);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return server;
+    }
+
+    /** Fails unless the compressor wrote at least one block of every type. */
+    static void blockTypes() {
+        CodecMetrics m = CodecMetrics.INSTANCE;
+        long others = m.getStoredBlocks() + m.getRepeatedTableBlocks() + m.getLz77Blocks()
+            + m.getDictionaryBlocks() + m.getTokenBlocks() + m.getFseBlocks();
+        if (m.getBlocksCompressed() == others) fail("no TYPE_HUFFMAN blocks");
+        if (m.getStoredBlocks() == 0) fail("no TYPE_RAW blocks");
+        if (m.getRepeatedTableBlocks() == 0) fail("no TYPE_REPEAT blocks");
+        if (m.getLz77Blocks() == 0) fail("no TYPE_LZ77 blocks");
+        if (m.getDictionaryBlocks() == 0) fail("no TYPE_DICTIONARY blocks");
+        if (m.getTokenBlocks() == 0) fail("no TYPE_TOKENS blocks");
+        if (m.getFseBlocks() == 0) fail("no TYPE_FSE blocks");
+        if (!interleaved) fail("no interleaved bitstreams");
+    }
+
+    static boolean contains(byte[] a, int from, int to, byte[] pattern) {
+        for (int i = from; i + pattern.length <= to; i++) {
+            int k = 0;
+            while (k < pattern.length && a[i + k] == pattern[k]) k++;
+            if (k == pattern.length) return true;
+        }
+        return false;
+    }
+
+    static ByteBuffer allocate(int capacity, boolean direct) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    static void check(String name, byte[] expected, byte[] actual) {
+        if (!Arrays.equals(expected, actual)) fail(name + ": output differs");
+    }
+
+    static synchronized void fail(String message) {
+        failures++;
+        System.out.println("FAIL " + message);
+    }
+}
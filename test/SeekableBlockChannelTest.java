@@ -0,0 +1,102 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * SeekableBlockChannel must return exactly the original bytes for any
+ * position and length, across block boundaries and cache evictions, in
+ * indexed files and unindexed streams; and it must refuse to open a file
+ * whose index would make it report a wrong size. Run from the repository
+ * root:
+ *
+ *   javac -d out *.java
+ *   javac -cp out -d out test/*.java
+ *   java -cp out SeekableBlockChannelTest
+ */
+public class SeekableBlockChannelTest {
+    static final int BLOCK = 4096;
+
+    private static int failures;
+
+    public static void main(String[] args) throws IOException {
+        Path file = Files.createTempFile("seekable", ".huf");
+        try {
+            for (Map.Entry<String, byte[]> sample : TestData.samples().entrySet()) {
+                for (boolean indexed : new boolean[] {true, false}) {
+                    String name = sample.getKey() + (indexed ? " indexed" : " stream");
+                    Files.write(file, BlockDecompressorTest.compress(sample.getValue(), indexed));
+                    reads(name, sample.getValue(), file);
+                }
+            }
+            damaged(file);
+        } finally {
+            Files.delete(file);
+        }
+        if (failures > 0) {
+            System.out.println(failures + " failures");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    /** Random ranges through a cache of two blocks, then the reads at and past the end. */
+    static void reads(String name, byte[] data, Path file) throws IOException {
+        Random random = new Random(name.hashCode());
+        SeekableBlockChannel in = new SeekableBlockChannel(file, 2 * BLOCK);
+        try (in) {
+            if (in.size() != data.length) fail(name + ": size " + in.size());
+            for (int i = 0; i < 50; i++) {
+                int from = random.nextInt(data.length + 1);
+                int length = random.nextInt(Math.min(data.length - from, 3 * BLOCK) + 1);
+                ByteBuffer buf = ByteBuffer.allocate(length);
+                in.position(from);
+                while (buf.hasRemaining()) {
+                    if (in.read(buf) < 0) throw new EOFException("Unexpected end of file.");
+                }
+                if (!Arrays.equals(Arrays.copyOfRange(data, from, from + length), buf.array())) {
+                    fail(name + ": read of " + length + " bytes at " + from + " differs");
+                }
+                if (in.position() != from + length) fail(name + ": position " + in.position() + " after a read");
+            }
+            for (long position : new long[] {data.length, data.length + 1L, Long.MAX_VALUE}) {
+                in.position(position);
+                if (in.read(ByteBuffer.allocate(1)) != -1) fail(name + ": read at " + position + " did not return -1");
+            }
+        }
+        try {
+            in.read(ByteBuffer.allocate(1));
+            fail(name + ": read after close");
+        } catch (ClosedChannelException e) {
+            // Expected.
+        }
+    }
+
+    /** Files whose damaged index or frame header would report a short or empty file. */
+    static void damaged(Path file) throws IOException {
+        byte[] data = TestData.samples().get("text");
+        int last = (data.length - 1) / BLOCK;
+        expectIOException(file, "short last entry",
+            BlockDecompressorTest.withRaw(BlockDecompressorTest.compress(data, true), last, 1));
+        byte[] empty = BlockDecompressorTest.compress(TestData.samples().get("single"), false);
+        ByteBuffer.wrap(empty).putInt(BlockFormat.HEADER_SIZE, 0);
+        expectIOException(file, "empty frame", empty);
+    }
+
+    static void expectIOException(Path file, String name, byte[] bytes) throws IOException {
+        Files.write(file, bytes);
+        try (SeekableBlockChannel in = new SeekableBlockChannel(file)) {
+            fail(name + ": opened with size " + in.size());
+        } catch (IOException e) {
+            // Expected.
+        } catch (RuntimeException e) {
+            fail(name + ": threw " + e);
+        }
+    }
+
+    static void fail(String message) {
+        failures++;
+        System.out.println("FAIL " + message);
+    }
+}
@@ -0,0 +1,105 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * The Simd kernels must give exactly what the scalar loops give. Runs each
+ * kernel and its scalar loop on every length up to a few vectors, on long
+ * random blocks, on codes up to MAX_CODE_LENGTH bits and behind a partial
+ * code already in the BitWriter. Needs the kernels compiled and the module
+ * added:
+ *
+ *   javac -d out *.java
+ *   javac --add-modules jdk.incubator.vector -cp out -d out simd/*.java
+ *   javac -cp out -d out test/*.java
+ *   java --add-modules jdk.incubator.vector -cp out SimdTest
+ */
+public class SimdTest {
+    private static int failures;
+
+    public static void main(String[] args) throws ReflectiveOperationException {
+        // Loaded here rather than taken from Simd.KERNELS, which is null for
+        // kernels that fail Simd's own check: this test says where they differ.
+        Simd.Kernels simd;
+        try {
+            simd = (Simd.Kernels) Class.forName("VectorKernels").getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException | LinkageError e) {
+            System.out.println("FAIL kernels not compiled or module not added: " + e);
+            System.exit(1);
+            return;
+        }
+        Random random = new Random(0x51D);
+        for (int length = 0; length <= 300; length++) {
+            check(simd, "length " + length, block(random, length, length % 4), random);
+        }
+        for (int i = 0; i < 40; i++) {
+            check(simd, "random block " + i, block(random, random.nextInt(1 << 18), i % 4), random);
+        }
+        check(simd, "longest codes", longestCodes(), random);
+        if (Simd.KERNELS == null) fail("Simd did not load the kernels");
+        if (failures > 0) {
+            System.out.println(failures + " failures");
+            System.exit(1);
+        }
+        System.out.println("OK on " + simd.vectorBits() + "-bit vectors");
+    }
+
+    /** Uniform, skewed, single-valued or text-like bytes. */
+    static byte[] block(Random random, int length, int kind) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (kind == 0 ? random.nextInt(256)
+                : kind == 1 ? Integer.numberOfTrailingZeros(random.nextInt() | 1 << 20)
+                : kind == 2 ? 'a' : "etaoin shrdlu\n".charAt(random.nextInt(14)));
+        }
+        return data;
+    }
+
+    /** Fibonacci counts, which push the rarest symbols to the length limit. */
+    static byte[] longestCodes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long a = 1;
+        long b = 1;
+        for (int s = 0; s < 24; s++) {
+            for (long n = 0; n < a; n++) out.write(s);
+            long next = a + b;
+            a = b;
+            b = next;
+        }
+        return out.toByteArray();
+    }
+
+    static void check(Simd.Kernels simd, String name, byte[] data, Random random) {
+        int off = data.length == 0 ? 0 : random.nextInt(Math.min(data.length, 70));
+        int end = data.length - (data.length - off == 0 ? 0 : random.nextInt(Math.min(data.length - off, 5)));
+
+        long[] counts = new long[HuffmanCode.SYMBOLS];
+        for (int i = off; i < end; i++) counts[data[i] & 0xFF]++;
+
+        HuffmanCode code = new HuffmanCode();
+        code.build(counts);
+        long bits = 0;
+        for (int s = 0; s < HuffmanCode.SYMBOLS; s++) bits += counts[s] * code.len[s];
+        if (simd.codeBits(counts, code.len, HuffmanCode.SYMBOLS) != bits) fail(name + ": codeBits differs");
+
+        // Start behind a partial code so writeWords() takes its slow path too.
+        int prefix = random.nextInt(32);
+        int prefixBits = random.nextInt() & (1 << prefix) - 1;
+        ByteBuffer scalar = ByteBuffer.allocate(HuffmanCodec.maxCompressedLength(end - off) + 8);
+        BitWriter writer = new BitWriter(scalar);
+        writer.write(prefixBits, prefix);
+        for (int i = off; i < end; i++) writer.write(code.code[data[i] & 0xFF], code.len[data[i] & 0xFF]);
+        writer.flush();
+        ByteBuffer vector = ByteBuffer.allocate(scalar.capacity());
+        writer.reset(vector);
+        writer.write(prefixBits, prefix);
+        simd.encode(data, off, end, code, writer);
+        writer.flush();
+        if (!scalar.flip().equals(vector.flip())) fail(name + ": encode differs after " + prefix + " bits");
+    }
+
+    static void fail(String message) {
+        failures++;
+        System.out.println("FAIL " + message);
+    }
+}
@@ -0,0 +1,94 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/** Sample inputs and encoder option sets shared by the tests. */
+class TestData {
+    private static final String[] WORDS = {
+        "the", "of", "and", "to", "in", "block", "code", "table", "length", "stream",
+        "decoder", "frame", "symbol", "window", "match", "offset", "compress", "error",
+    };
+
+    private static HuffmanDictionary dictionary;
+
+    /** Deterministic inputs that between them reach every block type. */
+    static Map<String, byte[]> samples() {
+        Map<String, byte[]> samples = new LinkedHashMap<>();
+        Random random = new Random(42);
+
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 60000) {
+            text.append(WORDS[(int) Math.min(WORDS.length - 1, -Math.log(random.nextDouble()) * 4)]);
+            text.append(random.nextInt(12) == 0 ? ".\n" : " ");
+        }
+        samples.put("text", text.toString().getBytes());
+
+        byte[] skewed = new byte[50000];
+        for (int i = 0; i < skewed.length; i++) skewed[i] = (byte) Integer.numberOfTrailingZeros(random.nextInt() | 1 << 20);
+        samples.put("skewed", skewed);
+
+        byte[] uniform = new byte[20000];
+        random.nextBytes(uniform);
+        samples.put("uniform", uniform);
+
+        byte[] runs = new byte[30000];
+        for (int i = 0; i < runs.length; i++) runs[i] = (byte) ('a' + i / 1000 % 3);
+        samples.put("runs", runs);
+
+        samples.put("single", new byte[] {'x'});
+        samples.put("small", "abracadabra".getBytes());
+        return samples;
+    }
+
+    /** One option set per encoder path, keyed by the command line flags that select it. */
+    static Map<String, CodecOptions> optionSets() throws IOException {
+        Map<String, CodecOptions> sets = new LinkedHashMap<>();
+        sets.put("default", new CodecOptions());
+        CodecOptions single = new CodecOptions();
+        single.interleave = false;
+        sets.put("--single-stream", single);
+        CodecOptions lz = new CodecOptions();
+        lz.lz = true;
+        sets.put("--lz", lz);
+        CodecOptions window = new CodecOptions();
+        window.lz = true;
+        window.window = 1 << 10;
+        sets.put("--window=1024", window);
+        CodecOptions tokens = new CodecOptions();
+        tokens.tokens = true;
+        sets.put("--tokens", tokens);
+        CodecOptions fse = new CodecOptions();
+        fse.entropy = CodecOptions.ENTROPY_FSE;
+        sets.put("--entropy=fse", fse);
+        CodecOptions auto = new CodecOptions();
+        auto.entropy = CodecOptions.ENTROPY_AUTO;
+        sets.put("--entropy=auto", auto);
+        CodecOptions lzFse = new CodecOptions();
+        lzFse.lz = true;
+        lzFse.entropy = CodecOptions.ENTROPY_FSE;
+        sets.put("--lz --entropy=fse", lzFse);
+        CodecOptions filtered = new CodecOptions();
+        filtered.searchFilter = true;
+        sets.put("--search-filter", filtered);
+        CodecOptions dict = new CodecOptions();
+        dict.dictionary = dictionary();
+        sets.put("--dict", dict);
+        return sets;
+    }
+
+    /** A dictionary trained on the text sample, loaded so decoders can find it. */
+    static synchronized HuffmanDictionary dictionary() throws IOException {
+        if (dictionary == null) {
+            Path dir = Files.createTempDirectory("dict");
+            Path sample = dir.resolve("sample.txt");
+            Path file = dir.resolve("test.dict");
+            Files.write(sample, samples().get("text"));
+            HuffmanDictionary.train(List.of(sample), 1).save(file);
+            dictionary = HuffmanDictionary.load(file);
+            Files.delete(sample);
+            Files.delete(file);
+            Files.delete(dir);
+        }
+        return dictionary;
+    }
+}